@@ -2,6 +2,10 @@ package com.soundcloud.api;
 
 import org.apache.http.ConnectionReuseStrategy;
 import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -21,7 +25,11 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
@@ -40,15 +48,28 @@ import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.HttpRequestExecutor;
 import org.json.JSONException;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Interface with SoundCloud, using OAuth2.
@@ -73,21 +94,55 @@ import java.util.Arrays;
 public class ApiWrapper implements CloudAPI, Serializable {
     private static final long serialVersionUID = 3662083416905771921L;
     public static final String DEFAULT_CONTENT_TYPE = "application/json";
+    /** Request bodies bigger than this (in bytes) are sent with <code>Expect: 100-continue</code> */
+    public static final long DEFAULT_EXPECT_CONTINUE_THRESHOLD = 1024 * 1024;
+
+    /** deadline of the call in progress on the current thread, if any */
+    private static final ThreadLocal<Long> sDeadline = new ThreadLocal<Long>();
+
+    /** ASCII "SCAW", start of files written by {@link #toFile(File)} */
+    private static final int FILE_MAGIC = 0x53434157;
+    private static final int FILE_VERSION = 1;
 
     /** The current environment */
     public final Env env;
 
+    /** only used for serialization, the current token lives in {@link #mTokenState} */
     private Token mToken;
     private final String mClientId, mClientSecret;
     private final URI mRedirectUri;
     transient private HttpClient httpClient;
     transient private TokenListener listener;
+    transient private SingleFlight<Token> mRefreshFlight;
+    transient private AtomicReference<TokenSnapshot> mTokenState;
+    transient private volatile TokenStore mTokenStore;
+    transient private volatile ClientCredentialsCache mCredentialsCache;
+    transient private volatile SharedTokenFile mSharedFile;
+    transient private volatile RetryPolicy mRetryPolicy;
+    transient private volatile RateLimiter mRateLimiter;
+    transient private volatile CircuitBreakers mCircuitBreakers;
+    transient private volatile HedgingPolicy mHedgingPolicy;
+    transient private volatile Bulkheads mBulkheads;
+    transient private volatile ConcurrencyLimiter mConcurrencyLimiter;
+    transient private volatile RequestScheduler mRequestScheduler;
+    transient private volatile RequestTiming.Listener mTimingListener;
+    transient private volatile RequestMetrics mRequestMetrics;
+    transient private volatile RequestLog mRequestLog;
+    transient private volatile Tracer mTracer;
+    transient private volatile SlowRequestRecorder mSlowRequestRecorder;
+    /** sequence of the shared token this wrapper has seen last */
+    transient private volatile long mSharedSequence;
 
-    /** debug request details to stderr */
+    /**
+     * debug request details to stderr
+     * @deprecated blocks on stderr, use {@link #setRequestLog(RequestLog)}
+     */
+    @Deprecated
     public boolean debugRequests;
 
 
     private String mDefaultContentType;
+    private Long mExpectContinueThreshold;
 
     /**
      * Constructs a new ApiWrapper instance.
@@ -107,7 +162,8 @@ public class ApiWrapper implements CloudAPI, Serializable {
         mClientId = clientId;
         mClientSecret = clientSecret;
         mRedirectUri = redirectUri;
-        mToken = token == null ? new Token(null, null) : token;
+        mTokenState = new AtomicReference<TokenSnapshot>(
+                new TokenSnapshot(token == null ? new Token(null, null) : token));
         this.env = env;
     }
 
@@ -126,8 +182,7 @@ public class ApiWrapper implements CloudAPI, Serializable {
                 "username", username,
                 "password", password);
         if (scope != null) request.add("scope", scope);
-        mToken = requestToken(request);
-        return mToken;
+        return share(requestToken(request));
     }
 
     @Override public Token authorizationCode(String code) throws IOException {
@@ -146,15 +201,29 @@ public class ApiWrapper implements CloudAPI, Serializable {
                 "code", code);
         if (scope != null) request.add("scope", scope);
 
-        mToken = requestToken(request);
-        return mToken;
+        return share(requestToken(request));
     }
 
     @Override public Token clientCredentials() throws IOException {
         return clientCredentials(Token.SCOPE_SIGNUP);
     }
 
-    @Override public Token clientCredentials(String scope) throws IOException {
+    /**
+     * {@inheritDoc}
+     * If a {@link #setClientCredentialsCache(ClientCredentialsCache) cache} is set, a cached token
+     * gets returned if available.
+     */
+    @Override public Token clientCredentials(final String scope) throws IOException {
+        final ClientCredentialsCache cache = mCredentialsCache;
+        if (cache == null) return requestClientCredentials(scope);
+        return cache.get(env, mClientId, scope, new Callable<Token>() {
+            @Override public Token call() throws IOException {
+                return requestClientCredentials(scope);
+            }
+        });
+    }
+
+    private Token requestClientCredentials(String scope) throws IOException {
         final Request req = Request.to(Endpoints.TOKEN).with(
                 "grant_type", CLIENT_CREDENTIALS,
                 "client_id",  mClientId,
@@ -168,34 +237,67 @@ public class ApiWrapper implements CloudAPI, Serializable {
         return token;
     }
 
+    /**
+     * {@inheritDoc}
+     * Concurrent calls share a single refresh request. With a
+     * {@link #setSharedTokenFile(SharedTokenFile) shared token file}, only one process refreshes,
+     * the others wait and then use the token it obtained.
+     */
     @Override public Token refreshToken() throws IOException {
-        if (mToken == null || mToken.refresh == null) throw new IllegalStateException("no refresh token available");
-        mToken = requestToken(Request.to(Endpoints.TOKEN).with(
+        final Token current = mTokenState.get().token;
+        if (current == null || current.refresh == null) throw new IllegalStateException("no refresh token available");
+        return getRefreshFlight().execute(new Callable<Token>() {
+            @Override public Token call() throws IOException {
+                final SharedTokenFile file = mSharedFile;
+                if (file == null) return install(requestRefresh());
+
+                return install(file.refresh(mSharedSequence, new Callable<Token>() {
+                    @Override public Token call() throws IOException {
+                        return requestRefresh();
+                    }
+                }));
+            }
+        });
+    }
+
+    private Token requestRefresh() throws IOException {
+        final Token token = mTokenState.get().token;
+        if (token == null || token.refresh == null) throw new IllegalStateException("no refresh token available");
+        return requestToken(Request.to(Endpoints.TOKEN).with(
                 "grant_type", REFRESH_TOKEN,
                 "client_id", mClientId,
                 "client_secret", mClientSecret,
-                "refresh_token", mToken.refresh));
-        return mToken;
+                "refresh_token", token.refresh));
+    }
+
+    private synchronized SingleFlight<Token> getRefreshFlight() {
+        if (mRefreshFlight == null) mRefreshFlight = new SingleFlight<Token>();
+        return mRefreshFlight;
     }
 
     @Override public Token exchangeOAuth1Token(String oauth1AccessToken) throws IOException {
         if (oauth1AccessToken == null) throw new IllegalArgumentException("need access token");
-        mToken = requestToken(Request.to(Endpoints.TOKEN).with(
+        return share(requestToken(Request.to(Endpoints.TOKEN).with(
                 "grant_type", OAUTH1_TOKEN,
                 "client_id", mClientId,
                 "client_secret", mClientSecret,
-                "refresh_token", oauth1AccessToken));
-        return mToken;
+                "refresh_token", oauth1AccessToken)));
     }
 
     @Override public Token invalidateToken() {
-        if (mToken != null) {
-            Token alternative = listener == null ? null : listener.onTokenInvalid(mToken);
-            mToken.invalidate();
+        final TokenSnapshot state = mTokenState.get();
+        if (state.token != null) {
+            // a rejected client credentials token must not be handed out again
+            final ClientCredentialsCache cache = mCredentialsCache;
+            if (cache != null) cache.evict(state.token);
+
+            Token alternative = listener == null ? null : listener.onTokenInvalid(state.get());
             if (alternative != null) {
-                mToken = alternative;
-                return mToken;
+                mTokenState.set(new TokenSnapshot(alternative));
+                return alternative;
             } else {
+                // don't invalidate a token which got installed in the meantime
+                mTokenState.compareAndSet(state, state.invalidate());
                 return null;
             }
         } else {
@@ -203,6 +305,143 @@ public class ApiWrapper implements CloudAPI, Serializable {
         }
     }
 
+    /**
+     * Refreshes the token of a user from the token store. Concurrent calls for the same
+     * user share a single refresh request.
+     * @param user the user id
+     * @return the new token
+     * @throws IOException in case of network problems
+     * @throws com.soundcloud.api.CloudAPI.InvalidTokenException invalid token, or user not in the store
+     * @throws IllegalStateException if no refresh token present
+     * @see #setTokenStore(TokenStore)
+     */
+    public Token refreshToken(String user) throws IOException {
+        final TokenStore.Tenant tenant = tenant(user);
+        return tenant.refresh.execute(new Callable<Token>() {
+            @Override public Token call() throws IOException {
+                return refreshToken(tenant);
+            }
+        });
+    }
+
+    /**
+     * Lets {@link OAuth2Scheme} use the wrapper's tracer, token snapshots and token store.
+     * Refreshes are coordinated by the wrapper itself.
+     */
+    /* package */ static class AuthHooks extends OAuth2Scheme.Hooks {
+        private final ApiWrapper mWrapper;
+
+        /* package */ AuthHooks(ApiWrapper wrapper) {
+            super(wrapper);
+            mWrapper = wrapper;
+        }
+
+        @Override Tracer getTracer() {
+            return mWrapper.getTracer();
+        }
+
+        @Override TokenSnapshot getTokenSnapshot() {
+            // the wrapper only hands out copies of its token, use its snapshot to avoid allocations
+            return mWrapper.getTokenSnapshot();
+        }
+
+        @Override boolean supportsUsers() {
+            return true;
+        }
+
+        @Override Header authenticate(String user, Header usedToken) throws IOException {
+            return mWrapper.authenticate(user, usedToken);
+        }
+
+        @Override boolean coordinatesRefreshes() {
+            return true;
+        }
+    }
+
+    /**
+     * Handles a rejected token of a user from the token store, used by {@link OAuth2Scheme}.
+     * @param user the user id
+     * @param used the rejected Authorization header
+     * @return the Authorization header to use instead
+     * @throws IOException if the token could not be refreshed
+     */
+    /* package */ Header authenticate(String user, final Header used) throws IOException {
+        final TokenStore.Tenant tenant = tenant(user);
+        if (tenant.snapshot().isStale(used)) {
+            tenant.refresh.execute(new Callable<Token>() {
+                @Override public Token call() throws IOException {
+                    final TokenSnapshot snapshot = tenant.snapshot();
+                    if (!snapshot.isStale(used)) return snapshot.get();
+
+                    final CloudAPI.TokenListener l = tenant.listener;
+                    final Token alternative = l == null ? null : l.onTokenInvalid(snapshot.get());
+                    if (alternative != null) {
+                        tenant.install(alternative);
+                        return alternative;
+                    } else {
+                        return refreshToken(tenant);
+                    }
+                }
+            });
+        }
+        return tenant.snapshot().header;
+    }
+
+    private Token refreshToken(TokenStore.Tenant tenant) throws IOException {
+        final Token token = tenant.snapshot().token;
+        if (token == null || token.refresh == null) throw new IllegalStateException("no refresh token available");
+        final Token fresh = fetchToken(Request.to(Endpoints.TOKEN).with(
+                "grant_type", REFRESH_TOKEN,
+                "client_id", mClientId,
+                "client_secret", mClientSecret,
+                "refresh_token", token.refresh));
+        tenant.install(fresh);
+        final CloudAPI.TokenListener l = tenant.listener;
+        if (l != null) l.onTokenRefreshed(fresh);
+        return fresh;
+    }
+
+    private TokenStore.Tenant tenant(String user) throws InvalidTokenException {
+        final TokenStore store = mTokenStore;
+        final TokenStore.Tenant tenant = store == null ? null : store.tenant(user);
+        if (tenant == null) throw new InvalidTokenException(-1, "no token for user " + user);
+        return tenant;
+    }
+
+    /* installs the token as the current one */
+    private Token install(Token token) {
+        mTokenState.set(new TokenSnapshot(token));
+        return token;
+    }
+
+    /* installs a token read from or written to the shared token file */
+    private synchronized Token install(SharedTokenFile.Entry entry) {
+        if (entry.sequence >= mSharedSequence) {
+            mSharedSequence = entry.sequence;
+            mTokenState.set(new TokenSnapshot(entry.token));
+        }
+        return entry.token == null ? null : new Token(entry.token);
+    }
+
+    /* installs a newly obtained token, and publishes it to other processes */
+    private Token share(Token token) throws IOException {
+        final SharedTokenFile file = mSharedFile;
+        return file == null ? install(token) : install(file.put(token));
+    }
+
+    /* picks up a token written by another process, if any */
+    private void syncSharedToken() {
+        final SharedTokenFile file = mSharedFile;
+        if (file != null && file.sequence() != mSharedSequence) {
+            try {
+                final SharedTokenFile.Entry entry = file.poll();
+                if (entry != null && entry.token != null) install(entry);
+            } catch (IOException ignored) {
+                // keep using the current token
+            }
+        }
+    }
+
     @Override public URI authorizationCodeUrl(String... options) {
         final Request req = Request.to(options.length == 0 ? Endpoints.CONNECT : options[0]).with(
                 "redirect_uri", mRedirectUri,
@@ -231,13 +470,43 @@ public class ApiWrapper implements CloudAPI, Serializable {
      * @throws com.soundcloud.api.CloudAPI.InvalidTokenException unauthorized
      */
     protected Token requestToken(Request request) throws IOException {
-        HttpResponse response = getHttpClient().execute(env.sslResourceHost, request.buildRequest(HttpPost.class));
+        final Tracer tracer = mTracer;
+        final Tracer.Span span = tracer == null ? null : tracer.begin(Tracer.TOKEN_REQUEST, request.getPattern());
+        final Token token;
+        try {
+            token = fetchToken(request);
+        } catch (IOException e) {
+            if (span != null) span.end(e instanceof InvalidTokenException ? HttpStatus.SC_UNAUTHORIZED : -1, -1, e);
+            throw e;
+        } catch (RuntimeException e) {
+            if (span != null) span.end(-1, -1, e);
+            throw e;
+        }
+        if (span != null) span.end(HttpStatus.SC_OK, -1, null);
+        if (listener != null) listener.onTokenRefreshed(token);
+        return token;
+    }
+
+    private Token fetchToken(Request request) throws IOException {
+        final HttpPost post = request.buildRequest(HttpPost.class);
+        final Long deadline = sDeadline.get();
+        HttpResponse response;
+        if (deadline == null) {
+            response = getHttpClient().execute(env.sslResourceHost, post);
+        } else {
+            final Deadline timer = Deadline.arm(post, deadline);
+            try {
+                response = getHttpClient().execute(env.sslResourceHost, post);
+            } catch (IOException e) {
+                throw timer.translate(e);
+            } finally {
+                timer.disarm();
+            }
+        }
         final int status = response.getStatusLine().getStatusCode();
 
         if (status == HttpStatus.SC_OK) {
-            final Token token = new Token(Http.getJSON(response));
-            if (listener != null) listener.onTokenRefreshed(token);
-            return token;
+            return new Token(Http.getJSON(response));
         } else {
             String error = "";
             try {
@@ -291,15 +560,47 @@ public class ApiWrapper implements CloudAPI, Serializable {
             HttpProtocolParams.setUserAgent(params, getUserAgent());
 
             final SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme("http", getSocketFactory(), 80));
+            registry.register(new Scheme("http", TimingSocketFactory.wrap(getSocketFactory()), 80));
             final SSLSocketFactory sslFactory = getSSLSocketFactory();
             if (env == Env.SANDBOX) {
                 // disable strict checks on sandbox XXX remove when certificate is fixed
                 sslFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
             }
-            registry.register(new Scheme("https", sslFactory, 443));
+            registry.register(new Scheme("https", TimingSocketFactory.wrap(sslFactory), 443));
             httpClient = new DefaultHttpClient(
-                    new ThreadSafeClientConnManager(params, registry),
+                    new ThreadSafeClientConnManager(params, registry) {
+                        @Override public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+                            final ClientConnectionRequest request = super.requestConnection(route, state);
+                            final RequestTiming timing = RequestTiming.current();
+                            final Tracer tracer = mTracer;
+                            if (timing == null && tracer == null) return request;
+                            final String host = route.getTargetHost().getHostName();
+                            return new ClientConnectionRequest() {
+                                @Override public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                                        throws InterruptedException, ConnectionPoolTimeoutException {
+                                    final Tracer.Span span = tracer == null ? null : tracer.begin(Tracer.LEASE, host);
+                                    final long start = System.nanoTime();
+                                    final ManagedClientConnection connection;
+                                    try {
+                                        connection = request.getConnection(timeout, unit);
+                                    } catch (InterruptedException e) {
+                                        if (span != null) span.end(-1, -1, e);
+                                        throw e;
+                                    } catch (ConnectionPoolTimeoutException e) {
+                                        if (span != null) span.end(-1, -1, e);
+                                        throw e;
+                                    }
+                                    if (timing != null) timing.leased(System.nanoTime() - start, connection.isOpen());
+                                    if (span != null) span.end(-1, -1, null);
+                                    return connection;
+                                }
+
+                                @Override public void abortRequest() {
+                                    request.abortRequest();
+                                }
+                            };
+                        }
+                    },
                     params) {
                 {
                     setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
@@ -313,7 +614,17 @@ public class ApiWrapper implements CloudAPI, Serializable {
                         new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT, CloudAPI.REALM, OAUTH_SCHEME),
                         OAuth2Scheme.EmptyCredentials.INSTANCE);
 
-                    getAuthSchemes().register(CloudAPI.OAUTH_SCHEME, new OAuth2Scheme.Factory(ApiWrapper.this));
+                    getAuthSchemes().register(CloudAPI.OAUTH_SCHEME, new OAuth2Scheme.Factory(ApiWrapper.this,
+                            new AuthHooks(ApiWrapper.this)));
+
+                    // retries are left to the RetryPolicy when there is one
+                    final HttpRequestRetryHandler retries = getHttpRequestRetryHandler();
+                    setHttpRequestRetryHandler(new HttpRequestRetryHandler() {
+                        @Override
+                        public boolean retryRequest(IOException e, int executionCount, HttpContext context) {
+                            return mRetryPolicy == null && retries.retryRequest(e, executionCount, context);
+                        }
+                    });
                 }
 
                 @Override protected HttpContext createHttpContext() {
@@ -323,6 +634,34 @@ public class ApiWrapper implements CloudAPI, Serializable {
                     return ctxt;
                 }
 
+                @Override protected HttpRequestExecutor createRequestExecutor() {
+                    return new HttpRequestExecutor() {
+                        @Override protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn,
+                                                                       HttpContext context) throws IOException, HttpException {
+                            final RequestTiming timing = RequestTiming.current();
+                            if (timing == null) return super.doSendRequest(request, conn, context);
+                            final long start = System.nanoTime();
+                            try {
+                                return super.doSendRequest(request, conn, context);
+                            } finally {
+                                timing.written(System.nanoTime() - start);
+                            }
+                        }
+
+                        @Override protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn,
+                                                                           HttpContext context) throws HttpException, IOException {
+                            final RequestTiming timing = RequestTiming.current();
+                            if (timing == null) return super.doReceiveResponse(request, conn, context);
+                            final long start = System.nanoTime();
+                            try {
+                                return super.doReceiveResponse(request, conn, context);
+                            } finally {
+                                timing.received(System.nanoTime() - start);
+                            }
+                        }
+                    };
+                }
+
                 @Override protected BasicHttpProcessor createHttpProcessor() {
                     BasicHttpProcessor processor = super.createHttpProcessor();
                     processor.addInterceptor(new OAuth2HttpRequestInterceptor());
@@ -353,20 +692,25 @@ public class ApiWrapper implements CloudAPI, Serializable {
     @Override
     public long resolve(String url) throws IOException {
         HttpResponse resp = get(Request.to(Endpoints.RESOLVE).with("url", url));
-        if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_TEMPORARILY) {
-            Header location = resp.getFirstHeader("Location");
-            if (location != null) {
-                String s = location.getValue();
-                if (s.contains("/")) {
-                    try {
-                        return Integer.parseInt(s.substring(s.lastIndexOf("/") + 1, s.length()));
-                    } catch (NumberFormatException ignored) {
-                        // ignored
+        try {
+            if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_MOVED_TEMPORARILY) {
+                Header location = resp.getFirstHeader("Location");
+                if (location != null) {
+                    String s = location.getValue();
+                    if (s.contains("/")) {
+                        try {
+                            return Integer.parseInt(s.substring(s.lastIndexOf("/") + 1, s.length()));
+                        } catch (NumberFormatException ignored) {
+                            // ignored
+                        }
                     }
                 }
             }
+            return -1;
+        } finally {
+            // releases the connection, and the bulkhead and scheduler slots
+            if (resp.getEntity() != null) resp.getEntity().consumeContent();
         }
-        return -1;
     }
 
     @Override public HttpResponse get(Request request) throws IOException {
@@ -385,12 +729,225 @@ public class ApiWrapper implements CloudAPI, Serializable {
         return execute(request, HttpDelete.class);
     }
 
+    /**
+     * @return a copy of the current token, changing it has no effect on the wrapper
+     * (use {@link #setToken(Token)})
+     */
     @Override public Token getToken() {
-        return mToken;
+        syncSharedToken();
+        return mTokenState.get().get();
     }
 
     @Override public void setToken(Token newToken) {
-        mToken = newToken;
+        install(newToken);
+    }
+
+    /* package */ TokenSnapshot getTokenSnapshot() {
+        return mTokenState.get();
+    }
+
+    /**
+     * Enables multi-tenant mode: requests made {@link Request#forUser(String) for a user} use the
+     * token of this user from the store, and refresh it when needed.
+     * @param store the token store, or null to disable
+     */
+    public void setTokenStore(TokenStore store) {
+        mTokenStore = store;
+    }
+
+    public TokenStore getTokenStore() {
+        return mTokenStore;
+    }
+
+    /**
+     * Sets a cache for client credentials tokens, usually {@link ClientCredentialsCache#getDefault()},
+     * to share them with all other wrappers using the same client id.
+     * @param cache the cache to use, or null to always request new tokens (the default)
+     */
+    public void setClientCredentialsCache(ClientCredentialsCache cache) {
+        mCredentialsCache = cache;
+    }
+
+    public ClientCredentialsCache getClientCredentialsCache() {
+        return mCredentialsCache;
+    }
+
+    /**
+     * Shares the token of this wrapper with other processes using the same file: refreshed tokens
+     * are written to the file and only one process refreshes at a time. If the file already
+     * contains a token it replaces the current one, otherwise the current token gets written.
+     * Tokens set with {@link #setToken(Token)} are not shared, use {@link SharedTokenFile#write(Token)}.
+     * @param file the shared file, or null to stop sharing
+     * @throws IOException if the file could not be read or written
+     */
+    public void setSharedTokenFile(SharedTokenFile file) throws IOException {
+        synchronized (this) {
+            mSharedFile = file;
+            mSharedSequence = 0;
+        }
+        if (file != null) {
+            final Token current = mTokenState.get().token;
+            final SharedTokenFile.Entry entry = file.initialize(current != null && current.valid() ? current : null);
+            if (entry.token != null) install(entry);
+        }
+    }
+
+    public SharedTokenFile getSharedTokenFile() {
+        return mSharedFile;
+    }
+
+    /**
+     * While a policy is installed, HttpClient's own retries of requests failing with an
+     * IOException are disabled, so requests are not retried twice.
+     * @param policy retries failed requests made with {@link #get(Request)}, {@link #put(Request)},
+     *               {@link #delete(Request)} and {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        mRetryPolicy = policy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * @param limiter limits the rate of requests made with {@link #get(Request)}, {@link #put(Request)},
+     *                {@link #delete(Request)} and {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        mRateLimiter = limiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * @param breakers circuit breakers per endpoint pattern, used for requests made with
+     *                 {@link #get(Request)}, {@link #put(Request)}, {@link #delete(Request)} and
+     *                 {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setCircuitBreakers(CircuitBreakers breakers) {
+        mCircuitBreakers = breakers;
+    }
+
+    public CircuitBreakers getCircuitBreakers() {
+        return mCircuitBreakers;
+    }
+
+    /**
+     * @param hedging hedges slow requests made with {@link #get(Request)}, or null to disable
+     *                (the default)
+     */
+    public void setHedgingPolicy(HedgingPolicy hedging) {
+        mHedgingPolicy = hedging;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return mHedgingPolicy;
+    }
+
+    /**
+     * @param bulkheads concurrency limits per traffic class, used for requests made with
+     *                  {@link #get(Request)}, {@link #put(Request)}, {@link #delete(Request)} and
+     *                  {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setBulkheads(Bulkheads bulkheads) {
+        mBulkheads = bulkheads;
+    }
+
+    public Bulkheads getBulkheads() {
+        return mBulkheads;
+    }
+
+    /**
+     * @param limiter adapts the number of requests in flight made with {@link #get(Request)},
+     *                {@link #put(Request)}, {@link #delete(Request)} and {@link #post(Request)},
+     *                or null to disable (the default)
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        mConcurrencyLimiter = limiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return mConcurrencyLimiter;
+    }
+
+    /**
+     * @param scheduler dispatches requests made with {@link #get(Request)}, {@link #put(Request)},
+     *                  {@link #delete(Request)} and {@link #post(Request)} by priority, or null to
+     *                  send them right away (the default)
+     */
+    public void setRequestScheduler(RequestScheduler scheduler) {
+        mRequestScheduler = scheduler;
+    }
+
+    public RequestScheduler getRequestScheduler() {
+        return mRequestScheduler;
+    }
+
+    /**
+     * @param listener gets the timing breakdown of every request attempt made with
+     *                 {@link #get(Request)}, {@link #put(Request)}, {@link #delete(Request)} and
+     *                 {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setTimingListener(RequestTiming.Listener listener) {
+        mTimingListener = listener;
+    }
+
+    public RequestTiming.Listener getTimingListener() {
+        return mTimingListener;
+    }
+
+    /**
+     * @param metrics records latency, response size and status of requests made with
+     *                {@link #get(Request)}, {@link #put(Request)}, {@link #delete(Request)} and
+     *                {@link #post(Request)}, or null to disable (the default)
+     */
+    public void setRequestMetrics(RequestMetrics metrics) {
+        mRequestMetrics = metrics;
+    }
+
+    public RequestMetrics getRequestMetrics() {
+        return mRequestMetrics;
+    }
+
+    /**
+     * @param log keeps recent events of requests made with {@link #get(Request)},
+     *            {@link #put(Request)}, {@link #delete(Request)} and {@link #post(Request)},
+     *            or null to disable (the default)
+     */
+    public void setRequestLog(RequestLog log) {
+        mRequestLog = log;
+    }
+
+    public RequestLog getRequestLog() {
+        return mRequestLog;
+    }
+
+    /**
+     * @param tracer gets spans for calls, token requests, authentication and connection leases,
+     *               or null to disable (the default)
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * @param recorder captures the details of slow requests made with {@link #get(Request)},
+     *                 {@link #put(Request)}, {@link #delete(Request)} and {@link #post(Request)},
+     *                 or null to disable (the default)
+     */
+    public void setSlowRequestRecorder(SlowRequestRecorder recorder) {
+        mSlowRequestRecorder = recorder;
+    }
+
+    public SlowRequestRecorder getSlowRequestRecorder() {
+        return mSlowRequestRecorder;
     }
 
     @Override
@@ -409,19 +966,449 @@ public class ApiWrapper implements CloudAPI, Serializable {
     }
 
     protected HttpResponse execute(Request req, Class<? extends HttpRequestBase> reqType) throws IOException {
-        if (debugRequests) System.err.println(reqType.getSimpleName()+" "+req);
-        return execute(req.buildRequest(reqType));
+        if (debugRequests) {
+            // never print tokens or other secrets
+            System.err.println(reqType.getSimpleName() + " " +
+                    RequestLog.redact(String.valueOf(req.getResource())) + " " + RequestLog.params(req));
+        }
+        final Long outer = sDeadline.get();
+        final long deadline = outer == null || (req.getDeadline() != 0 && req.getDeadline() < outer) ?
+                req.getDeadline() : outer;
+        if (deadline == 0) return trace(req, reqType, 0);
+
+        // token refreshes happening during the call are subject to the deadline, too
+        sDeadline.set(deadline);
+        try {
+            return trace(req, reqType, deadline);
+        } finally {
+            endDeadline(outer);
+        }
+    }
+
+    /** @return the deadline of the call in progress on the current thread, or null */
+    /* package */ static Long currentDeadline() {
+        return sDeadline.get();
+    }
+
+    /**
+     * Makes work done on another thread for a call subject to its deadline.
+     * @param deadline the call's deadline, or null
+     * @return the deadline to restore with {@link #endDeadline(Long)}
+     */
+    /* package */ static Long beginDeadline(Long deadline) {
+        final Long outer = sDeadline.get();
+        if (deadline == null) {
+            sDeadline.remove();
+        } else {
+            sDeadline.set(deadline);
+        }
+        return outer;
+    }
+
+    /* package */ static void endDeadline(Long outer) {
+        if (outer == null) {
+            sDeadline.remove();
+        } else {
+            sDeadline.set(outer);
+        }
+    }
+
+    private HttpResponse trace(Request req, Class<? extends HttpRequestBase> reqType, long deadline) throws IOException {
+        final Tracer tracer = mTracer;
+        final Tracer.Span span = tracer == null ? null : tracer.begin(Tracer.CALL, req.getPattern());
+        if (span == null) return call(req, reqType, deadline);
+
+        final HttpResponse response;
+        try {
+            response = call(req, reqType, deadline);
+        } catch (IOException e) {
+            span.end(-1, -1, e);
+            throw e;
+        } catch (RuntimeException e) {
+            span.end(-1, -1, e);
+            throw e;
+        }
+        final HttpEntity entity = response.getEntity();
+        span.end(response.getStatusLine().getStatusCode(), entity == null ? 0 : entity.getContentLength(), null);
+        return response;
+    }
+
+    private HttpResponse call(Request req, Class<? extends HttpRequestBase> reqType, long deadline) throws IOException {
+        final Cancellation cancellation = req.getCancellation();
+        if (cancellation != null) cancellation.check();
+        HttpRequestBase request = build(req, reqType);
+        final RequestMetrics metrics = mRequestMetrics;
+        final RequestLog log = mRequestLog;
+        final boolean sampled = log != null && log.sample();
+        final SlowRequestRecorder recorder = mSlowRequestRecorder;
+        final SlowRequestRecorder.Capture capture = recorder == null ? null : recorder.begin(req, mTimingListener);
+        final RequestTiming.Listener timings = capture == null ? mTimingListener : capture;
+        final long start = System.currentTimeMillis();
+        int attempt = 1;
+        HttpResponse response = null;
+        try {
+            final RetryPolicy retry = mRetryPolicy;
+            if (retry == null || !retry.covers(request)) {
+                return response = attempt(req, request, deadline, 1, 0, sampled, timings);
+            }
+
+            long delay = 0;
+            for (; ; attempt++) {
+                final long attemptStart = System.currentTimeMillis();
+                IOException error = null;
+                try {
+                    response = attempt(req, request, deadline, attempt, delay, sampled, timings);
+                } catch (IOException e) {
+                    response = null;
+                    error = e;
+                }
+                delay = retry.nextDelay(request, attempt, response, error,
+                        System.currentTimeMillis() - attemptStart);
+                if (delay < 0 || (deadline != 0 && System.currentTimeMillis() + delay >= deadline)) {
+                    if (error != null) throw error;
+                    return response;
+                }
+                if (response != null && response.getEntity() != null) {
+                    // release the connection
+                    response.getEntity().consumeContent();
+                }
+                response = null;
+                if (cancellation != null) cancellation.detach(request);
+                Cancellation.sleep(cancellation, delay);
+                request = build(req, reqType);
+            }
+        } finally {
+            // counted once per call, not per attempt
+            if (metrics != null) {
+                metrics.record(req.getPattern(), request.getMethod(), response,
+                        System.currentTimeMillis() - start, attempt);
+            }
+            if (capture != null) capture.finish(request, response, attempt);
+        }
+    }
+
+    private HttpResponse attempt(Request req, HttpRequestBase request, long deadline, int attempt, long delay,
+                                 boolean sampled, RequestTiming.Listener timings) throws IOException {
+        final RequestLog log = mRequestLog;
+        if (log == null) return measure(req, request, deadline, attempt, delay, timings);
+
+        if (sampled) log.request(req, request.getMethod(), attempt);
+        final long start = System.currentTimeMillis();
+        final HttpResponse response;
+        try {
+            response = measure(req, request, deadline, attempt, delay, timings);
+        } catch (IOException e) {
+            log.error(req, request.getMethod(), attempt, System.currentTimeMillis() - start, e);
+            throw e;
+        }
+        if (sampled || response.getStatusLine().getStatusCode() >= 500) {
+            log.response(req, request.getMethod(), attempt, System.currentTimeMillis() - start, response);
+        }
+        return response;
+    }
+
+    private HttpResponse measure(Request req, HttpRequestBase request, long deadline, int attempt, long delay,
+                                 RequestTiming.Listener listener) throws IOException {
+        if (listener == null) return isolate(req, request, deadline);
+
+        final RequestTiming timing = new RequestTiming(listener, req, request, attempt, delay);
+        final RequestTiming outer = RequestTiming.begin(timing);
+        try {
+            return timing.complete(isolate(req, request, deadline));
+        } catch (IOException e) {
+            timing.fail(e);
+            throw e;
+        } finally {
+            RequestTiming.end(outer);
+        }
+    }
+
+    private HttpResponse isolate(Request req, HttpRequestBase request, long deadline) throws IOException {
+        final Bulkheads bulkheads = mBulkheads;
+        final Bulkhead bulkhead = bulkheads == null ? null : bulkheads.match(req.getPattern(), request.getMethod());
+        if (bulkhead == null) return schedule(req, request, deadline);
+
+        bulkhead.acquire(deadline, req.getCancellation());
+        final HttpResponse response;
+        try {
+            response = schedule(req, request, deadline);
+        } catch (IOException e) {
+            bulkhead.release();
+            throw e;
+        } catch (RuntimeException e) {
+            bulkhead.release();
+            throw e;
+        }
+        return bulkhead.releaseOnConsume(response);
+    }
+
+    /* the scheduler slot is taken before the breaker and the limiter see the request, waiting for
+       it says nothing about the endpoint */
+    private HttpResponse schedule(Request req, HttpRequestBase request, long deadline) throws IOException {
+        final RequestScheduler scheduler = mRequestScheduler;
+        if (scheduler == null) return protect(req, request, deadline);
+
+        scheduler.acquire(req.getPriority(), deadline, req.getCancellation());
+        final HttpResponse response;
+        try {
+            response = protect(req, request, deadline);
+        } catch (IOException e) {
+            scheduler.release();
+            throw e;
+        } catch (RuntimeException e) {
+            scheduler.release();
+            throw e;
+        }
+        return scheduler.releaseOnConsume(response);
+    }
+
+    private HttpResponse protect(Request req, HttpRequestBase request, long deadline) throws IOException {
+        final RateLimiter limiter = mRateLimiter;
+        final CircuitBreakers breakers = mCircuitBreakers;
+        if (limiter == null && breakers == null) return admit(req, request, deadline);
+
+        final String pattern = req.getPattern(), key = limiter == null ? null : limiterKey(req);
+        // ask the breaker first, a permit would not be given back if it rejected the call
+        final CircuitBreaker breaker = breakers == null || pattern == null ? null : breakers.get(pattern);
+        if (breaker != null) breaker.acquire(System.currentTimeMillis());
+        if (limiter != null) {
+            try {
+                limiter.acquire(pattern, key, deadline, req.getCancellation());
+            } catch (IOException e) {
+                if (breaker != null) breaker.release();
+                throw e;
+            } catch (RuntimeException e) {
+                if (breaker != null) breaker.release();
+                throw e;
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        final HttpResponse response;
+        try {
+            response = admit(req, request, deadline);
+        } catch (CancelledException e) {
+            if (breaker != null) breaker.release();
+            throw e;
+        } catch (RejectedException e) {
+            // rejected locally, says nothing about the endpoint
+            if (breaker != null) breaker.release();
+            throw e;
+        } catch (IOException e) {
+            if (breaker != null) breaker.record(true, System.currentTimeMillis() - start, System.currentTimeMillis());
+            throw e;
+        } catch (RuntimeException e) {
+            if (breaker != null) breaker.release();
+            throw e;
+        }
+        final long now = System.currentTimeMillis();
+        if (breaker != null) {
+            breaker.record(response.getStatusLine().getStatusCode() >= 500, now - start, now);
+        }
+        if (limiter != null) limiter.onResponse(pattern, key, response, now);
+        return response;
+    }
+
+    private HttpResponse admit(Request req, HttpRequestBase request, long deadline) throws IOException {
+        final ConcurrencyLimiter limiter = mConcurrencyLimiter;
+        if (limiter == null) return timed(req, request, deadline);
+
+        limiter.acquire(deadline, req.getCancellation());
+        final long start = System.currentTimeMillis();
+        final HttpResponse response;
+        try {
+            response = timed(req, request, deadline);
+        } catch (CancelledException e) {
+            limiter.ignore();
+            throw e;
+        } catch (RejectedException e) {
+            limiter.ignore();
+            throw e;
+        } catch (IOException e) {
+            limiter.release(System.currentTimeMillis() - start, true);
+            throw e;
+        } catch (RuntimeException e) {
+            limiter.ignore();
+            throw e;
+        }
+        final int status = response.getStatusLine().getStatusCode();
+        limiter.release(System.currentTimeMillis() - start, status == 429 || status >= 500);
+        return response;
+    }
+
+    private HttpResponse timed(Request req, HttpRequestBase request, long deadline) throws IOException {
+        if (deadline == 0) return send(req, request);
+
+        final Deadline timer = Deadline.arm(request, deadline);
+        try {
+            return send(req, request);
+        } catch (IOException e) {
+            throw timer.translate(e);
+        } finally {
+            timer.disarm();
+        }
+    }
+
+    private HttpResponse send(Request req, HttpRequestBase request) throws IOException {
+        final Cancellation cancellation = req.getCancellation();
+        if (cancellation == null) return dispatch(req, request);
+
+        cancellation.attach(request);
+        final HttpResponse response;
+        try {
+            response = dispatch(req, request);
+        } catch (IOException e) {
+            cancellation.detach(request);
+            throw cancellation.translate(e);
+        } catch (RuntimeException e) {
+            cancellation.detach(request);
+            throw e;
+        }
+        // the body can still be aborted while it is being read
+        return cancellation.detachOnConsume(response, request);
+    }
+
+    private HttpResponse dispatch(Request req, HttpRequestBase request) throws IOException {
+        final RequestTiming timing = RequestTiming.current();
+        if (timing != null) timing.dispatched();
+        final HedgingPolicy hedging = mHedgingPolicy;
+        if (hedging != null && request instanceof HttpGet) {
+            return hedging.execute(this, req, request);
+        } else {
+            return execute(request);
+        }
+    }
+
+    /* the user or token a request is made for */
+    private String limiterKey(Request req) {
+        if (req.getUser() != null) return req.getUser();
+        final Token token = req.getToken();
+        if (token == null) return mTokenState.get().limiterKey();
+        return token.access == null ? null : RateLimiter.key(token.access);
+    }
+
+    private HttpRequestBase build(Request req, Class<? extends HttpRequestBase> reqType) throws IOException {
+        final HttpRequestBase request = req.buildRequest(reqType);
+        if (isLargeBody(request)) {
+            prepareLargeBody(req, request);
+        }
+        return request;
+    }
+
+    /**
+     * Large bodies should only go out once the server is willing to accept them: the request
+     * will ask for <code>100-continue</code> and an expired token gets refreshed before sending,
+     * instead of transmitting everything just to get a 401 back.
+     * @param req     the request
+     * @param request the HTTP request built from <code>req</code>
+     * @throws IOException if the token could not be refreshed
+     */
+    protected void prepareLargeBody(Request req, HttpRequestBase request) throws IOException {
+        HttpProtocolParams.setUseExpectContinue(request.getParams(), true);
+        final Token token = mTokenState.get().token;
+        if (req.getToken() == null && token != null && token.refresh != null && token.expired()) {
+            final RequestTiming timing = RequestTiming.current();
+            final long start = System.nanoTime();
+            refreshToken();
+            if (timing != null) timing.refreshedToken(System.nanoTime() - start);
+        }
+    }
+
+    /* package */ boolean isLargeBody(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            final long threshold = getExpectContinueThreshold();
+            if (entity != null && threshold >= 0) {
+                final long length = entity.getContentLength();
+                // unknown length (chunked) counts as large
+                return length < 0 || length > threshold;
+            }
+        }
+        return false;
+    }
+
+    /* the token lives in the snapshot, which is transient */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        mToken = mTokenState.get().get();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        mTokenState = new AtomicReference<TokenSnapshot>(new TokenSnapshot(mToken));
     }
 
     /**
      * serialize the wrapper to a File
+     *
+     * Writes credentials, environment, redirect URI, token and settings in a compact binary
+     * format. The file gets replaced atomically, readers never see a partially written file.
      * @param f target
      * @throws java.io.IOException IO problems
+     * @see #fromFile(File)
      */
     public void toFile(File f) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f));
-        oos.writeObject(this);
-        oos.close();
+        // unique name next to the target, so concurrent writers don't clobber each other's file
+        final File target = f.getAbsoluteFile();
+        final File tmp = File.createTempFile(target.getName() + ".new", ".tmp", target.getParentFile());
+        boolean written = false;
+        try {
+            final FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                write(out);
+                out.flush();
+                fos.getFD().sync();
+                written = true;
+            } finally {
+                fos.close();
+            }
+        } finally {
+            if (!written) tmp.delete();
+        }
+        if (!tmp.renameTo(f)) {
+            // not atomic on all platforms
+            if (!f.delete() || !tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("could not replace " + f);
+            }
+        }
+    }
+
+    /* package */ void write(DataOutput out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeByte(FILE_VERSION);
+        Token.writeString(out, mClientId);
+        Token.writeString(out, mClientSecret);
+        Token.writeString(out, mRedirectUri == null ? null : mRedirectUri.toString());
+        out.writeUTF(env.name());
+        final Token token = mTokenState.get().token;
+        out.writeBoolean(token != null);
+        if (token != null) token.write(out);
+        Token.writeString(out, mDefaultContentType);
+        out.writeBoolean(mExpectContinueThreshold != null);
+        if (mExpectContinueThreshold != null) out.writeLong(mExpectContinueThreshold);
+    }
+
+    /* package */ static ApiWrapper read(DataInput in) throws IOException {
+        if (in.readInt() != FILE_MAGIC) throw new IOException("not a wrapper file");
+        final int version = in.readUnsignedByte();
+        if (version > FILE_VERSION) throw new IOException("unsupported version " + version);
+
+        final String clientId = Token.readString(in), clientSecret = Token.readString(in);
+        final String redirectUri = Token.readString(in);
+        final Env env;
+        try {
+            env = Env.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        final Token token = in.readBoolean() ? Token.read(in) : null;
+        final ApiWrapper wrapper = new ApiWrapper(clientId, clientSecret,
+                redirectUri == null ? null : URI.create(redirectUri), token, env);
+        wrapper.mDefaultContentType = Token.readString(in);
+        if (in.readBoolean()) wrapper.mExpectContinueThreshold = in.readLong();
+        return wrapper;
     }
 
 
@@ -433,14 +1420,37 @@ public class ApiWrapper implements CloudAPI, Serializable {
         mDefaultContentType = contentType;
     }
 
+    public long getExpectContinueThreshold() {
+        return (mExpectContinueThreshold == null) ? DEFAULT_EXPECT_CONTINUE_THRESHOLD : mExpectContinueThreshold;
+    }
+
+    /**
+     * @param bytes request bodies bigger than this are only sent after the server answered
+     *              with <code>100 Continue</code>, -1 to disable
+     * @see #DEFAULT_EXPECT_CONTINUE_THRESHOLD
+     */
+    public void setExpectContinueThreshold(long bytes) {
+        mExpectContinueThreshold = bytes;
+    }
+
     /**
-     * Read wrapper from a file
+     * Read wrapper from a file, written with {@link #toFile(File)}. Files written by older versions
+     * (using Java serialization) can still be read.
      * @param f  the file
      * @return   the wrapper
      * @throws IOException IO problems
      * @throws ClassNotFoundException class not found
      */
     public static ApiWrapper fromFile(File f) throws IOException, ClassNotFoundException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.remaining() >= 4 && buffer.getInt(0) == FILE_MAGIC) {
+                return read(new DataInputStream(new BufferInputStream(buffer)));
+            }
+        } finally {
+            raf.close();
+        }
         ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
         try {
             return (ApiWrapper) ois.readObject();
@@ -449,6 +1459,27 @@ public class ApiWrapper implements CloudAPI, Serializable {
         }
     }
 
+    /** Reads a (mapped) buffer without copying it first */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+    }
+
     /** Creates an OAuth2 header for the given token */
     public static Header createOAuthHeader(Token token) {
         return new BasicHeader(AUTH.WWW_AUTH_RESP, "OAuth " +
@@ -458,7 +1489,15 @@ public class ApiWrapper implements CloudAPI, Serializable {
     /** Adds an OAuth2 header to a given request */
     protected HttpRequest addAuthHeader(HttpRequest request) {
         if (!request.containsHeader(AUTH.WWW_AUTH_RESP)) {
-            request.addHeader(createOAuthHeader(getToken()));
+            final String user = (String) request.getParams().getParameter(Request.USER);
+            if (user != null) {
+                final TokenStore store = mTokenStore;
+                final TokenStore.Tenant tenant = store == null ? null : store.tenant(user);
+                request.addHeader(tenant == null ? createOAuthHeader(null) : tenant.snapshot().header);
+            } else {
+                syncSharedToken();
+                request.addHeader(mTokenState.get().header);
+            }
         }
         return request;
     }
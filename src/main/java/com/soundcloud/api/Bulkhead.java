@@ -0,0 +1,170 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrent calls of one traffic class (a group of endpoint patterns or
+ * HTTP methods), so it can't take all connections from the others. Calls beyond the limit wait
+ * in a queue of bounded depth; once the queue is full, they fail with a
+ * {@link BulkheadFullException}.
+ *
+ * A call holds its slot until its response body has been consumed or closed (bodies which are
+ * not streamed release it right away), so responses need to be consumed, as with the connection
+ * pool.
+ *
+ * Bulkheads are created with {@link Bulkheads#add(String, int, int)}.
+ */
+public class Bulkhead {
+    /** Waiting calls check for cancellation this often, in milliseconds */
+    private static final long POLL = 100;
+
+    private final String mName;
+    private final int mMaxConcurrent, mMaxQueued;
+    private final Bulkheads mConfig;
+    private final Set<String> mPatterns = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> mMethods = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicLong mRejected = new AtomicLong();
+
+    private int mActive, mQueued;
+
+    /* package */ Bulkhead(String name, int maxConcurrent, int maxQueued, Bulkheads config) {
+        if (maxConcurrent < 1 || maxQueued < 0) throw new IllegalArgumentException("invalid limits");
+        mName = name;
+        mMaxConcurrent = maxConcurrent;
+        mMaxQueued = maxQueued;
+        mConfig = config;
+    }
+
+    /**
+     * @param patterns endpoint patterns belonging to this group, e.g. {@link Endpoints#TRACKS}
+     * @return this
+     */
+    public Bulkhead forPatterns(String... patterns) {
+        mPatterns.addAll(Arrays.asList(patterns));
+        return this;
+    }
+
+    /**
+     * @param methods HTTP methods belonging to this group, e.g. <code>"POST"</code>
+     * @return this
+     */
+    public Bulkhead forMethods(String... methods) {
+        for (String method : methods) mMethods.add(method.toUpperCase());
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    /** @return the number of calls in progress */
+    public synchronized int getActive() {
+        return mActive;
+    }
+
+    /** @return the number of calls waiting for a slot */
+    public synchronized int getQueued() {
+        return mQueued;
+    }
+
+    /** @return the number of calls rejected because the queue was full or the wait too long */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /* package */ boolean matches(String pattern, String method) {
+        return (pattern != null && mPatterns.contains(pattern)) || mMethods.contains(method);
+    }
+
+    /**
+     * Gets a slot, waiting for it if necessary.
+     * @param deadline     the call's deadline, or 0
+     * @param cancellation the call's cancellation handle, or null
+     * @throws BulkheadFullException if no slot is available in time
+     * @throws InterruptedIOException if interrupted or cancelled while waiting
+     */
+    /* package */ void acquire(long deadline, Cancellation cancellation) throws IOException {
+        final long now = System.currentTimeMillis();
+        final long until = deadline == 0 ? now + mConfig.getMaxWait() : Math.min(deadline, now + mConfig.getMaxWait());
+        synchronized (this) {
+            if (mActive < mMaxConcurrent) {
+                mActive++;
+                return;
+            }
+            if (mQueued >= mMaxQueued) {
+                mRejected.incrementAndGet();
+                throw new BulkheadFullException(mName);
+            }
+            mQueued++;
+            try {
+                while (mActive >= mMaxConcurrent) {
+                    if (cancellation != null) cancellation.check();
+                    final long left = until - System.currentTimeMillis();
+                    if (left <= 0) {
+                        mRejected.incrementAndGet();
+                        throw new BulkheadFullException(mName);
+                    }
+                    wait(cancellation == null ? left : Math.min(left, POLL));
+                }
+                mActive++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + mName);
+            } finally {
+                mQueued--;
+            }
+        }
+    }
+
+    /* package */ synchronized void release() {
+        mActive--;
+        notify();
+    }
+
+    /**
+     * Keeps the slot until the response body has been consumed or closed.
+     * @param response the response of a call which holds a slot
+     * @return the response
+     */
+    /* package */ HttpResponse releaseOnConsume(HttpResponse response) {
+        return ReleasingEntity.releaseOnConsume(response, new Runnable() {
+            @Override public void run() {
+                release();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead{" +
+                "name='" + mName + '\'' +
+                ", maxConcurrent=" + mMaxConcurrent +
+                ", maxQueued=" + mMaxQueued +
+                '}';
+    }
+
+    /** Thrown for calls which could not get a slot in their bulkhead */
+    public static class BulkheadFullException extends RejectedException {
+        private static final long serialVersionUID = -3305384297432536263L;
+
+        public BulkheadFullException(String name) {
+            super("bulkhead full: " + name);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.soundcloud.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bulkheads isolating traffic classes of a wrapper from each other: each bulkhead is a named
+ * group of endpoint patterns (as passed to {@link Request#to(String, Object...)}) and/or HTTP
+ * methods, with its own maximum number of concurrent calls and queue depth. Slow uploads or big
+ * collection reads can then never take all connections from interactive calls like
+ * {@link Endpoints#MY_DETAILS} or {@link Endpoints#RESOLVE}.
+ *
+ * A call goes into the first bulkhead which matches its pattern or method, calls not matching
+ * any bulkhead are not limited. Keep the sum of all limits below the number of connections the
+ * client allows per route (see {@link Http}), or leave room for the unlimited calls.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * Bulkheads bulkheads = new Bulkheads();
+ * bulkheads.add("uploads", 1, 10).forPatterns(Endpoints.TRACKS).forMethods("POST", "PUT");
+ * bulkheads.add("collections", 2, 20).forPatterns(Endpoints.MY_ACTIVITIES, Endpoints.MY_FAVORITES);
+ * wrapper.setBulkheads(bulkheads);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setBulkheads(Bulkheads)
+ */
+public class Bulkheads {
+    /** Maximum time to wait for a slot, in milliseconds */
+    public static final long MAX_WAIT = 30 * 1000;
+
+    private final List<Bulkhead> mBulkheads = new CopyOnWriteArrayList<Bulkhead>();
+    private volatile long mMaxWait = MAX_WAIT;
+
+    /**
+     * Adds a bulkhead, to be matched after all bulkheads added before.
+     * @param name          the name of the traffic class
+     * @param maxConcurrent maximum number of concurrent calls
+     * @param maxQueued     maximum number of calls waiting for a slot, 0 to fail right away
+     * @return the bulkhead, to add patterns and methods to
+     */
+    public Bulkhead add(String name, int maxConcurrent, int maxQueued) {
+        final Bulkhead bulkhead = new Bulkhead(name, maxConcurrent, maxQueued, this);
+        mBulkheads.add(bulkhead);
+        return bulkhead;
+    }
+
+    /**
+     * @param name the name of the bulkhead
+     * @return the bulkhead, or null
+     */
+    public Bulkhead get(String name) {
+        for (Bulkhead bulkhead : mBulkheads) {
+            if (bulkhead.getName().equals(name)) return bulkhead;
+        }
+        return null;
+    }
+
+    /** @return all bulkheads, in matching order */
+    public List<Bulkhead> getAll() {
+        return new ArrayList<Bulkhead>(mBulkheads);
+    }
+
+    /** @param maxWait the longest time a call waits for a slot, in milliseconds */
+    public void setMaxWait(long maxWait) {
+        mMaxWait = maxWait;
+    }
+
+    /* package */ long getMaxWait() {
+        return mMaxWait;
+    }
+
+    /**
+     * @param pattern the endpoint pattern of the call, or null
+     * @param method  the HTTP method of the call
+     * @return the bulkhead the call belongs to, or null
+     */
+    /* package */ Bulkhead match(String pattern, String method) {
+        for (Bulkhead bulkhead : mBulkheads) {
+            if (bulkhead.matches(pattern, method)) return bulkhead;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A handle to cancel requests in progress, e.g. when the user navigates away.
+ *
+ * Cancelling aborts the HTTP requests sent on behalf of the request (including retries and
+ * hedges), which closes their connections instead of returning them to the pool: calls blocked
+ * in connecting, sending (e.g. large uploads) or waiting for a response fail right away, as do
+ * reads from a response body which is still being streamed. Calls waiting for a retry or a rate
+ * limit permit wake up. All of them fail with a {@link CloudAPI.CancelledException}.
+ *
+ * A handle can be shared by several requests, and cancelled from any thread.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * Cancellation cancellation = new Cancellation();
+ * HttpResponse resp = wrapper.get(Request.to(Endpoints.MY_ACTIVITIES).withCancellation(cancellation));
+ * ...
+ * // on another thread
+ * cancellation.cancel();
+ *   </pre>
+ * </code>
+ * @see Request#withCancellation(Cancellation)
+ */
+public class Cancellation {
+    private final List<HttpUriRequest> mRequests = new ArrayList<HttpUriRequest>();
+    private volatile boolean mCancelled;
+
+    /** Cancels all requests using this handle, now and in the future */
+    public void cancel() {
+        final List<HttpUriRequest> requests;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            requests = new ArrayList<HttpUriRequest>(mRequests);
+            mRequests.clear();
+            notifyAll();
+        }
+        for (HttpUriRequest request : requests) {
+            request.abort();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws CloudAPI.CancelledException if cancelled
+     */
+    /* package */ void check() throws CloudAPI.CancelledException {
+        if (mCancelled) throw new CloudAPI.CancelledException();
+    }
+
+    /**
+     * Registers a request to be aborted on cancel, until it gets detached.
+     * @throws CloudAPI.CancelledException if already cancelled
+     */
+    /* package */ void attach(HttpUriRequest request) throws CloudAPI.CancelledException {
+        synchronized (this) {
+            if (!mCancelled) {
+                mRequests.add(request);
+                return;
+            }
+        }
+        request.abort();
+        throw new CloudAPI.CancelledException();
+    }
+
+    /** Unregisters a request which is done with, e.g. before it gets retried */
+    /* package */ synchronized void detach(HttpUriRequest request) {
+        mRequests.remove(request);
+    }
+
+    /**
+     * Keeps a request registered while its response body is read, so reads can be aborted too.
+     * @param response the request's response
+     * @param request  the request
+     * @return the response, whose body detaches the request once consumed or closed
+     */
+    /* package */ HttpResponse detachOnConsume(HttpResponse response, final HttpUriRequest request) {
+        return ReleasingEntity.releaseOnConsume(response, new Runnable() {
+            @Override public void run() {
+                detach(request);
+            }
+        });
+    }
+
+    /** @return the number of requests registered */
+    /* package */ synchronized int attached() {
+        return mRequests.size();
+    }
+
+    /**
+     * @param e an exception thrown by a request
+     * @return a {@link CloudAPI.CancelledException} if cancelled, otherwise e
+     */
+    /* package */ IOException translate(IOException e) {
+        if (!mCancelled || e instanceof CloudAPI.CancelledException) return e;
+        final IOException cancelled = new CloudAPI.CancelledException();
+        cancelled.initCause(e);
+        return cancelled;
+    }
+
+    /**
+     * Waits like {@link Thread#sleep(long)}, but returns early on cancel.
+     * @param cancellation the handle, or null
+     * @param millis       time to wait
+     * @throws CloudAPI.CancelledException if cancelled
+     * @throws InterruptedIOException if interrupted
+     */
+    /* package */ static void sleep(Cancellation cancellation, long millis) throws InterruptedIOException {
+        try {
+            if (cancellation == null) {
+                Thread.sleep(millis);
+            } else {
+                cancellation.await(millis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting");
+        }
+    }
+
+    private synchronized void await(long millis) throws InterruptedException, CloudAPI.CancelledException {
+        final long until = System.currentTimeMillis() + millis;
+        for (long left = millis; left > 0 && !mCancelled; left = until - System.currentTimeMillis()) {
+            wait(left);
+        }
+        check();
+    }
+}
@@ -0,0 +1,172 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+
+/**
+ * Protects callers from an endpoint which is failing or responding slowly: once too many of the
+ * recent calls failed or were slow, the breaker opens and calls fail right away with a
+ * {@link CircuitOpenException}, instead of tying up threads and connections. After a while it
+ * lets a few trial calls through (half-open), and closes again if they succeed.
+ *
+ * Breakers are created per endpoint pattern by {@link CircuitBreakers}, which also holds their
+ * configuration.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW   = 2;
+
+    private final String mName;
+    private final CircuitBreakers mConfig;
+
+    private State mState = State.CLOSED;
+    /** outcomes of the most recent calls, ring buffer */
+    private byte[] mWindow;
+    private int mNext, mCalls, mFailed, mSlow;
+    private long mOpenedAt;
+    private int mTrials, mTrialSuccesses;
+
+    /* package */ CircuitBreaker(String name, CircuitBreakers config) {
+        mName = name;
+        mConfig = config;
+        mWindow = new byte[config.getWindowSize()];
+    }
+
+    /** @return the endpoint pattern this breaker protects */
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /** @return the failure rate in the current window, between 0 and 1 */
+    public synchronized float getFailureRate() {
+        return mCalls == 0 ? 0 : (float) mFailed / mCalls;
+    }
+
+    /** @return the slow call rate in the current window, between 0 and 1 */
+    public synchronized float getSlowCallRate() {
+        return mCalls == 0 ? 0 : (float) mSlow / mCalls;
+    }
+
+    /**
+     * @param now the current time
+     * @throws CircuitOpenException if the call is not permitted
+     */
+    /* package */ void acquire(long now) throws CircuitOpenException {
+        State from = null;
+        boolean permitted = true;
+        synchronized (this) {
+            if (mState == State.OPEN) {
+                if (now - mOpenedAt < mConfig.getOpenDuration()) {
+                    throw new CircuitOpenException(mName);
+                }
+                from = transition(State.HALF_OPEN, now);
+            }
+            if (mState == State.HALF_OPEN) {
+                if (mTrials < mConfig.getHalfOpenCalls()) {
+                    mTrials++;
+                } else {
+                    permitted = false;
+                }
+            }
+        }
+        fireStateChange(from, State.HALF_OPEN);
+        if (!permitted) throw new CircuitOpenException(mName);
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     * @param failed   whether the call failed
+     * @param duration duration of the call, in milliseconds
+     * @param now      the current time
+     */
+    /* package */ void record(boolean failed, long duration, long now) {
+        final boolean slow = duration >= mConfig.getSlowCallDuration();
+        State from = null, to = null;
+        synchronized (this) {
+            switch (mState) {
+                case HALF_OPEN:
+                    if (failed || slow) {
+                        from = transition(to = State.OPEN, now);
+                    } else if (++mTrialSuccesses >= mConfig.getHalfOpenCalls()) {
+                        from = transition(to = State.CLOSED, now);
+                    }
+                    break;
+                case CLOSED:
+                    add((byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0)));
+                    if (mCalls >= mConfig.getMinimumCalls() &&
+                        ((float) mFailed / mCalls >= mConfig.getFailureRateThreshold() ||
+                         (float) mSlow / mCalls >= mConfig.getSlowCallRateThreshold())) {
+                        from = transition(to = State.OPEN, now);
+                    }
+                    break;
+                default:
+                    // a call permitted before the breaker opened, ignore
+            }
+        }
+        fireStateChange(from, to);
+    }
+
+    /** Releases a permitted call which was not made */
+    /* package */ synchronized void release() {
+        if (mState == State.HALF_OPEN && mTrials > 0) mTrials--;
+    }
+
+    private void add(byte outcome) {
+        if (mCalls == mWindow.length) {
+            final byte old = mWindow[mNext];
+            if ((old & FAILED) != 0) mFailed--;
+            if ((old & SLOW) != 0) mSlow--;
+        } else {
+            mCalls++;
+        }
+        mWindow[mNext] = outcome;
+        mNext = (mNext + 1) % mWindow.length;
+        if ((outcome & FAILED) != 0) mFailed++;
+        if ((outcome & SLOW) != 0) mSlow++;
+    }
+
+    /* needs the lock, returns the previous state */
+    private State transition(State to, long now) {
+        final State from = mState;
+        mState = to;
+        switch (to) {
+            case OPEN:
+                mOpenedAt = now;
+                break;
+            case HALF_OPEN:
+                mTrials = mTrialSuccesses = 0;
+                break;
+            case CLOSED:
+                mWindow = new byte[mConfig.getWindowSize()];
+                mNext = mCalls = mFailed = mSlow = 0;
+                break;
+        }
+        return from;
+    }
+
+    private void fireStateChange(State from, State to) {
+        if (from != null) mConfig.onStateChange(this, from, to);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{" +
+                "name='" + mName + '\'' +
+                ", state=" + getState() +
+                '}';
+    }
+
+    /** Thrown for calls rejected by an open circuit breaker */
+    public static class CircuitOpenException extends RejectedException {
+        private static final long serialVersionUID = 5207757409658447302L;
+
+        public CircuitOpenException(String name) {
+            super("circuit breaker open for " + name);
+        }
+    }
+}
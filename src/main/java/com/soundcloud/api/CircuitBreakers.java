@@ -0,0 +1,151 @@
+package com.soundcloud.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breakers for the endpoints a wrapper talks to, one per endpoint pattern (as passed to
+ * {@link Request#to(String, Object...)}, e.g. {@link Endpoints#MY_ACTIVITIES}), so an endpoint
+ * having an outage doesn't starve requests to the others.
+ *
+ * A breaker opens when, within the last <code>windowSize</code> calls (and at least
+ * <code>minimumCalls</code>), the rate of failed calls (network errors and 5xx responses) or of
+ * slow calls reaches its threshold. It stays open for <code>openDuration</code>, then lets
+ * <code>halfOpenCalls</code> trial calls through, and closes if they all succeed quickly.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * CircuitBreakers breakers = new CircuitBreakers();
+ * breakers.setListener(new CircuitBreakers.Listener() {
+ *     public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+ *         log(breaker.getName() + ": " + from + " -> " + to);
+ *     }
+ * });
+ * wrapper.setCircuitBreakers(breakers);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setCircuitBreakers(CircuitBreakers)
+ */
+public class CircuitBreakers {
+    public static final int   WINDOW_SIZE            = 50;
+    public static final int   MINIMUM_CALLS          = 10;
+    public static final float FAILURE_RATE_THRESHOLD = 0.5f;
+    /** Calls taking longer than this (in milliseconds) count as slow */
+    public static final long  SLOW_CALL_DURATION     = 5000;
+    public static final float SLOW_CALL_RATE_THRESHOLD = 0.8f;
+    public static final long  OPEN_DURATION          = 30 * 1000;
+    public static final int   HALF_OPEN_CALLS        = 3;
+    /** Maximum number of patterns to keep breakers for, calls to further ones are not protected */
+    public static final int   MAX_PATTERNS           = 500;
+
+    private final ConcurrentMap<String, CircuitBreaker> mBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private volatile int mWindowSize = WINDOW_SIZE, mMinimumCalls = MINIMUM_CALLS;
+    private volatile float mFailureRateThreshold = FAILURE_RATE_THRESHOLD;
+    private volatile long mSlowCallDuration = SLOW_CALL_DURATION;
+    private volatile float mSlowCallRateThreshold = SLOW_CALL_RATE_THRESHOLD;
+    private volatile long mOpenDuration = OPEN_DURATION;
+    private volatile int mHalfOpenCalls = HALF_OPEN_CALLS;
+    private volatile Listener listener;
+
+    /**
+     * @param size     number of recent calls to look at
+     * @param minimum  minimum number of calls before a breaker can open
+     */
+    public void setWindow(int size, int minimum) {
+        if (size < 1 || minimum < 1 || minimum > size) throw new IllegalArgumentException("invalid window");
+        mWindowSize = size;
+        mMinimumCalls = minimum;
+    }
+
+    /** @param rate failure rate (0 - 1) at which breakers open */
+    public void setFailureRateThreshold(float rate) {
+        mFailureRateThreshold = rate;
+    }
+
+    /**
+     * @param duration calls taking at least this long (in milliseconds) count as slow
+     * @param rate     slow call rate (0 - 1) at which breakers open
+     */
+    public void setSlowCallThreshold(long duration, float rate) {
+        mSlowCallDuration = duration;
+        mSlowCallRateThreshold = rate;
+    }
+
+    /**
+     * @param duration time (in milliseconds) a breaker stays open before trying again
+     * @param calls    number of trial calls which have to succeed to close it
+     */
+    public void setOpenDuration(long duration, int calls) {
+        if (calls < 1) throw new IllegalArgumentException("need at least one trial call");
+        mOpenDuration = duration;
+        mHalfOpenCalls = calls;
+    }
+
+    /** @param listener gets informed about state changes, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param pattern the endpoint pattern
+     * @return the breaker for this pattern, created if needed, or null if there are
+     *         {@link #MAX_PATTERNS} breakers already
+     */
+    public CircuitBreaker get(String pattern) {
+        CircuitBreaker breaker = mBreakers.get(pattern);
+        if (breaker == null) {
+            if (mBreakers.size() >= MAX_PATTERNS) return null;
+            final CircuitBreaker created = new CircuitBreaker(pattern, this);
+            breaker = mBreakers.putIfAbsent(pattern, created);
+            if (breaker == null) breaker = created;
+        }
+        return breaker;
+    }
+
+    /** @return all breakers created so far */
+    public Collection<CircuitBreaker> getAll() {
+        return new ArrayList<CircuitBreaker>(mBreakers.values());
+    }
+
+    /* package */ int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /* package */ int getMinimumCalls() {
+        return mMinimumCalls;
+    }
+
+    /* package */ float getFailureRateThreshold() {
+        return mFailureRateThreshold;
+    }
+
+    /* package */ long getSlowCallDuration() {
+        return mSlowCallDuration;
+    }
+
+    /* package */ float getSlowCallRateThreshold() {
+        return mSlowCallRateThreshold;
+    }
+
+    /* package */ long getOpenDuration() {
+        return mOpenDuration;
+    }
+
+    /* package */ int getHalfOpenCalls() {
+        return mHalfOpenCalls;
+    }
+
+    /* package */ void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+        final Listener l = listener;
+        if (l != null) l.onStateChange(breaker, from, to);
+    }
+
+    /** Gets informed when a breaker changes its state */
+    public interface Listener {
+        void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to);
+    }
+}
@@ -0,0 +1,152 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches tokens obtained via {@link CloudAPI#clientCredentials(String)}, keyed by environment,
+ * client id and scope, so app-level tokens are only fetched once and then shared by all
+ * wrappers using the same cache (usually the process-wide {@link #getDefault() default}).
+ *
+ * Concurrent requests for a missing token share one token request. Tokens which are about to
+ * expire get replaced ahead of time: the first caller within the refresh margin fetches a new
+ * token while everybody else keeps using the current one. Tokens without an expiration get
+ * replaced after {@link #MAX_TTL}.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * wrapper.setClientCredentialsCache(ClientCredentialsCache.getDefault());
+ * Token signup = wrapper.clientCredentials(Token.SCOPE_SIGNUP);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setClientCredentialsCache(ClientCredentialsCache)
+ */
+public class ClientCredentialsCache {
+    /** Default time before expiration to fetch a new token */
+    public static final long MARGIN = 60 * 1000;
+    /** Default time tokens without an expiration are kept */
+    public static final long MAX_TTL = 60 * 60 * 1000;
+
+    private static final ClientCredentialsCache DEFAULT = new ClientCredentialsCache();
+
+    private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final long mMargin;
+    private final long mMaxTtl;
+
+    public ClientCredentialsCache() {
+        this(MARGIN);
+    }
+
+    /**
+     * @param margin time before expiration to fetch a new token, in milliseconds
+     */
+    public ClientCredentialsCache(long margin) {
+        this(margin, MAX_TTL);
+    }
+
+    /**
+     * @param margin time before expiration to fetch a new token, in milliseconds
+     * @param maxTtl time tokens without an expiration are kept, in milliseconds
+     */
+    public ClientCredentialsCache(long margin, long maxTtl) {
+        if (maxTtl <= 0) throw new IllegalArgumentException("invalid maxTtl");
+        mMargin = margin;
+        mMaxTtl = maxTtl;
+    }
+
+    /** @return the process-wide cache */
+    public static ClientCredentialsCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Removes a token from the cache, e.g. after it got rejected.
+     * @param token the token to remove
+     * @return true if the token was cached
+     */
+    public boolean evict(Token token) {
+        boolean evicted = false;
+        for (Entry entry : mEntries.values()) {
+            final Cached cached = entry.cached;
+            if (cached != null && cached.token.equals(token)) {
+                entry.cached = null;
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /** Removes all tokens */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /** @return the number of cached tokens */
+    public int size() {
+        int size = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.cached != null) size++;
+        }
+        return size;
+    }
+
+    /**
+     * @param env       the environment
+     * @param clientId  the client id
+     * @param scope     the requested scope, or null
+     * @param fetch     obtains a new token
+     * @return a copy of the cached token, or the fetched one
+     * @throws IOException if no token was cached and fetching failed
+     */
+    /* package */ Token get(Env env, String clientId, String scope, final Callable<Token> fetch) throws IOException {
+        final String key = env + " " + clientId + " " + scope;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            final Entry existing = mEntries.putIfAbsent(key, entry = new Entry());
+            if (existing != null) entry = existing;
+        }
+
+        final Cached cached = entry.cached;
+        final long now = System.currentTimeMillis();
+        if (cached != null && now < cached.expires) {
+            if (cached.expires - mMargin > now || entry.flight.isRunning()) {
+                // still fresh, or somebody is already getting a new one
+                return new Token(cached.token);
+            }
+        }
+
+        final Entry e = entry;
+        return new Token(e.flight.execute(new Callable<Token>() {
+            @Override public Token call() throws Exception {
+                final Cached current = e.cached;
+                if (current != null && current != cached && System.currentTimeMillis() < current.expires) {
+                    return current.token; // replaced while we were waiting
+                }
+                final Token token = new Token(fetch.call());
+                e.cached = new Cached(token, token.expiresIn != 0 ?
+                        token.expiresIn : System.currentTimeMillis() + mMaxTtl);
+                return token;
+            }
+        }));
+    }
+
+    private static class Entry {
+        volatile Cached cached;
+        final SingleFlight<Token> flight = new SingleFlight<Token>();
+    }
+
+    private static class Cached {
+        /** private copy, don't modify or hand out */
+        final Token token;
+        /** when the token expires, or has been kept long enough */
+        final long expires;
+
+        Cached(Token token, long expires) {
+            this.token = token;
+            this.expires = expires;
+        }
+    }
+}
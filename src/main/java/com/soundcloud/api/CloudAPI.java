@@ -3,6 +3,7 @@ package com.soundcloud.api;
 import org.apache.http.HttpResponse;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 
 /**
@@ -241,4 +242,28 @@ public interface CloudAPI {
             super("HTTP error:" + code + " (" + status + ")");
         }
     }
+
+    /**
+     * Thrown when a request's deadline expired before it completed.
+     * @see Request#withDeadline(long)
+     */
+    class DeadlineExceededException extends InterruptedIOException {
+        private static final long serialVersionUID = -1326735426738587290L;
+
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a request got cancelled before it completed.
+     * @see Cancellation
+     */
+    class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 3937271519093154283L;
+
+        public CancelledException() {
+            super("request cancelled");
+        }
+    }
 }
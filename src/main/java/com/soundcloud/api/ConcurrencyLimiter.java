@@ -0,0 +1,221 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts the number of requests a wrapper has in flight to what the API can currently handle,
+ * by watching round trip times and errors.
+ *
+ * Two algorithms are available:
+ * <ul>
+ *   <li>{@link Algorithm#AIMD}: the limit grows by one per round of successful requests, and
+ *   gets cut by 10% for every failed (network error, 429 or 5xx) or slow request.</li>
+ *   <li>{@link Algorithm#GRADIENT}: the limit follows the ratio between the long term average
+ *   round trip time and the current one - it shrinks as soon as requests start queueing up on
+ *   the server, before they fail or time out. Failures cut the limit like with AIMD.</li>
+ * </ul>
+ *
+ * The limit only grows while the wrapper actually uses at least half of it. Requests beyond the
+ * limit wait for a slot, up to a maximum time, then fail with a {@link LimitExceededException}.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.GRADIENT);
+ * limiter.setListener(new ConcurrencyLimiter.Listener() {
+ *     public void onLimitChange(int from, int to) {
+ *         log("concurrency limit: " + from + " -> " + to);
+ *     }
+ * });
+ * wrapper.setConcurrencyLimiter(limiter);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setConcurrencyLimiter(ConcurrencyLimiter)
+ */
+public class ConcurrencyLimiter {
+    public static final int    INITIAL_LIMIT = 20;
+    public static final int    MIN_LIMIT     = 1;
+    public static final int    MAX_LIMIT     = 200;
+    /** Factor the limit gets multiplied with after a failure */
+    public static final double BACKOFF_RATIO = 0.9;
+    /** With {@link Algorithm#AIMD}, requests taking longer than this (in milliseconds) count as failed */
+    public static final long   SLOW_RTT      = 5000;
+    /** With {@link Algorithm#GRADIENT}, how much longer than average round trips may take before the limit shrinks */
+    public static final double TOLERANCE     = 1.5;
+    /** Maximum time to wait for a slot, in milliseconds */
+    public static final long   MAX_WAIT      = 30 * 1000;
+
+    /** Waiting calls check for cancellation this often, in milliseconds */
+    private static final long POLL = 100;
+    /** Number of samples the long term round trip time is averaged over */
+    private static final int LONG_WINDOW = 600;
+    private static final double SMOOTHING = 0.2;
+
+    public enum Algorithm { AIMD, GRADIENT }
+
+    private final Algorithm mAlgorithm;
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mLimitChanges = new AtomicLong();
+
+    private volatile int mMinLimit = MIN_LIMIT, mMaxLimit = MAX_LIMIT;
+    private volatile long mMaxWait = MAX_WAIT;
+    private volatile Listener listener;
+
+    private double mLimit = INITIAL_LIMIT;
+    private int mInFlight;
+    /** exponential moving average of round trip times, 0 without samples */
+    private double mLongRtt;
+
+    /** @param algorithm how to adapt the limit */
+    public ConcurrencyLimiter(Algorithm algorithm) {
+        mAlgorithm = algorithm;
+    }
+
+    /**
+     * @param initial the limit to start with
+     * @param min     the limit never drops below this
+     * @param max     the limit never grows beyond this
+     */
+    public synchronized void setLimits(int initial, int min, int max) {
+        if (min < 1 || min > max || initial < min || initial > max) throw new IllegalArgumentException("invalid limits");
+        mLimit = initial;
+        mMinLimit = min;
+        mMaxLimit = max;
+        notifyAll();
+    }
+
+    /** @param maxWait the longest time a request waits for a slot, in milliseconds */
+    public void setMaxWait(long maxWait) {
+        mMaxWait = maxWait;
+    }
+
+    /** @param listener gets informed about limit changes, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Algorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /** @return the current limit */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /** @return the number of requests in flight */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /** @return the number of requests which could not get a slot in time */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /** @return how often the (integer) limit changed */
+    public long getLimitChanges() {
+        return mLimitChanges.get();
+    }
+
+    /**
+     * Gets a slot, waiting for it if necessary.
+     * @param deadline     the request's deadline, or 0
+     * @param cancellation the request's cancellation handle, or null
+     * @throws LimitExceededException if no slot is available in time
+     * @throws InterruptedIOException if interrupted or cancelled while waiting
+     */
+    /* package */ void acquire(long deadline, Cancellation cancellation) throws IOException {
+        final long now = System.currentTimeMillis();
+        final long until = deadline == 0 ? now + mMaxWait : Math.min(deadline, now + mMaxWait);
+        synchronized (this) {
+            try {
+                while (mInFlight >= (int) mLimit) {
+                    if (cancellation != null) cancellation.check();
+                    final long left = until - System.currentTimeMillis();
+                    if (left <= 0) {
+                        mRejected.incrementAndGet();
+                        throw new LimitExceededException((int) mLimit);
+                    }
+                    wait(cancellation == null ? left : Math.min(left, POLL));
+                }
+                mInFlight++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for concurrency limit");
+            }
+        }
+    }
+
+    /**
+     * Releases a slot and adapts the limit.
+     * @param rtt     round trip time of the request, in milliseconds
+     * @param dropped whether the request failed in a way which suggests overload
+     */
+    /* package */ void release(long rtt, boolean dropped) {
+        final int from, to;
+        synchronized (this) {
+            final int inFlight = mInFlight--;
+            from = (int) mLimit;
+            mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, adapt(mLimit, inFlight, rtt, dropped)));
+            to = (int) mLimit;
+            notifyAll();
+        }
+        if (from != to) {
+            mLimitChanges.incrementAndGet();
+            final Listener l = listener;
+            if (l != null) l.onLimitChange(from, to);
+        }
+    }
+
+    /** Releases a slot of a request which was not sent, without adapting the limit */
+    /* package */ synchronized void ignore() {
+        mInFlight--;
+        notify();
+    }
+
+    /* needs the lock */
+    private double adapt(double limit, int inFlight, long rtt, boolean dropped) {
+        if (mAlgorithm == Algorithm.AIMD) {
+            if (dropped || rtt >= SLOW_RTT) return limit * BACKOFF_RATIO;
+            // only grow while the limit is actually used
+            return inFlight * 2 >= limit ? limit + 1 / limit : limit;
+        }
+
+        final double sample = Math.max(1, rtt);
+        mLongRtt = mLongRtt == 0 ? sample : mLongRtt + (sample - mLongRtt) * 2 / (LONG_WINDOW + 1);
+        // recover quickly after a period of high latency, or the limit stays low for too long
+        if (mLongRtt / sample > 2) mLongRtt *= 0.95;
+
+        if (dropped) return limit * BACKOFF_RATIO;
+        if (inFlight * 2 < limit) return limit;
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * mLongRtt / sample));
+        final double target = limit * gradient + Math.sqrt(limit);
+        return limit * (1 - SMOOTHING) + target * SMOOTHING;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{" +
+                "algorithm=" + mAlgorithm +
+                ", limit=" + getLimit() +
+                ", inFlight=" + getInFlight() +
+                '}';
+    }
+
+    /** Gets informed when the limit changes */
+    public interface Listener {
+        void onLimitChange(int from, int to);
+    }
+
+    /** Thrown for requests which could not get a slot in time */
+    public static class LimitExceededException extends RejectedException {
+        private static final long serialVersionUID = 4619431728384906021L;
+
+        public LimitExceededException(int limit) {
+            super("concurrency limit exceeded (" + limit + ")");
+        }
+    }
+}
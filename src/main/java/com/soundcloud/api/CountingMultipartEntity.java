@@ -51,6 +51,7 @@ class CountingMultipartEntity implements HttpEntity {
         return mDelegate.isStreaming();
     }
 
+    /* every write gets its own counter, so progress restarts from 0 when the entity is replayed */
     public void writeTo(OutputStream outstream) throws IOException {
         mDelegate.writeTo(new CountingOutputStream(outstream, mListener));
     }
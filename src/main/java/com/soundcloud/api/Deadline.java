@@ -0,0 +1,100 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Enforces a request's deadline: the connect, socket and connection pool timeouts are limited
+ * to the remaining time, and the request gets aborted when the deadline expires before the
+ * deadline is {@link #disarm() disarmed}.
+ *
+ * @see Request#withDeadline(long)
+ */
+final class Deadline implements Runnable {
+    private static ScheduledExecutorService sTimer;
+
+    private final long mDeadline;
+    /** cleared when disarmed, so cancelled timer tasks don't keep requests around */
+    private final AtomicReference<HttpUriRequest> mRequest;
+    private final ScheduledFuture<?> mFuture;
+
+    private Deadline(HttpUriRequest request, long deadline, long remaining) {
+        mDeadline = deadline;
+        mRequest = new AtomicReference<HttpUriRequest>(request);
+        mFuture = timer().schedule(this, remaining, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param request  the request
+     * @param deadline the deadline, in milliseconds since the epoch
+     * @return the armed deadline, to be disarmed once the request completed
+     * @throws CloudAPI.DeadlineExceededException if the deadline has already expired
+     */
+    static Deadline arm(HttpUriRequest request, long deadline) throws CloudAPI.DeadlineExceededException {
+        return new Deadline(request, deadline, applyTimeouts(request, deadline));
+    }
+
+    /**
+     * Limits the request's timeouts to the remaining time.
+     * @return the remaining time, in milliseconds
+     * @throws CloudAPI.DeadlineExceededException if the deadline has already expired
+     */
+    static long applyTimeouts(HttpRequest request, long deadline) throws CloudAPI.DeadlineExceededException {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new CloudAPI.DeadlineExceededException("deadline expired");
+        final int timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+        final HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        ConnManagerParams.setTimeout(params, remaining);
+        return remaining;
+    }
+
+    /** Stops the timer, the request won't be aborted anymore */
+    void disarm() {
+        mRequest.set(null);
+        mFuture.cancel(false);
+    }
+
+    /**
+     * @param e an exception thrown by the request
+     * @return a {@link CloudAPI.DeadlineExceededException} if the deadline expired, otherwise e
+     */
+    IOException translate(IOException e) {
+        if (e instanceof CloudAPI.DeadlineExceededException || System.currentTimeMillis() < mDeadline) {
+            return e;
+        }
+        final IOException expired = new CloudAPI.DeadlineExceededException("deadline expired");
+        expired.initCause(e);
+        return expired;
+    }
+
+    @Override public void run() {
+        final HttpUriRequest request = mRequest.getAndSet(null);
+        if (request != null) request.abort();
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
@@ -0,0 +1,395 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges GET requests to cut tail latency: if no response arrived after the delay within which
+ * most requests to the same endpoint pattern complete (by default the 95th percentile of recent
+ * latencies), the request gets sent a second time, on another connection. Whichever response
+ * arrives first is returned, the other request is aborted.
+ *
+ * To cap the extra load, only a fraction of all requests (the budget, 5% by default) may be
+ * hedged. Endpoints without enough latency samples yet are not hedged.
+ *
+ * Requests are sent on the calling thread, hedges from a pool of daemon threads, subject to the
+ * deadline of the call they belong to.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * HedgingPolicy hedging = new HedgingPolicy();
+ * wrapper.setHedgingPolicy(hedging);
+ * ...
+ * System.out.println("hedges won: " + hedging.getHedgeWins() + "/" + hedging.getHedges());
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setHedgingPolicy(HedgingPolicy)
+ */
+public class HedgingPolicy {
+    public static final double PERCENTILE = 0.95;
+    /** Fraction of requests which may be hedged */
+    public static final double BUDGET     = 0.05;
+    /** Hedge delays are never shorter than this, in milliseconds */
+    public static final long   MIN_DELAY  = 5;
+    /** Number of latency samples kept per endpoint */
+    public static final int    SAMPLES    = 200;
+    /** Minimum number of samples before requests get hedged */
+    public static final int    MIN_SAMPLES = 20;
+    /** Maximum number of endpoint patterns to keep samples for, further ones are not hedged */
+    public static final int    MAX_PATTERNS = 500;
+
+    private final ConcurrentMap<String, Latencies> mLatencies = new ConcurrentHashMap<String, Latencies>();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+
+    private volatile double mPercentile = PERCENTILE, mBudget = BUDGET;
+    private volatile long mMinDelay = MIN_DELAY;
+    private ScheduledExecutorService mTimer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param percentile the latency percentile (0 - 1) after which to hedge
+     * @param minDelay   minimum delay before hedging, in milliseconds
+     */
+    public void setDelay(double percentile, long minDelay) {
+        if (percentile <= 0 || percentile > 1) throw new IllegalArgumentException("invalid percentile");
+        mPercentile = percentile;
+        mMinDelay = minDelay;
+    }
+
+    /** @param fraction fraction of requests (0 - 1) which may be hedged */
+    public void setBudget(double fraction) {
+        mBudget = fraction;
+    }
+
+    /** @return the number of requests which could have been hedged */
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /** @return the number of hedges sent */
+    public long getHedges() {
+        return mHedges.get();
+    }
+
+    /** @return the number of hedges which answered before the original request */
+    public long getHedgeWins() {
+        return mHedgeWins.get();
+    }
+
+    /** @return the fraction of hedges which answered first, between 0 and 1 */
+    public double getWinRate() {
+        final long hedges = mHedges.get();
+        return hedges == 0 ? 0 : (double) mHedgeWins.get() / hedges;
+    }
+
+    /**
+     * @param pattern the endpoint pattern
+     * @return the current hedge delay for the endpoint, in milliseconds, or -1 if it is not
+     * hedged (yet)
+     */
+    public long getDelay(String pattern) {
+        final Latencies latencies = pattern == null ? null : mLatencies.get(pattern);
+        return latencies == null ? -1 : latencies.percentile(mPercentile, mMinDelay);
+    }
+
+    /** Stops the threads used for hedged requests */
+    public synchronized void shutdown() {
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+            mTimer = null;
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Executes a GET request, hedging it if it takes too long. The request itself is sent on the
+     * calling thread, only the hedge goes to another thread.
+     * @param api     the wrapper used to send the requests
+     * @param req     the request
+     * @param primary the HTTP request built from <code>req</code>
+     * @return the first response
+     * @throws IOException if both requests failed
+     */
+    /* package */ HttpResponse execute(ApiWrapper api, Request req, HttpRequestBase primary) throws IOException {
+        final String pattern = req.getPattern();
+        final long delay = getDelay(pattern);
+        mRequests.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        if (delay < 0 || !hasBudget()) {
+            final HttpResponse response = api.execute(primary);
+            record(pattern, System.currentTimeMillis() - start);
+            return response;
+        }
+
+        // no thread is used unless the hedge actually gets sent
+        final Hedge hedge = new Hedge(api, req, primary);
+        final Future<?> timer = timer().schedule(hedge, delay, TimeUnit.MILLISECONDS);
+        HttpResponse response = null;
+        IOException error = null;
+        try {
+            response = api.execute(primary);
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            timer.cancel(false);
+            hedge.abandon();
+            throw e;
+        }
+        timer.cancel(false);
+        response = hedge.finish(response, error);
+        record(pattern, System.currentTimeMillis() - start);
+        return response;
+    }
+
+    /* package */ void record(String pattern, long latency) {
+        if (pattern == null) return;
+        Latencies latencies = mLatencies.get(pattern);
+        if (latencies == null) {
+            if (mLatencies.size() >= MAX_PATTERNS) return;
+            final Latencies created = new Latencies();
+            latencies = mLatencies.putIfAbsent(pattern, created);
+            if (latencies == null) latencies = created;
+        }
+        latencies.add(latency);
+    }
+
+    private boolean hasBudget() {
+        return mHedges.get() + 1 <= mBudget * mRequests.get();
+    }
+
+    private boolean acquireHedge() {
+        if (!hasBudget()) return false;
+        // a concurrent hedge might have taken the last one, don't care
+        mHedges.incrementAndGet();
+        return true;
+    }
+
+    /* releases the connection of a response which lost the race */
+    private static void discard(HttpResponse response) {
+        try {
+            if (response.getEntity() != null) response.getEntity().consumeContent();
+        } catch (IOException ignored) {
+            // aborted
+        }
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "HedgingPolicy-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mTimer;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "HedgingPolicy");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * The hedge of a request: runs on the timer once the hedge delay passed, and sends the request
+     * a second time from the pool unless the original request finished already. Whichever
+     * response arrives first wins, the other request gets aborted. The hedge is subject to the
+     * deadline of the call it belongs to; it is not part of the call's {@link RequestTiming}.
+     */
+    private class Hedge implements Runnable {
+        private final ApiWrapper mApi;
+        private final Request mReq;
+        private final HttpRequestBase mPrimary;
+        private final Long mDeadline = ApiWrapper.currentDeadline();
+
+        /* guarded by this */
+        private boolean mDecided, mSent, mDone;
+        private HttpRequestBase mRequest;
+        private HttpResponse mResponse;
+
+        Hedge(ApiWrapper api, Request req, HttpRequestBase primary) {
+            mApi = api;
+            mReq = req;
+            mPrimary = primary;
+        }
+
+        @Override public void run() {
+            final HttpRequestBase request;
+            synchronized (this) {
+                if (mDecided || !acquireHedge()) {
+                    mDone = true;
+                    return;
+                }
+                request = mRequest = mReq.buildRequest(HttpGet.class);
+                mSent = true;
+            }
+            try {
+                executor().execute(new Runnable() {
+                    @Override public void run() {
+                        send(request);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                synchronized (this) {
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void send(HttpRequestBase request) {
+            HttpResponse response = null;
+            final Long outerDeadline = ApiWrapper.beginDeadline(mDeadline);
+            try {
+                if (mReq.getCancellation() != null) mReq.getCancellation().attach(request);
+                response = execute(request);
+            } catch (IOException ignored) {
+                // the original request might still succeed
+            } catch (RuntimeException ignored) {
+            } finally {
+                ApiWrapper.endDeadline(outerDeadline);
+            }
+
+            final Cancellation cancellation = mReq.getCancellation();
+            final boolean won;
+            synchronized (this) {
+                won = response != null && !mDecided;
+                if (won) {
+                    mDecided = true;
+                    mResponse = cancellation == null ? response : cancellation.detachOnConsume(response, request);
+                }
+                mDone = true;
+                notifyAll();
+            }
+            if (won) {
+                mPrimary.abort();
+            } else {
+                if (cancellation != null) cancellation.detach(request);
+                if (response != null) discard(response);
+            }
+        }
+
+        private HttpResponse execute(HttpRequestBase request) throws IOException {
+            if (mDeadline == null) return mApi.execute(request);
+            final Deadline timer = Deadline.arm(request, mDeadline);
+            try {
+                return mApi.execute(request);
+            } finally {
+                timer.disarm();
+            }
+        }
+
+        /**
+         * Called on the calling thread once the original request returned.
+         * @param response the original response, or null if it failed
+         * @param error    the original request's error, or null
+         * @return the first response
+         * @throws IOException if both requests failed
+         */
+        HttpResponse finish(HttpResponse response, IOException error) throws IOException {
+            final HttpResponse hedged;
+            final HttpRequestBase loser;
+            synchronized (this) {
+                if (!mDecided && error != null && mSent) {
+                    // the hedge might still succeed
+                    try {
+                        while (!mDecided && !mDone) wait();
+                    } catch (InterruptedException e) {
+                        mDecided = true;
+                        mRequest.abort();
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while waiting for response");
+                    }
+                }
+                hedged = mResponse;
+                loser = hedged == null ? mRequest : null;
+                mDecided = true;
+                notifyAll();
+            }
+            if (hedged != null) {
+                mHedgeWins.incrementAndGet();
+                if (response != null) discard(response);
+                return hedged;
+            }
+            if (loser != null) loser.abort();
+            if (error != null) throw error;
+            return response;
+        }
+
+        /** The original request failed unexpectedly, stop the hedge */
+        void abandon() {
+            final HttpResponse hedged;
+            final HttpRequestBase loser;
+            synchronized (this) {
+                hedged = mResponse;
+                loser = mRequest;
+                mDecided = true;
+                notifyAll();
+            }
+            if (loser != null) loser.abort();
+            if (hedged != null) discard(hedged);
+        }
+    }
+
+    /** Recent latencies of an endpoint, with a cached percentile */
+    private static class Latencies {
+        private final long[] mSamples = new long[SAMPLES];
+        private int mCount, mNext, mSinceUpdate;
+        private double mCachedPercentile;
+        private long mCached = -1;
+
+        synchronized void add(long latency) {
+            mSamples[mNext] = latency;
+            mNext = (mNext + 1) % mSamples.length;
+            if (mCount < mSamples.length) mCount++;
+            mSinceUpdate++;
+        }
+
+        synchronized long percentile(double percentile, long min) {
+            if (mCount < MIN_SAMPLES) return -1;
+            // sorting is too expensive for every request, only do it every few samples
+            if (mCached < 0 || mSinceUpdate >= 10 || percentile != mCachedPercentile) {
+                final long[] sorted = Arrays.copyOf(mSamples, mCount);
+                Arrays.sort(sorted);
+                mCached = sorted[Math.min(mCount - 1, (int) Math.ceil(percentile * mCount) - 1)];
+                mCachedPercentile = percentile;
+                mSinceUpdate = 0;
+            }
+            return Math.max(min, mCached);
+        }
+    }
+}
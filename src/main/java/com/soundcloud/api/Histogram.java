@@ -0,0 +1,115 @@
+package com.soundcloud.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values (latencies, sizes), safe to record from any number
+ * of threads. Values are counted in buckets with 8 sub-buckets per power of two, so percentiles
+ * are accurate to within 12.5%; values below 16 are exact.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /** @param value the value to record, negative values are ignored */
+    public void record(long value) {
+        if (value < 0) return;
+        mBuckets.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) ;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * The values recorded so far. Values recorded while taking the snapshot may or may not be
+     * part of it.
+     * @return a copy of the counts
+     */
+    public Snapshot getSnapshot() {
+        final long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, mSum.get(), mMax.get());
+    }
+
+    /* package */ static int index(long value) {
+        final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /* package */ static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long mantissa = index - (shift << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /** An immutable copy of a histogram */
+    public static class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount, mSum, mMax;
+
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param percentile the percentile, e.g. <code>99.9</code>
+         * @return the value at or below which the given percentage of values fall, 0 if empty
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("invalid percentile");
+            if (mCount == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) return Math.min(upperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount +
+                    ", mean=" + Math.round(getMean()) +
+                    ", p50=" + getPercentile(50) +
+                    ", p99=" + getPercentile(99) +
+                    ", max=" + mMax;
+        }
+    }
+}
@@ -86,6 +86,7 @@ public class Http {
         HttpConnectionParams.setStaleCheckingEnabled(params, false);
 
         // fix contributed by Bjorn Roche XXX check if still needed
+        // (large bodies turn it back on per request, see ApiWrapper#prepareLargeBody)
         params.setBooleanParameter("http.protocol.expect-continue", false);
         params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRoute() {
             @Override
@@ -20,20 +20,38 @@ import org.apache.http.util.CharArrayBuffer;
 import java.io.IOException;
 import java.security.Principal;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
 
 class OAuth2Scheme implements AuthScheme {
     public HashMap<String, String> mParams;
     public HttpParams mHttpParams;
     private CloudAPI mApi;
+    private SingleFlight<Token> mRefresh;
+    private Hooks mHooks;
 
-    public static Pattern AUTHORIZATION_HEADER_PATTERN = Pattern.compile("^OAuth (\\w+)$");
+    private static final String AUTHORIZATION_PREFIX = "OAuth ";
 
     public OAuth2Scheme(CloudAPI api, HttpParams params) {
+        this(api, params, new Hooks(api));
+    }
+
+    public OAuth2Scheme(CloudAPI api, HttpParams params, Hooks hooks) {
+        this(api, params, new SingleFlight<Token>(), hooks);
+    }
+
+    /**
+     * @param api     the api
+     * @param params  HTTP parameters
+     * @param refresh coordinates token refreshes, shared by all schemes of one api instance
+     *                (not used if the hooks coordinate refreshes themselves)
+     * @param hooks   what the scheme needs from the api beyond {@link CloudAPI}
+     */
+    public OAuth2Scheme(CloudAPI api, HttpParams params, SingleFlight<Token> refresh, Hooks hooks) {
         mApi = api;
         mHttpParams = params;
         mParams = new HashMap<String, String>();
+        mRefresh = refresh;
+        mHooks = hooks;
     }
 
     @Override public String getSchemeName() {
@@ -58,24 +76,83 @@ class OAuth2Scheme implements AuthScheme {
 
     @Override public Header authenticate(Credentials credentials, HttpRequest request)
             throws AuthenticationException {
-        final String usedToken = extractToken(request);
-        // make sure only one refresh request gets sent out
-        synchronized (OAuth2Scheme.class) {
-            final Token apiToken = mApi.getToken();
-            if (apiToken == null || apiToken.access == null || apiToken.access.equals(usedToken)) {
-                if (mApi.invalidateToken() == null) {
-                    // we actually need to refresh it ourselves
-                    try {
-                        mApi.refreshToken();
-                    } catch (IOException e) {
-                        throw new AuthenticationException("Error refreshing token", e);
-                    } catch (IllegalStateException e) {
-                        throw new AuthenticationException("Error refreshing token", e);
-                    }
+        final Tracer tracer = mHooks.getTracer();
+        final Tracer.Span span = tracer == null ? null :
+                tracer.begin(Tracer.AUTHENTICATE, request == null ? null : request.getRequestLine().getUri());
+        if (span == null) return authorize(request);
+
+        final Header header;
+        try {
+            header = authorize(request);
+        } catch (AuthenticationException e) {
+            span.end(-1, -1, e);
+            throw e;
+        } catch (RuntimeException e) {
+            span.end(-1, -1, e);
+            throw e;
+        }
+        span.end(-1, -1, null);
+        return header;
+    }
+
+    private Header authorize(HttpRequest request) throws AuthenticationException {
+        final Header usedToken = request == null ? null : request.getFirstHeader(AUTH.WWW_AUTH_RESP);
+        final String user = request == null ? null : (String) request.getParams().getParameter(Request.USER);
+        // refreshing stalls the request, record it in the request's timing
+        final RequestTiming timing = RequestTiming.current();
+        final long start = System.nanoTime();
+        if (user != null && mHooks.supportsUsers()) {
+            // request made on behalf of a user from the token store
+            try {
+                return mHooks.authenticate(user, usedToken);
+            } catch (IOException e) {
+                throw new AuthenticationException("Error refreshing token", e);
+            } catch (IllegalStateException e) {
+                throw new AuthenticationException("Error refreshing token", e);
+            } finally {
+                if (timing != null) timing.refreshedToken(System.nanoTime() - start);
+            }
+        }
+        if (isStale(usedToken)) {
+            try {
+                if (mHooks.coordinatesRefreshes()) {
+                    // the api makes sure only one refresh request gets sent out
+                    refreshIfStale(usedToken);
+                } else {
+                    // make sure only one refresh request gets sent out, everybody else waits for it
+                    mRefresh.execute(new Callable<Token>() {
+                        @Override public Token call() throws IOException {
+                            return refreshIfStale(usedToken);
+                        }
+                    });
                 }
+            } catch (IOException e) {
+                throw new AuthenticationException("Error refreshing token", e);
+            } catch (IllegalStateException e) {
+                throw new AuthenticationException("Error refreshing token", e);
+            } finally {
+                if (timing != null) timing.refreshedToken(System.nanoTime() - start);
             }
-            return ApiWrapper.createOAuthHeader(mApi.getToken());
         }
+        return snapshot().header;
+    }
+
+    private Token refreshIfStale(Header usedToken) throws IOException {
+        // the token might have been replaced while we were waiting to get here
+        if (isStale(usedToken) && mApi.invalidateToken() == null) {
+            // we actually need to refresh it ourselves
+            return mApi.refreshToken();
+        }
+        return mApi.getToken();
+    }
+
+    /** @return true if the used token is still the current one (or there is none) */
+    private boolean isStale(Header usedToken) {
+        return snapshot().isStale(usedToken);
+    }
+
+    private TokenSnapshot snapshot() {
+        return mHooks.getTokenSnapshot();
     }
 
     @Override public void processChallenge(Header header) throws MalformedChallengeException {
@@ -131,23 +208,97 @@ class OAuth2Scheme implements AuthScheme {
     static String extractToken(Header h) {
         if (h ==null || h.getValue() == null) return null;
         if (AUTH.WWW_AUTH_RESP.equalsIgnoreCase(h.getName())) {
-            Matcher m = AUTHORIZATION_HEADER_PATTERN.matcher(h.getValue());
-            return m.matches() ? m.group(1) : null;
+            final String value = h.getValue();
+            if (!value.startsWith(AUTHORIZATION_PREFIX) || value.length() == AUTHORIZATION_PREFIX.length()) {
+                return null;
+            }
+            for (int i = AUTHORIZATION_PREFIX.length(); i < value.length(); i++) {
+                if (!isWordChar(value.charAt(i))) return null;
+            }
+            return value.substring(AUTHORIZATION_PREFIX.length());
         } else {
             return null;
         }
     }
 
+    /** @return true if the header carries the given access token (same as comparing with
+     *  {@link #extractToken(Header)}, without allocating) */
+    static boolean usesToken(Header h, String access) {
+        if (h == null || h.getValue() == null || !AUTH.WWW_AUTH_RESP.equalsIgnoreCase(h.getName())) return false;
+        final String value = h.getValue();
+        final int prefix = AUTHORIZATION_PREFIX.length();
+        if (value.length() != prefix + access.length() || access.length() == 0 ||
+            !value.startsWith(AUTHORIZATION_PREFIX) ||
+            !value.regionMatches(prefix, access, 0, access.length())) return false;
+
+        for (int i = prefix; i < value.length(); i++) {
+            if (!isWordChar(value.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /* matches the regex \w */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * What the scheme needs from its api beyond {@link CloudAPI}. The defaults work with any
+     * implementation, {@link ApiWrapper} overrides them.
+     */
+    static class Hooks {
+        private final CloudAPI mApi;
+
+        Hooks(CloudAPI api) {
+            mApi = api;
+        }
+
+        /** @return the tracer recording authentications, or null */
+        Tracer getTracer() {
+            return null;
+        }
+
+        /** @return the current token of the api */
+        TokenSnapshot getTokenSnapshot() {
+            return new TokenSnapshot(mApi.getToken());
+        }
+
+        /** @return true if requests can be made on behalf of a user ({@link Request#USER}) */
+        boolean supportsUsers() {
+            return false;
+        }
+
+        /**
+         * Handles a rejected token of a user, only called if {@link #supportsUsers()}.
+         * @return the Authorization header to use instead
+         */
+        Header authenticate(String user, Header usedToken) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        /** @return true if the api makes sure only one refresh request gets sent out */
+        boolean coordinatesRefreshes() {
+            return false;
+        }
+    }
+
     static class Factory implements AuthSchemeFactory {
         private CloudAPI api;
+        private Hooks hooks;
+        private final SingleFlight<Token> refresh = new SingleFlight<Token>();
 
         public Factory(CloudAPI api) {
+            this(api, new Hooks(api));
+        }
+
+        public Factory(CloudAPI api, Hooks hooks) {
             this.api = api;
+            this.hooks = hooks;
         }
 
         @Override
         public AuthScheme newInstance(HttpParams params) {
-            return new OAuth2Scheme(api, params);
+            return new OAuth2Scheme(api, params, refresh, hooks);
         }
     }
 
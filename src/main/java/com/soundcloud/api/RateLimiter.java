@@ -0,0 +1,313 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of requests made by a wrapper, to stay within the API quotas.
+ *
+ * Requests have to pass up to three token buckets: a global one, one for their endpoint pattern
+ * (see {@link #setEndpointLimit(String, double, int)}), and one for the token they are made with
+ * (see {@link #setTokenLimit(double, int)}). A bucket holds up to <code>burst</code> permits and
+ * gets refilled with <code>rate</code> permits per second.
+ *
+ * When the server answers with 429 (Too Many Requests), all buckets the request went through
+ * are paused for the time given in the <code>Retry-After</code> header (or one second) and
+ * their rate is halved; every successful response then adds back a bit of the configured
+ * rate, so throughput settles at what the server accepts.
+ *
+ * Depending on the {@link Policy}, requests which can't get a permit right away either wait
+ * for one (up to a maximum wait), or fail with a {@link RateLimitedException}.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * RateLimiter limiter = new RateLimiter(50, 100);
+ * limiter.setEndpointLimit(Endpoints.TRACKS, 5, 10);
+ * wrapper.setRateLimiter(limiter);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setRateLimiter(RateLimiter)
+ */
+public class RateLimiter {
+    /** Maximum time to wait for a permit with {@link Policy#QUEUE} */
+    public static final long MAX_WAIT = 30 * 1000;
+    /** Pause after a 429 response without Retry-After */
+    public static final long PAUSE = 1000;
+    /** Maximum number of tokens to keep buckets for */
+    public static final int MAX_TOKENS = 10000;
+
+    /** What to do with requests which can't get a permit right away */
+    public enum Policy {
+        /** Wait for a permit, up to a maximum time */
+        QUEUE,
+        /** Throw a {@link RateLimitedException} */
+        FAIL_FAST
+    }
+
+    private final Bucket mGlobal;
+    private final Map<String, Bucket> mEndpoints = new ConcurrentHashMap<String, Bucket>();
+    private final Map<String, Bucket> mTokens = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        private static final long serialVersionUID = -2570389370593452413L;
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    };
+    private final AtomicLong mDelayed = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+
+    private volatile double mTokenRate;
+    private volatile int mTokenBurst;
+    private volatile Policy mPolicy = Policy.QUEUE;
+    private volatile long mMaxWait = MAX_WAIT;
+
+    /**
+     * @param rate  permits per second for all requests
+     * @param burst maximum number of permits which can be used at once
+     */
+    public RateLimiter(double rate, int burst) {
+        mGlobal = new Bucket(rate, burst, System.currentTimeMillis());
+    }
+
+    /**
+     * Limits requests to one endpoint.
+     * @param pattern the endpoint pattern, as passed to {@link Request#to(String, Object...)},
+     *                e.g. {@link Endpoints#TRACK_DETAILS}
+     * @param rate    permits per second
+     * @param burst   maximum number of permits which can be used at once
+     */
+    public void setEndpointLimit(String pattern, double rate, int burst) {
+        mEndpoints.put(pattern, new Bucket(rate, burst, System.currentTimeMillis()));
+    }
+
+    /**
+     * Limits requests per token (or per user, for requests made {@link Request#forUser(String)}).
+     * Buckets are kept under a digest of the access token, not the token itself.
+     * @param rate    permits per second, 0 to disable
+     * @param burst   maximum number of permits which can be used at once
+     */
+    public void setTokenLimit(double rate, int burst) {
+        mTokenRate = rate;
+        mTokenBurst = burst;
+        synchronized (mTokens) {
+            mTokens.clear();
+        }
+    }
+
+    /**
+     * @param policy  what to do with requests which can't get a permit right away
+     * @param maxWait with {@link Policy#QUEUE}, the longest time to wait for a permit, in
+     *                milliseconds; requests which would have to wait longer fail
+     */
+    public void setPolicy(Policy policy, long maxWait) {
+        mPolicy = policy;
+        mMaxWait = maxWait;
+    }
+
+    /** @return the number of requests which had to wait for a permit */
+    public long getDelayed() {
+        return mDelayed.get();
+    }
+
+    /** @return the number of requests which failed because no permit was available */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /** @return the number of 429 responses seen */
+    public long getThrottled() {
+        return mThrottled.get();
+    }
+
+    /** @return the current global rate, in permits per second, possibly reduced after 429s */
+    public double getRate() {
+        return mGlobal.rate();
+    }
+
+    /**
+     * Gets a permit, waiting for it if necessary.
+     * @param pattern the endpoint pattern of the request
+     * @param token   the token (or user) the request is made with, or null
+     * @param deadline the request's deadline, or 0
+     * @param cancellation the request's cancellation handle, or null
+     * @throws RateLimitedException if no permit is available in time
+     * @throws InterruptedIOException if interrupted or cancelled while waiting
+     */
+    /* package */ void acquire(String pattern, String token, long deadline, Cancellation cancellation)
+            throws IOException {
+        final long now = System.currentTimeMillis();
+        final long wait = reserve(pattern, token, now, deadline == 0 ? Long.MAX_VALUE : deadline - now);
+        if (wait < 0) {
+            throw new RateLimitedException("rate limit exceeded for " + pattern);
+        } else if (wait > 0) {
+            Cancellation.sleep(cancellation, wait);
+        }
+    }
+
+    /**
+     * @return the time to wait for the reserved permit, or -1 if no permit could be reserved
+     */
+    /* package */ long reserve(String pattern, String token, long now) {
+        return reserve(pattern, token, now, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxWait the longest acceptable wait, regardless of the policy
+     * @return the time to wait for the reserved permit, or -1 if no permit could be reserved
+     */
+    /* package */ long reserve(String pattern, String token, long now, long maxWait) {
+        final Bucket[] buckets = buckets(pattern, token, now);
+        final long limit = Math.min(maxWait, mPolicy == Policy.FAIL_FAST ? 0 : mMaxWait);
+        long wait = 0;
+        int reserved = 0;
+        for (Bucket bucket : buckets) {
+            if (bucket == null) continue;
+            final long w = bucket.reserve(now, limit);
+            if (w < 0) {
+                // give back what we got so far
+                for (int i = 0; i < reserved; i++) {
+                    if (buckets[i] != null) buckets[i].refund();
+                }
+                mRejected.incrementAndGet();
+                return -1;
+            }
+            wait = Math.max(wait, w);
+            reserved++;
+        }
+        if (wait > 0) mDelayed.incrementAndGet();
+        return wait;
+    }
+
+    /**
+     * Adjusts the buckets after a response.
+     * @param pattern  the endpoint pattern of the request
+     * @param token    the token (or user) the request was made with, or null
+     * @param response the response
+     */
+    /* package */ void onResponse(String pattern, String token, HttpResponse response, long now) {
+        final boolean throttled = response.getStatusLine().getStatusCode() == 429;
+        final long pause = throttled ? Math.max(RetryPolicy.retryAfter(response, now), PAUSE) : 0;
+        if (throttled) mThrottled.incrementAndGet();
+        for (Bucket bucket : buckets(pattern, token, now)) {
+            if (bucket == null) continue;
+            if (throttled) {
+                bucket.throttle(now, pause);
+            } else {
+                bucket.recover();
+            }
+        }
+    }
+
+    /**
+     * @param access the access token
+     * @return the key to keep the token's bucket under, a SHA-256 digest in hex
+     */
+    /* package */ static String key(String access) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(access.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Bucket[] buckets(String pattern, String token, long now) {
+        Bucket tokenBucket = null;
+        final double tokenRate = mTokenRate;
+        if (token != null && tokenRate > 0) {
+            synchronized (mTokens) {
+                tokenBucket = mTokens.get(token);
+                if (tokenBucket == null) {
+                    tokenBucket = new Bucket(tokenRate, mTokenBurst, now);
+                    mTokens.put(token, tokenBucket);
+                }
+            }
+        }
+        return new Bucket[] { mGlobal, pattern == null ? null : mEndpoints.get(pattern), tokenBucket };
+    }
+
+    /** A token bucket, whose permits can go negative to hand out reservations */
+    static class Bucket {
+        /** configured rate, in permits per millisecond */
+        private final double mMaxRate;
+        private final int mBurst;
+        private double mRate;
+        private double mPermits;
+        private long mLast;
+        private long mPausedUntil;
+
+        Bucket(double rate, int burst, long now) {
+            if (rate <= 0 || burst < 1) throw new IllegalArgumentException("need positive rate and burst");
+            mMaxRate = mRate = rate / 1000d;
+            mBurst = burst;
+            mPermits = burst;
+            mLast = now;
+        }
+
+        /**
+         * @param now   the current time
+         * @param limit maximum acceptable wait
+         * @return the time to wait for the reserved permit, or -1 if it would take longer than limit
+         */
+        synchronized long reserve(long now, long limit) {
+            refill(now);
+            final double permits = mPermits - 1;
+            final long wait = Math.max(permits >= 0 ? 0 : (long) Math.ceil(-permits / mRate), mPausedUntil - now);
+            if (wait > limit) return -1;
+            mPermits = permits;
+            return wait;
+        }
+
+        synchronized void refund() {
+            mPermits = Math.min(mBurst, mPermits + 1);
+        }
+
+        synchronized void throttle(long now, long pause) {
+            refill(now);
+            mPausedUntil = Math.max(mPausedUntil, now + pause);
+            mRate = Math.max(mMaxRate / 100, mRate / 2);
+            mPermits = Math.min(mPermits, 0);
+        }
+
+        synchronized void recover() {
+            mRate = Math.min(mMaxRate, mRate + mMaxRate / 100);
+        }
+
+        synchronized double rate() {
+            return mRate * 1000d;
+        }
+
+        private void refill(long now) {
+            if (now > mLast) {
+                mPermits = Math.min(mBurst, mPermits + (now - mLast) * mRate);
+                mLast = now;
+            }
+        }
+    }
+
+    /** Thrown when a request can't get a permit in time */
+    public static class RateLimitedException extends RejectedException {
+        private static final long serialVersionUID = -4106429937245811463L;
+
+        public RateLimitedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+
+/**
+ * Thrown for calls the wrapper rejected locally, without sending them: by the
+ * {@link RateLimiter}, a {@link CircuitBreaker}, a {@link Bulkhead}, the
+ * {@link ConcurrencyLimiter} or the {@link RequestScheduler}. These calls are not retried, and
+ * don't count as failures of the endpoint.
+ */
+public class RejectedException extends IOException {
+    private static final long serialVersionUID = 1852935316270143682L;
+
+    public RejectedException(String message) {
+        super(message);
+    }
+}
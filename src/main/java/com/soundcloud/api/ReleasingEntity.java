@@ -0,0 +1,81 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a callback once the content of a response has been consumed, read to the end or closed -
+ * the same points at which the connection gets released to the pool. Should the response be
+ * dropped without any of this happening, the callback runs once it gets garbage collected.
+ */
+final class ReleasingEntity extends HttpEntityWrapper implements EofSensorWatcher {
+    private final Runnable mRelease;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
+    private ReleasingEntity(HttpEntity wrapped, Runnable release) {
+        super(wrapped);
+        mRelease = release;
+    }
+
+    /**
+     * @param response the response
+     * @param release  the callback, run right away if the response has no streamed content
+     *                 (redirects and other header-only responses often have an empty one)
+     * @return the response
+     */
+    static HttpResponse releaseOnConsume(HttpResponse response, Runnable release) {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null || !entity.isStreaming() || entity.getContentLength() == 0) {
+            release.run();
+        } else {
+            response.setEntity(new ReleasingEntity(entity, release));
+        }
+        return response;
+    }
+
+    @Override public InputStream getContent() throws IOException {
+        return new EofSensorInputStream(wrappedEntity.getContent(), this);
+    }
+
+    @Override public void consumeContent() throws IOException {
+        try {
+            super.consumeContent();
+        } finally {
+            release();
+        }
+    }
+
+    @Override public boolean eofDetected(InputStream wrapped) throws IOException {
+        release();
+        return true;
+    }
+
+    @Override public boolean streamClosed(InputStream wrapped) throws IOException {
+        release();
+        return true;
+    }
+
+    @Override public boolean streamAbort(InputStream wrapped) throws IOException {
+        release();
+        return true;
+    }
+
+    @Override protected void finalize() throws Throwable {
+        try {
+            release();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private void release() {
+        if (mReleased.compareAndSet(false, true)) mRelease.run();
+    }
+}
@@ -42,13 +42,23 @@ import java.util.Map;
  *  </code>
  */
 public class Request implements Iterable<NameValuePair> {
+    /** HTTP parameter carrying the user a request is made for */
+    /* package */ static final String USER = "com.soundcloud.api.user";
+
     private List<NameValuePair> mParams = new ArrayList<NameValuePair>(); // XXX should probably be lazy
     private Map<String, File> mFiles;
     private Map<String, ByteBuffer> mByteBuffers;
     private HttpEntity mEntity;
 
     private Token mToken;
+    private String mUser;
+    /** absolute time in milliseconds, 0 if none */
+    private long mDeadline;
+    private Cancellation mCancellation;
+    private Priority mPriority = Priority.DEFAULT;
     private String mResource;
+    /** the resource before formatting, e.g. {@link Endpoints#TRACK_DETAILS} */
+    private String mPattern;
     private TransferProgressListener listener;
 
     /** Empty request */
@@ -82,10 +92,17 @@ public class Request implements Iterable<NameValuePair> {
      */
     public Request(Request request) {
         mResource = request.mResource;
+        mPattern = request.mPattern;
         mToken = request.mToken;
+        mUser = request.mUser;
+        mDeadline = request.mDeadline;
+        mCancellation = request.mCancellation;
+        mPriority = request.mPriority;
         listener = request.listener;
         mParams = new ArrayList<NameValuePair>(request.mParams);
         if (request.mFiles != null) mFiles = new HashMap<String, File>(request.mFiles);
+        if (request.mByteBuffers != null) mByteBuffers = new HashMap<String, ByteBuffer>(request.mByteBuffers);
+        mEntity = request.mEntity;
     }
 
     /**
@@ -98,7 +115,10 @@ public class Request implements Iterable<NameValuePair> {
     public static Request to(String resource, Object... args) {
         if (args != null &&
             args.length > 0) {
-            resource = String.format(resource, args);
+            final Request request = new Request(String.format(resource, args));
+            final int query = resource.indexOf('?');
+            request.mPattern = query == -1 ? resource : resource.substring(0, query);
+            return request;
         }
         return new Request(resource);
     }
@@ -138,6 +158,69 @@ public class Request implements Iterable<NameValuePair> {
         return this;
     }
 
+    /**
+     * The request should be made on behalf of a user, with the token from the wrapper's token store.
+     * @param user the user id
+     * @return this
+     * @see ApiWrapper#setTokenStore(TokenStore)
+     */
+    public Request forUser(String user) {
+        mUser = user;
+        return this;
+    }
+
+    /**
+     * Limits the time the whole call may take: waiting for a connection, connecting, sending,
+     * receiving the response, retries and token refreshes. Work still in progress when the
+     * deadline expires gets aborted, and the call fails with a
+     * {@link CloudAPI.DeadlineExceededException}.
+     * @param deadline the deadline, in milliseconds since the epoch (see
+     *                 {@link System#currentTimeMillis()}), 0 for none
+     * @return this
+     */
+    public Request withDeadline(long deadline) {
+        mDeadline = deadline;
+        return this;
+    }
+
+    /**
+     * Sets a deadline <code>millis</code> from now.
+     * @param millis the time the call may take, in milliseconds
+     * @return this
+     * @see #withDeadline(long)
+     */
+    public Request withTimeout(long millis) {
+        return withDeadline(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * @param cancellation a handle to cancel the call with, or null
+     * @return this
+     */
+    public Request withCancellation(Cancellation cancellation) {
+        mCancellation = cancellation;
+        return this;
+    }
+
+    /** @return the handle to cancel the call with, or null */
+    public Cancellation getCancellation() {
+        return mCancellation;
+    }
+
+    /**
+     * @param priority the priority, used by {@link RequestScheduler}
+     * @return this
+     */
+    public Request withPriority(Priority priority) {
+        if (priority == null) throw new IllegalArgumentException("need a priority");
+        mPriority = priority;
+        return this;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
     /** @return the size of the parameters */
     public int size() {
         return mParams.size();
@@ -291,6 +374,9 @@ public class Request implements Iterable<NameValuePair> {
             if (mToken != null) {
                 request.addHeader(ApiWrapper.createOAuthHeader(mToken));
             }
+            if (mUser != null) {
+                request.getParams().setParameter(USER, mUser);
+            }
             return request;
         } catch (InstantiationException e) {
             throw new RuntimeException(e);
@@ -322,11 +408,58 @@ public class Request implements Iterable<NameValuePair> {
         return mToken;
     }
 
+    /** @return the deadline, or 0 */
+    /* package */ long getDeadline() {
+        return mDeadline;
+    }
+
+    /* package */ String getUser() {
+        return mUser;
+    }
+
+    /* package */ String getResource() {
+        return mResource;
+    }
+
+    /**
+     * @return the resource pattern this request was made from (like {@link Endpoints#TRACK_DETAILS}),
+     * or the resource if it wasn't formatted
+     */
+    /* package */ String getPattern() {
+        return mPattern == null ? mResource : mPattern;
+    }
+
+    /* package */ Request withPattern(String pattern) {
+        mPattern = pattern;
+        return this;
+    }
+
+    /* package */ Map<String, File> getFiles() {
+        return mFiles;
+    }
+
+    /** @return true if the request contains data which is only held in memory (byte buffers, entities) */
+    /* package */ boolean hasInMemoryContent() {
+        return (mByteBuffers != null && !mByteBuffers.isEmpty()) || mEntity != null;
+    }
+
     /* package */ TransferProgressListener getListener() {
         return listener;
     }
 
 
+    /**
+     * Priorities of requests, highest first.
+     * @see RequestScheduler
+     */
+    public enum Priority {
+        /** A user is waiting for the response */
+        INTERACTIVE,
+        DEFAULT,
+        /** Background work, e.g. crawling or syncing */
+        BULK
+    }
+
     /**
      * Updates about the amount of bytes already transferred.
      */
@@ -354,12 +487,17 @@ public class Request implements Iterable<NameValuePair> {
         }
     }
 
+    /**
+     * Body backed by a ByteBuffer. The buffer itself is never modified, every call to
+     * {@link #writeTo(java.io.OutputStream)} works on a duplicate, which makes the body repeatable
+     * (needed to replay the request after an auth challenge).
+     */
     static class ByteBufferBody extends AbstractContentBody {
-        private ByteBuffer mBuffer;
+        private final ByteBuffer mBuffer;
 
         public ByteBufferBody(ByteBuffer buffer) {
             super("application/octet-stream");
-            mBuffer = buffer;
+            mBuffer = buffer.duplicate();
         }
 
         @Override
@@ -377,17 +515,21 @@ public class Request implements Iterable<NameValuePair> {
 
         @Override
         public long getContentLength() {
-            return mBuffer.capacity();
+            return mBuffer.remaining();
         }
 
         @Override
         public void writeTo(OutputStream out) throws IOException {
-            if (mBuffer.hasArray()) {
-                out.write(mBuffer.array());
+            final ByteBuffer buffer = mBuffer.duplicate();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
             } else {
-                byte[] dst = new byte[mBuffer.capacity()];
-                mBuffer.get(dst);
-                out.write(dst);
+                byte[] dst = new byte[Math.min(Http.BUFFER_SIZE, buffer.remaining())];
+                while (buffer.hasRemaining()) {
+                    final int n = Math.min(dst.length, buffer.remaining());
+                    buffer.get(dst, 0, n);
+                    out.write(dst, 0, n);
+                }
             }
         }
     }
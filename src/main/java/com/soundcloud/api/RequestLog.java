@@ -0,0 +1,273 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent request and response events of a wrapper in memory, to look at when
+ * something goes wrong. Unlike {@link ApiWrapper#debugRequests} it does not block the calling
+ * threads (events go into a lock-free ring buffer) and leaves out credentials: tokens, secrets,
+ * passwords and authorization codes are redacted from parameters and query strings.
+ *
+ * Only a sample of the calls is kept, failures are always kept. Events can be dumped with
+ * {@link #dump()}, or get handed to a {@link Listener} together with the recent events when a
+ * call fails.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * RequestLog log = new RequestLog(RequestLog.CAPACITY);
+ * log.setSampleRate(0.01);
+ * log.setListener(new RequestLog.Listener() {
+ *     public void onError(RequestLog.Event event, List&lt;RequestLog.Event&gt; recent) {
+ *         for (RequestLog.Event e : recent) log(e);
+ *     }
+ * });
+ * wrapper.setRequestLog(log);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setRequestLog(RequestLog)
+ */
+public class RequestLog {
+    public static final int CAPACITY = 256;
+    public static final String REDACTED = "[redacted]";
+
+    private static final Set<String> SECRETS = new HashSet<String>(Arrays.asList(
+            "oauth_token", "access_token", "refresh_token", "oauth1_token",
+            "client_secret", "password", "code"));
+
+    public enum Type { REQUEST, RESPONSE, ERROR }
+
+    private final AtomicReferenceArray<Event> mEvents;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mCalls = new AtomicLong();
+
+    private volatile double mSampleRate = 1;
+    private volatile Listener listener;
+
+    /** @param capacity the number of events kept */
+    public RequestLog(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("invalid capacity");
+        mEvents = new AtomicReferenceArray<Event>(capacity);
+    }
+
+    /** @param rate fraction of calls to keep, from 0 to 1 (all calls, the default) */
+    public void setSampleRate(double rate) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("invalid rate");
+        mSampleRate = rate;
+    }
+
+    public double getSampleRate() {
+        return mSampleRate;
+    }
+
+    /** @param listener gets informed about failed calls, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getCapacity() {
+        return mEvents.length();
+    }
+
+    /** @return the number of events recorded so far, including the ones no longer kept */
+    public long getRecorded() {
+        return mSequence.get();
+    }
+
+    /**
+     * Events recorded while dumping may or may not be part of it.
+     * @return the events kept, oldest first
+     */
+    public List<Event> dump() {
+        final List<Event> events = new ArrayList<Event>(mEvents.length());
+        for (int i = 0; i < mEvents.length(); i++) {
+            final Event event = mEvents.get(i);
+            if (event != null) events.add(event);
+        }
+        Collections.sort(events, new Comparator<Event>() {
+            @Override public int compare(Event a, Event b) {
+                return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+            }
+        });
+        return events;
+    }
+
+    /** @return whether the next call should be kept, spreads sampled calls evenly */
+    /* package */ boolean sample() {
+        final double rate = mSampleRate;
+        if (rate >= 1) return true;
+        final long n = mCalls.incrementAndGet();
+        return (long) (n * rate) != (long) ((n - 1) * rate);
+    }
+
+    /* package */ void request(Request req, String method, int attempt) {
+        add(new Event(Type.REQUEST, req, method, attempt));
+    }
+
+    /* package */ void response(Request req, String method, int attempt, long duration, HttpResponse response) {
+        final Event event = new Event(Type.RESPONSE, req, method, attempt);
+        event.mDuration = duration;
+        event.mStatus = response.getStatusLine().getStatusCode();
+        add(event);
+        if (event.mStatus >= 500) failed(event);
+    }
+
+    /* package */ void error(Request req, String method, int attempt, long duration, IOException e) {
+        final Event event = new Event(Type.ERROR, req, method, attempt);
+        event.mDuration = duration;
+        event.mError = e.getClass().getName() + ": " + redact(String.valueOf(e.getMessage()));
+        add(event);
+        failed(event);
+    }
+
+    private void add(Event event) {
+        event.mSequence = mSequence.getAndIncrement();
+        mEvents.set((int) (event.mSequence % mEvents.length()), event);
+    }
+
+    private void failed(Event event) {
+        final Listener l = listener;
+        if (l != null) l.onError(event, dump());
+    }
+
+    /* package */ static String redact(String resource) {
+        final int query = resource.indexOf('?');
+        if (query == -1) return resource;
+
+        final StringBuilder sb = new StringBuilder(resource.length()).append(resource, 0, query + 1);
+        final String[] pairs = resource.substring(query + 1).split("&");
+        for (int i = 0; i < pairs.length; i++) {
+            if (i > 0) sb.append('&');
+            final int eq = pairs[i].indexOf('=');
+            if (eq != -1 && SECRETS.contains(pairs[i].substring(0, eq))) {
+                sb.append(pairs[i], 0, eq + 1).append(REDACTED);
+            } else {
+                sb.append(pairs[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* package */ static String params(Request req) {
+        final StringBuilder sb = new StringBuilder();
+        for (NameValuePair param : req) {
+            if (sb.length() > 0) sb.append('&');
+            sb.append(param.getName()).append('=')
+              .append(SECRETS.contains(param.getName()) ? REDACTED : param.getValue());
+        }
+        return sb.toString();
+    }
+
+    /** A request sent, or its outcome */
+    public static class Event {
+        private final Type mType;
+        private final long mTime;
+        private final String mThread;
+        private final String mMethod, mPattern, mResource, mParams;
+        private final int mAttempt;
+
+        private long mSequence;
+        private long mDuration = -1;
+        private int mStatus = -1;
+        private String mError;
+
+        private Event(Type type, Request req, String method, int attempt) {
+            mType = type;
+            mTime = System.currentTimeMillis();
+            mThread = Thread.currentThread().getName();
+            mMethod = method;
+            mPattern = req.getPattern();
+            mResource = redact(req.getResource());
+            mParams = type == Type.REQUEST ? params(req) : null;
+            mAttempt = attempt;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        /** @return when the event happened, in milliseconds since the epoch */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** @return the name of the thread making the call */
+        public String getThread() {
+            return mThread;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        /** @return the endpoint pattern, e.g. {@link Endpoints#TRACK_DETAILS} */
+        public String getPattern() {
+            return mPattern;
+        }
+
+        /** @return the resource, with credentials redacted */
+        public String getResource() {
+            return mResource;
+        }
+
+        /** @return the parameters of a {@link Type#REQUEST}, with credentials redacted, or null */
+        public String getParams() {
+            return mParams;
+        }
+
+        /** @return the attempt number, starting with 1 */
+        public int getAttempt() {
+            return mAttempt;
+        }
+
+        /** @return the response status of a {@link Type#RESPONSE}, or -1 */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /** @return duration of the attempt in milliseconds, -1 for a {@link Type#REQUEST} */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /** @return the error of an {@link Type#ERROR}, or null */
+        public String getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder()
+                    .append(mTime).append(' ').append('[').append(mThread).append("] ")
+                    .append(mType).append(' ').append(mMethod).append(' ').append(mResource)
+                    .append(" attempt=").append(mAttempt);
+            if (mParams != null && mParams.length() > 0) sb.append(" params=").append(mParams);
+            if (mStatus != -1) sb.append(" status=").append(mStatus);
+            if (mDuration != -1) sb.append(" duration=").append(mDuration);
+            if (mError != null) sb.append(" error=").append(mError);
+            return sb.toString();
+        }
+    }
+
+    /** Gets informed about failed calls (network errors and 5xx responses) */
+    public interface Listener {
+        /**
+         * Called on the calling thread, so it should return quickly.
+         * @param event  the failure
+         * @param recent the events kept, oldest first, including the failure
+         */
+        void onError(Event event, List<Event> recent);
+    }
+}
@@ -0,0 +1,213 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency, response size and status counts of the calls a wrapper makes, per endpoint pattern
+ * (as passed to {@link Request#to(String, Object...)}, e.g. {@link Endpoints#TRACK_DETAILS}, not
+ * the formatted resource). A call is counted once, however often it was retried; its latency is
+ * the time until the final response arrived (or the call failed), retries and waits included.
+ *
+ * Recording is lock-free. Use {@link #getSnapshot(String)} to read the numbers, or install a
+ * {@link Listener} to pass every call on to another metrics system.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * RequestMetrics metrics = new RequestMetrics();
+ * wrapper.setRequestMetrics(metrics);
+ * ...
+ * long p99 = metrics.getSnapshot(Endpoints.TRACK_DETAILS).getLatency().getPercentile(99);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setRequestMetrics(RequestMetrics)
+ */
+public class RequestMetrics {
+    /** Maximum number of patterns tracked, calls to further ones are counted under {@link #OTHER} */
+    public static final int MAX_PATTERNS = 500;
+    public static final String OTHER = "other";
+
+    private final ConcurrentMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<String, Endpoint>();
+    private volatile Listener listener;
+
+    /** @param listener gets informed about every call, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param pattern the endpoint pattern
+     * @return the numbers for this pattern, or null if no call was made to it
+     */
+    public Snapshot getSnapshot(String pattern) {
+        final Endpoint endpoint = mEndpoints.get(pattern);
+        return endpoint == null ? null : endpoint.snapshot(pattern);
+    }
+
+    /** @return the numbers of all patterns called so far */
+    public Map<String, Snapshot> getSnapshots() {
+        final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+        for (Map.Entry<String, Endpoint> e : mEndpoints.entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().snapshot(e.getKey()));
+        }
+        return snapshots;
+    }
+
+    /**
+     * @param pattern  the endpoint pattern
+     * @param method   the HTTP method
+     * @param response the final response, or null if the call failed
+     * @param latency  duration of the call in milliseconds
+     * @param attempts number of attempts made
+     */
+    /* package */ void record(String pattern, String method, HttpResponse response, long latency, int attempts) {
+        final int status;
+        final long size;
+        if (response == null) {
+            status = -1;
+            size = -1;
+        } else {
+            final HttpEntity entity = response.getEntity();
+            status = response.getStatusLine().getStatusCode();
+            size = entity == null ? 0 : entity.getContentLength();
+        }
+        final String key = key(pattern);
+        endpoint(key).record(status, latency, size, attempts);
+
+        final Listener l = listener;
+        if (l != null) l.onCall(key, method, status, latency, size, attempts);
+    }
+
+    private Endpoint endpoint(String key) {
+        Endpoint endpoint = mEndpoints.get(key);
+        if (endpoint == null) {
+            if (mEndpoints.size() >= MAX_PATTERNS && !OTHER.equals(key)) return endpoint(OTHER);
+            final Endpoint created = new Endpoint();
+            endpoint = mEndpoints.putIfAbsent(key, created);
+            if (endpoint == null) endpoint = created;
+        }
+        return endpoint;
+    }
+
+    private String key(String pattern) {
+        if (pattern == null) return OTHER;
+        final int query = pattern.indexOf('?');
+        return query == -1 ? pattern : pattern.substring(0, query);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics" + getSnapshots();
+    }
+
+    private static class Endpoint {
+        final Histogram latency = new Histogram();
+        final Histogram size = new Histogram();
+        /** failed calls, 1xx, 2xx, 3xx, 4xx, 5xx */
+        final AtomicLongArray statuses = new AtomicLongArray(6);
+        final AtomicLong retries = new AtomicLong();
+
+        void record(int status, long latency, long size, int attempts) {
+            this.latency.record(latency);
+            this.size.record(size);
+            statuses.incrementAndGet(status < 100 || status > 599 ? 0 : status / 100);
+            if (attempts > 1) retries.addAndGet(attempts - 1);
+        }
+
+        Snapshot snapshot(String pattern) {
+            final long[] counts = new long[statuses.length()];
+            for (int i = 0; i < counts.length; i++) counts[i] = statuses.get(i);
+            return new Snapshot(pattern, latency.getSnapshot(), size.getSnapshot(), counts, retries.get());
+        }
+    }
+
+    /** The numbers of one endpoint pattern */
+    public static class Snapshot {
+        private final String mPattern;
+        private final Histogram.Snapshot mLatency, mSize;
+        private final long[] mStatuses;
+        private final long mRetries;
+
+        private Snapshot(String pattern, Histogram.Snapshot latency, Histogram.Snapshot size,
+                         long[] statuses, long retries) {
+            mPattern = pattern;
+            mLatency = latency;
+            mSize = size;
+            mStatuses = statuses;
+            mRetries = retries;
+        }
+
+        public String getPattern() {
+            return mPattern;
+        }
+
+        /** @return number of calls, each counted once regardless of retries */
+        public long getCount() {
+            return mLatency.getCount();
+        }
+
+        /** @return call latencies, in milliseconds */
+        public Histogram.Snapshot getLatency() {
+            return mLatency;
+        }
+
+        /** @return response body sizes in bytes, of responses with a known length */
+        public Histogram.Snapshot getResponseSize() {
+            return mSize;
+        }
+
+        /**
+         * @param statusClass 1 to 5, for 1xx to 5xx responses
+         * @return the number of calls which ended with a response of this class
+         */
+        public long getStatusCount(int statusClass) {
+            if (statusClass < 1 || statusClass > 5) throw new IllegalArgumentException("invalid status class");
+            return mStatuses[statusClass];
+        }
+
+        /** @return the number of calls which failed without a response */
+        public long getErrors() {
+            return mStatuses[0];
+        }
+
+        /** @return the number of retries made by all calls */
+        public long getRetries() {
+            return mRetries;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + mLatency +
+                    ", 2xx=" + mStatuses[2] +
+                    ", 4xx=" + mStatuses[4] +
+                    ", 5xx=" + mStatuses[5] +
+                    ", errors=" + mStatuses[0] +
+                    ", retries=" + mRetries +
+                    '}';
+        }
+    }
+
+    /**
+     * Gets informed about every call, to pass it on to another metrics system. Called on the
+     * calling thread, so it should return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param pattern       the endpoint pattern
+         * @param method        the HTTP method
+         * @param status        the final response status, or -1 if the call failed
+         * @param latency       duration of the call, in milliseconds
+         * @param responseBytes length of the response body, -1 if unknown
+         * @param attempts      number of attempts made
+         */
+        void onCall(String pattern, String method, int status, long latency, long responseBytes, int attempts);
+    }
+}
@@ -0,0 +1,235 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches the requests of a wrapper by {@link Request.Priority}, in front of the connection
+ * pool: at most <code>maxConcurrent</code> requests are sent at once, and when a slot frees up it
+ * goes to the oldest waiting request of the highest priority. Interactive requests no longer wait
+ * behind a crawl's bulk requests.
+ *
+ * To prevent starvation, a request which has been waiting longer than the starvation time is
+ * dispatched before requests of higher priority which came later.
+ *
+ * A request holds its slot until its response body has been consumed or closed, like the
+ * connection it uses, so responses need to be consumed.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * wrapper.setRequestScheduler(new RequestScheduler(RequestScheduler.MAX_CONCURRENT));
+ * ...
+ * wrapper.get(Request.to(Endpoints.MY_FAVORITES).withPriority(Request.Priority.BULK));
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setRequestScheduler(RequestScheduler)
+ */
+public class RequestScheduler {
+    /** The number of connections per route the wrapper's connection pool allows */
+    public static final int  MAX_CONCURRENT  = 6;
+    /** Waiting longer than this (in milliseconds) gets requests dispatched regardless of priority */
+    public static final long STARVATION_TIME = 5 * 1000;
+    /** Maximum time to wait for a slot, in milliseconds */
+    public static final long MAX_WAIT        = 60 * 1000;
+
+    /** Waiting requests check for cancellation this often, in milliseconds */
+    private static final long POLL = 100;
+    private static final Request.Priority[] PRIORITIES = Request.Priority.values();
+
+    private final int mMaxConcurrent;
+    @SuppressWarnings("unchecked")
+    private final LinkedList<Ticket>[] mQueues = new LinkedList[PRIORITIES.length];
+    private final int[] mMaxQueued = new int[PRIORITIES.length];
+    private final AtomicLong[] mDispatched = new AtomicLong[PRIORITIES.length];
+    private final AtomicLong mPromoted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    private volatile long mStarvationTime = STARVATION_TIME, mMaxWait = MAX_WAIT;
+    private int mActive;
+
+    /** @param maxConcurrent maximum number of requests sent at once */
+    public RequestScheduler(int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("need at least one slot");
+        mMaxConcurrent = maxConcurrent;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            mQueues[i] = new LinkedList<Ticket>();
+            mDispatched[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @param starvationTime requests waiting longer than this (in milliseconds) get dispatched
+     *                       before requests of higher priority
+     */
+    public void setStarvationTime(long starvationTime) {
+        mStarvationTime = starvationTime;
+    }
+
+    /** @param maxWait the longest time a request waits for a slot, in milliseconds */
+    public void setMaxWait(long maxWait) {
+        mMaxWait = maxWait;
+    }
+
+    public int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /** @return the number of requests holding a slot */
+    public synchronized int getActive() {
+        return mActive;
+    }
+
+    /** @return the number of requests of this priority waiting for a slot */
+    public synchronized int getQueued(Request.Priority priority) {
+        return mQueues[priority.ordinal()].size();
+    }
+
+    /** @return the highest number of requests of this priority waiting at once */
+    public synchronized int getMaxQueued(Request.Priority priority) {
+        return mMaxQueued[priority.ordinal()];
+    }
+
+    /** @return the number of requests of this priority dispatched */
+    public long getDispatched(Request.Priority priority) {
+        return mDispatched[priority.ordinal()].get();
+    }
+
+    /** @return the number of requests dispatched ahead of higher priorities, to prevent starvation */
+    public long getPromoted() {
+        return mPromoted.get();
+    }
+
+    /** @return the number of requests which did not get a slot in time */
+    public long getRejected() {
+        return mRejected.get();
+    }
+
+    /**
+     * Gets a slot, waiting for it if necessary.
+     * @param priority     the request's priority
+     * @param deadline     the request's deadline, or 0
+     * @param cancellation the request's cancellation handle, or null
+     * @throws QueueTimeoutException if no slot is available in time
+     * @throws InterruptedIOException if interrupted or cancelled while waiting
+     */
+    /* package */ void acquire(Request.Priority priority, long deadline, Cancellation cancellation) throws IOException {
+        final long now = System.currentTimeMillis();
+        final long until = deadline == 0 ? now + mMaxWait : Math.min(deadline, now + mMaxWait);
+        final int p = priority.ordinal();
+        synchronized (this) {
+            if (mActive < mMaxConcurrent && isEmpty()) {
+                mActive++;
+                mDispatched[p].incrementAndGet();
+                return;
+            }
+            final Ticket ticket = new Ticket(now);
+            mQueues[p].add(ticket);
+            mMaxQueued[p] = Math.max(mMaxQueued[p], mQueues[p].size());
+            try {
+                while (!ticket.granted) {
+                    if (cancellation != null && cancellation.isCancelled()) {
+                        mQueues[p].remove(ticket);
+                        throw new CloudAPI.CancelledException();
+                    }
+                    final long left = until - System.currentTimeMillis();
+                    if (left <= 0) {
+                        mQueues[p].remove(ticket);
+                        mRejected.incrementAndGet();
+                        throw new QueueTimeoutException(priority);
+                    }
+                    wait(cancellation == null ? left : Math.min(left, POLL));
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    release();
+                } else {
+                    mQueues[p].remove(ticket);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a slot");
+            }
+        }
+    }
+
+    /* package */ synchronized void release() {
+        mActive--;
+        boolean granted = false;
+        while (mActive < mMaxConcurrent) {
+            final Ticket next = next(System.currentTimeMillis());
+            if (next == null) break;
+            next.granted = granted = true;
+            mActive++;
+        }
+        if (granted) notifyAll();
+    }
+
+    /**
+     * Keeps the slot until the response body has been consumed or closed.
+     * @param response the response of a request which holds a slot
+     * @return the response
+     */
+    /* package */ HttpResponse releaseOnConsume(HttpResponse response) {
+        return ReleasingEntity.releaseOnConsume(response, new Runnable() {
+            @Override public void run() {
+                release();
+            }
+        });
+    }
+
+    /* needs the lock, removes the ticket to dispatch next */
+    private Ticket next(long now) {
+        int first = -1, starving = -1;
+        for (int i = 0; i < mQueues.length; i++) {
+            final Ticket head = mQueues[i].peek();
+            if (head == null) continue;
+            if (first < 0) first = i;
+            if (now - head.enqueued >= mStarvationTime &&
+                (starving < 0 || head.enqueued < mQueues[starving].peek().enqueued)) {
+                starving = i;
+            }
+        }
+        if (first < 0) return null;
+        final int queue = starving < 0 ? first : starving;
+        if (queue != first) mPromoted.incrementAndGet();
+        mDispatched[queue].incrementAndGet();
+        return mQueues[queue].poll();
+    }
+
+    private boolean isEmpty() {
+        for (LinkedList<Ticket> queue : mQueues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestScheduler{" +
+                "maxConcurrent=" + mMaxConcurrent +
+                ", active=" + getActive() +
+                '}';
+    }
+
+    private static class Ticket {
+        final long enqueued;
+        boolean granted;
+
+        Ticket(long enqueued) {
+            this.enqueued = enqueued;
+        }
+    }
+
+    /** Thrown for requests which did not get a slot in time */
+    public static class QueueTimeoutException extends RejectedException {
+        private static final long serialVersionUID = -6411583386027094925L;
+
+        public QueueTimeoutException(Request.Priority priority) {
+            super("timed out waiting for a slot (" + priority + ")");
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of one request attempt went. Reported to a {@link Listener} installed with
+ * {@link ApiWrapper#setTimingListener(Listener)}, once per attempt (retries get their own
+ * event), when the response body has been consumed or closed, or the attempt failed.
+ *
+ * Phases which did not happen are reported as -1, e.g. DNS, connect and TLS for requests on a
+ * reused connection. All durations are in milliseconds.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * wrapper.setTimingListener(new RequestTiming.Listener() {
+ *     public void onRequestTiming(RequestTiming timing) {
+ *         if (timing.getTotal() > 1000) log(timing);
+ *     }
+ * });
+ *   </pre>
+ * </code>
+ */
+public class RequestTiming {
+    /** timing of the attempt in progress on the current thread, if any */
+    private static final ThreadLocal<RequestTiming> sCurrent = new ThreadLocal<RequestTiming>();
+
+    private final Listener mListener;
+    private final String mPattern, mMethod;
+    private final int mAttempt;
+    private final long mRetryDelay;
+    private final long mStartTime, mStart;
+    private final long mRequestBytes;
+
+    // all in nanoseconds, -1 if the phase did not happen
+    private long mQueue = -1, mLease = -1, mDns = -1, mConnect = -1, mTls = -1;
+    private long mWrite = -1, mFirstByte = -1, mBody = -1, mTotal = -1;
+    private long mTokenRefresh;
+    private long mHeaders;
+
+    private int mStatus = -1;
+    private long mResponseBytes = -1;
+    private boolean mReused;
+    private IOException mError;
+
+    /* package */ RequestTiming(Listener listener, Request req, HttpRequest request, int attempt, long retryDelay) {
+        mListener = listener;
+        mPattern = req.getPattern();
+        mMethod = request.getRequestLine().getMethod();
+        mAttempt = attempt;
+        mRetryDelay = retryDelay;
+        mStartTime = System.currentTimeMillis();
+        mStart = System.nanoTime();
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest ?
+                ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        mRequestBytes = entity == null ? 0 : entity.getContentLength();
+    }
+
+    /** @return the timing of the attempt in progress on the current thread, or null */
+    /* package */ static RequestTiming current() {
+        return sCurrent.get();
+    }
+
+    /* package */ static RequestTiming begin(RequestTiming timing) {
+        final RequestTiming outer = sCurrent.get();
+        sCurrent.set(timing);
+        return outer;
+    }
+
+    /* package */ static void end(RequestTiming outer) {
+        if (outer == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(outer);
+        }
+    }
+
+    /** The request passed all local queues (limiters, bulkheads, scheduler) */
+    /* package */ void dispatched() {
+        if (mQueue < 0) mQueue = System.nanoTime() - mStart;
+    }
+
+    /* package */ void leased(long nanos, boolean reused) {
+        mLease = add(mLease, nanos);
+        mReused = reused;
+    }
+
+    /* package */ void resolved(long nanos) {
+        mDns = add(mDns, nanos);
+    }
+
+    /* package */ void connected(long nanos) {
+        mConnect = add(mConnect, nanos);
+    }
+
+    /* package */ void handshaken(long nanos) {
+        mTls = add(mTls, nanos);
+    }
+
+    /* package */ void written(long nanos) {
+        mWrite = add(mWrite, nanos);
+    }
+
+    /* package */ void received(long nanos) {
+        mFirstByte = add(mFirstByte, nanos);
+        mHeaders = System.nanoTime();
+    }
+
+    /* package */ void refreshedToken(long nanos) {
+        mTokenRefresh += nanos;
+    }
+
+    /**
+     * The attempt got a response, the event gets reported once its body has been consumed.
+     * @param response the response
+     * @return the response
+     */
+    /* package */ HttpResponse complete(HttpResponse response) {
+        mStatus = response.getStatusLine().getStatusCode();
+        final HttpEntity entity = response.getEntity();
+        mResponseBytes = entity == null ? 0 : entity.getContentLength();
+        if (mHeaders == 0) mHeaders = System.nanoTime();
+        return ReleasingEntity.releaseOnConsume(response, new Runnable() {
+            @Override public void run() {
+                final long now = System.nanoTime();
+                mBody = now - mHeaders;
+                report(now);
+            }
+        });
+    }
+
+    /* package */ void fail(IOException e) {
+        mError = e;
+        report(System.nanoTime());
+    }
+
+    private void report(long now) {
+        mTotal = now - mStart;
+        mListener.onRequestTiming(this);
+    }
+
+    private static long add(long total, long nanos) {
+        return total < 0 ? nanos : total + nanos;
+    }
+
+    private static long millis(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /** @return the endpoint pattern, e.g. {@link Endpoints#TRACK_DETAILS} */
+    public String getPattern() {
+        return mPattern;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /** @return the attempt number, starting with 1 */
+    public int getAttempt() {
+        return mAttempt;
+    }
+
+    /** @return how long the attempt waited for a retry, 0 for the first attempt */
+    public long getRetryDelay() {
+        return mRetryDelay;
+    }
+
+    /** @return the start of the attempt, in milliseconds since the epoch */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /** @return the response status, or -1 if the attempt failed */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /** @return the error the attempt failed with, or null */
+    public IOException getError() {
+        return mError;
+    }
+
+    /** @return whether the request was sent on a connection from the pool */
+    public boolean isReused() {
+        return mReused;
+    }
+
+    /** @return the size of the request body, -1 if unknown */
+    public long getRequestBytes() {
+        return mRequestBytes;
+    }
+
+    /** @return the size of the response body, -1 if unknown */
+    public long getResponseBytes() {
+        return mResponseBytes;
+    }
+
+    /** @return time spent in local queues: rate limiter, bulkhead, concurrency limiter, scheduler */
+    public long getQueue() {
+        return millis(mQueue);
+    }
+
+    /** @return time spent waiting for a connection from the pool */
+    public long getLease() {
+        return millis(mLease);
+    }
+
+    public long getDns() {
+        return millis(mDns);
+    }
+
+    /** @return time spent establishing the TCP connection */
+    public long getConnect() {
+        return millis(mConnect);
+    }
+
+    /** @return time spent in the TLS handshake */
+    public long getTls() {
+        return millis(mTls);
+    }
+
+    /** @return time spent sending the request, including waiting for <code>100-continue</code> */
+    public long getWrite() {
+        return millis(mWrite);
+    }
+
+    /** @return time from the request being sent until the response headers arrived */
+    public long getTimeToFirstByte() {
+        return millis(mFirstByte);
+    }
+
+    /** @return time spent reading the response body */
+    public long getBody() {
+        return millis(mBody);
+    }
+
+    /** @return time the request was stalled by token refreshes */
+    public long getTokenRefresh() {
+        return millis(mTokenRefresh);
+    }
+
+    /** @return the duration of the whole attempt */
+    public long getTotal() {
+        return millis(mTotal);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTiming{" +
+                "method=" + mMethod +
+                ", pattern='" + mPattern + '\'' +
+                ", attempt=" + mAttempt +
+                ", status=" + mStatus +
+                ", total=" + getTotal() +
+                ", queue=" + getQueue() +
+                ", lease=" + getLease() +
+                ", dns=" + getDns() +
+                ", connect=" + getConnect() +
+                ", tls=" + getTls() +
+                ", write=" + getWrite() +
+                ", ttfb=" + getTimeToFirstByte() +
+                ", body=" + getBody() +
+                ", tokenRefresh=" + getTokenRefresh() +
+                ", reused=" + mReused +
+                '}';
+    }
+
+    /** Gets informed about the timing of every request attempt */
+    public interface Listener {
+        /**
+         * Called on the thread which completed the attempt or consumed its response body.
+         * @param timing the timing
+         */
+        void onRequestTiming(RequestTiming timing);
+    }
+}
@@ -0,0 +1,234 @@
+package com.soundcloud.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether failed requests get retried, and when.
+ *
+ * Network errors and responses with status 429, 502, 503 or 504 are retried, by default only for
+ * idempotent methods (GET, HEAD, PUT, DELETE, OPTIONS), POST needs to be enabled with
+ * {@link #setRetryPost(boolean)}. Requests with bodies which can't be sent twice are never retried.
+ *
+ * The delay before the n-th retry is chosen randomly between 0 and
+ * <code>min(maxDelay, baseDelay * 2^(n-1))</code> ("full jitter"), or the time the server asked
+ * for with a <code>Retry-After</code> header, if that is longer. Responses asking for more than
+ * the maximum delay are not retried. To keep retries from amplifying an outage, all requests
+ * using the policy share a retry budget per time window; once it is used up failures are
+ * returned to the caller right away.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * wrapper.setRetryPolicy(new RetryPolicy());
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+    public static final int  MAX_ATTEMPTS = 3;
+    /** Delay in milliseconds before the first retry, doubled with every attempt */
+    public static final long BASE_DELAY   = 100;
+    public static final long MAX_DELAY    = 10 * 1000;
+    /** Number of retries allowed per {@link #BUDGET_WINDOW} */
+    public static final int  BUDGET        = 100;
+    public static final long BUDGET_WINDOW = 60 * 1000;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mBudgetExhausted = new AtomicLong();
+
+    private volatile int mMaxAttempts = MAX_ATTEMPTS;
+    private volatile long mBaseDelay = BASE_DELAY, mMaxDelay = MAX_DELAY;
+    private volatile boolean mRetryPost;
+    private volatile Listener listener;
+
+    private int mBudget = BUDGET;
+    private long mBudgetWindow = BUDGET_WINDOW;
+    private long mWindowStart;
+    private int mWindowRetries;
+
+    /** @param attempts maximum number of attempts per request, including the first one */
+    public void setMaxAttempts(int attempts) {
+        if (attempts < 1) throw new IllegalArgumentException("need at least one attempt");
+        mMaxAttempts = attempts;
+    }
+
+    /**
+     * @param base  delay before the first retry, doubled with every attempt, in milliseconds
+     * @param max   maximum delay, in milliseconds
+     */
+    public void setBackoff(long base, long max) {
+        if (base < 0 || max < base) throw new IllegalArgumentException("invalid delays");
+        mBaseDelay = base;
+        mMaxDelay = max;
+    }
+
+    /**
+     * @param retries number of retries allowed per window, over all requests
+     * @param window  length of the window, in milliseconds
+     */
+    public synchronized void setBudget(int retries, long window) {
+        if (retries < 0 || window <= 0) throw new IllegalArgumentException("invalid budget");
+        mBudget = retries;
+        mBudgetWindow = window;
+        mWindowRetries = 0;
+    }
+
+    /** @param retry whether POST requests should be retried, too (off by default) */
+    public void setRetryPost(boolean retry) {
+        mRetryPost = retry;
+    }
+
+    /** @param listener gets informed about every attempt, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** @return the number of attempts made, including first attempts */
+    public long getAttempts() {
+        return mAttempts.get();
+    }
+
+    /** @return the number of retries made */
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    /** @return the number of retries which were skipped because the budget was used up */
+    public long getBudgetExhausted() {
+        return mBudgetExhausted.get();
+    }
+
+    /**
+     * @param request the request
+     * @return true if the request may be retried at all
+     */
+    public boolean covers(HttpRequest request) {
+        final String method = request.getRequestLine().getMethod();
+        if ("POST".equals(method)) {
+            if (!mRetryPost) return false;
+        } else if (!"GET".equals(method) && !"HEAD".equals(method) && !"PUT".equals(method)
+                && !"DELETE".equals(method) && !"OPTIONS".equals(method)) {
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * Records an attempt and decides whether to retry it.
+     * @param request   the request
+     * @param attempt   the number of the attempt, starting with 1
+     * @param response  the response, or null if the attempt failed with an exception
+     * @param error     the exception, or null
+     * @param duration  duration of the attempt, in milliseconds
+     * @return the delay before the next attempt in milliseconds, or -1 to give up
+     */
+    /* package */ long nextDelay(HttpRequest request, int attempt, HttpResponse response, IOException error,
+                                 long duration) {
+        mAttempts.incrementAndGet();
+        long delay = -1;
+        if (attempt < mMaxAttempts && isRetryable(response, error)) {
+            final long retryAfter = response == null ? 0 : retryAfter(response, System.currentTimeMillis());
+            if (retryAfter <= mMaxDelay) {
+                if (acquireBudget(System.currentTimeMillis())) {
+                    delay = Math.max(backoff(attempt), retryAfter);
+                    mRetries.incrementAndGet();
+                } else {
+                    mBudgetExhausted.incrementAndGet();
+                }
+            }
+        }
+        final Listener l = listener;
+        if (l != null) {
+            l.onAttempt(request, attempt, response == null ? -1 : response.getStatusLine().getStatusCode(),
+                    error, duration, delay);
+        }
+        return delay;
+    }
+
+    /* package */ long backoff(int attempt) {
+        final long max = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt - 1, 30));
+        return (long) (mRandom.nextDouble() * max);
+    }
+
+    /* package */ boolean isRetryable(HttpResponse response, IOException error) {
+        if (response != null) {
+            switch (response.getStatusLine().getStatusCode()) {
+                case 429:
+                case HttpStatus.SC_BAD_GATEWAY:
+                case HttpStatus.SC_SERVICE_UNAVAILABLE:
+                case HttpStatus.SC_GATEWAY_TIMEOUT:
+                    return true;
+                default:
+                    return false;
+            }
+        } else {
+            return error != null
+                && !(error instanceof CloudAPI.InvalidTokenException)
+                && !(error instanceof RejectedException)
+                && !(error instanceof InterruptedIOException && !(error instanceof SocketTimeoutException))
+                && !Thread.currentThread().isInterrupted();
+        }
+    }
+
+    /**
+     * @param response the response
+     * @param now      the current time
+     * @return the delay requested with a <code>Retry-After</code> header, in milliseconds, or 0
+     */
+    /* package */ static long retryAfter(HttpResponse response, long now) {
+        final Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) return 0;
+        final String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, DateUtils.parseDate(value).getTime() - now);
+            } catch (DateParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private synchronized boolean acquireBudget(long now) {
+        if (now - mWindowStart >= mBudgetWindow) {
+            mWindowStart = now;
+            mWindowRetries = 0;
+        }
+        if (mWindowRetries >= mBudget) return false;
+        mWindowRetries++;
+        return true;
+    }
+
+    /** Gets informed about every attempt */
+    public interface Listener {
+        /**
+         * @param request   the request
+         * @param attempt   the number of the attempt, starting with 1
+         * @param status    the response status, or -1 if the attempt failed with an exception
+         * @param error     the exception, or null
+         * @param duration  duration of the attempt, in milliseconds
+         * @param delay     delay before the next attempt in milliseconds, or -1 if this was the last one
+         */
+        void onAttempt(HttpRequest request, int attempt, int status, IOException error, long duration, long delay);
+    }
+}
@@ -0,0 +1,267 @@
+package com.soundcloud.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token shared by several processes on the same host, stored in a small memory-mapped file.
+ *
+ * Wrappers using the same file (see {@link ApiWrapper#setSharedTokenFile(SharedTokenFile)})
+ * coordinate refreshes with a file lock: exactly one process refreshes an expired token, the
+ * others wait for the lock and then pick up the new token from the file, without a network call.
+ * Tokens refreshed by another process are also noticed before the next request, by checking a
+ * sequence number in the mapped file.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * ApiWrapper wrapper = new ApiWrapper(clientId, clientSecret, null, null, Env.LIVE);
+ * wrapper.setSharedTokenFile(SharedTokenFile.open(new File("/var/run/myapp/token")));
+ *   </pre>
+ * </code>
+ *
+ * Use one instance per file and process ({@link #open(File)} takes care of that), file locks
+ * are held on behalf of the whole JVM.
+ */
+public class SharedTokenFile {
+    /** ASCII "SCTK" */
+    private static final int MAGIC   = 0x5343544b;
+    private static final int VERSION = 1;
+    /** Size of the mapped file, enough for a token */
+    /* package */ static final int SIZE = 4096;
+
+    private static final int SEQUENCE = 8;
+    private static final int LENGTH   = 16;
+    private static final int DATA     = 20;
+
+    private static final Map<File, SharedTokenFile> sOpen = new HashMap<File, SharedTokenFile>();
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    /** guards file locks inside this process */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * @param file the token file, created if missing
+     * @return the instance for this file
+     * @throws IOException if the file could not be opened, or is not a token file
+     */
+    public static SharedTokenFile open(File file) throws IOException {
+        final File canonical = file.getCanonicalFile();
+        synchronized (sOpen) {
+            SharedTokenFile shared = sOpen.get(canonical);
+            if (shared == null) {
+                shared = new SharedTokenFile(canonical);
+                sOpen.put(canonical, shared);
+            }
+            return shared;
+        }
+    }
+
+    /* package */ SharedTokenFile(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+        try {
+            final FileLock lock = mChannel.lock();
+            try {
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+                final int magic = mBuffer.getInt(0);
+                if (magic == 0) {
+                    mBuffer.putInt(0, MAGIC);
+                    mBuffer.putInt(4, VERSION);
+                    mBuffer.force();
+                } else if (magic != MAGIC || mBuffer.getInt(4) != VERSION) {
+                    throw new IOException("not a token file: " + file);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            mRaf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the token in the file, or null if none has been written yet
+     * @throws IOException read error
+     */
+    public Token read() throws IOException {
+        return load().token;
+    }
+
+    /**
+     * Publishes a token to all processes using this file.
+     * @param token the token to write
+     * @throws IOException write error
+     */
+    public void write(Token token) throws IOException {
+        put(token);
+    }
+
+    /** Closes the file, it can't be used afterwards */
+    public void close() throws IOException {
+        synchronized (sOpen) {
+            if (sOpen.get(mFile) == this) sOpen.remove(mFile);
+        }
+        mRaf.close();
+    }
+
+    /**
+     * @return the number of the last write, changes whenever a token gets written; read from the
+     * mapped file without locking or allocating
+     */
+    /* package */ long sequence() {
+        return mBuffer.getLong(SEQUENCE);
+    }
+
+    /** @return the current entry */
+    /* package */ Entry load() throws IOException {
+        return locked(true, new Callable<Entry>() {
+            @Override public Entry call() throws IOException {
+                return current();
+            }
+        });
+    }
+
+    /**
+     * @return the current entry, or null if the file is locked at the moment
+     */
+    /* package */ Entry poll() throws IOException {
+        if (!mLock.tryLock()) return null;
+        try {
+            final FileLock lock = mChannel.tryLock(0, Long.MAX_VALUE, true);
+            if (lock == null) return null;
+            try {
+                return current();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Writes the token, returns the new entry */
+    /* package */ Entry put(final Token token) throws IOException {
+        return locked(false, new Callable<Entry>() {
+            @Override public Entry call() throws IOException {
+                return store(token);
+            }
+        });
+    }
+
+    /**
+     * Writes the token if the file doesn't contain one yet.
+     * @param token the token to write, or null
+     * @return the current entry
+     */
+    /* package */ Entry initialize(final Token token) throws IOException {
+        return locked(false, new Callable<Entry>() {
+            @Override public Entry call() throws IOException {
+                final Entry current = current();
+                return current.token == null && token != null ? store(token) : current;
+            }
+        });
+    }
+
+    /**
+     * Refreshes the token while holding the file lock, unless it has been replaced since
+     * <code>seen</code>, in which case the replacement is returned.
+     * @param seen    the sequence of the token which should be refreshed
+     * @param refresh obtains a new token
+     * @return the entry with the new token
+     * @throws IOException if refreshing failed
+     */
+    /* package */ Entry refresh(final long seen, final Callable<Token> refresh) throws IOException {
+        return locked(false, new Callable<Entry>() {
+            @Override public Entry call() throws Exception {
+                final Entry current = current();
+                if (current.sequence > seen && current.token != null) {
+                    return current; // somebody else was faster
+                }
+                return store(refresh.call());
+            }
+        });
+    }
+
+    private Entry locked(boolean shared, Callable<Entry> callable) throws IOException {
+        mLock.lock();
+        try {
+            final FileLock lock = mChannel.lock(0, Long.MAX_VALUE, shared);
+            try {
+                return callable.call();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            final IOException io = new IOException(String.valueOf(e));
+            io.initCause(e);
+            throw io;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /* needs the lock */
+    private Entry current() throws IOException {
+        final long sequence = mBuffer.getLong(SEQUENCE);
+        final int length = mBuffer.getInt(LENGTH);
+        if (length <= 0 || length > SIZE - DATA) return new Entry(sequence, null);
+
+        final byte[] data = new byte[length];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(DATA);
+        buffer.get(data);
+        return new Entry(sequence, Token.read(new DataInputStream(new ByteArrayInputStream(data))));
+    }
+
+    /* needs the exclusive lock */
+    private Entry store(Token token) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        token.write(new DataOutputStream(bos));
+        final byte[] data = bos.toByteArray();
+        if (data.length > SIZE - DATA) throw new IOException("token too big: " + data.length + " bytes");
+
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(DATA);
+        buffer.put(data);
+        mBuffer.putInt(LENGTH, data.length);
+        final long sequence = mBuffer.getLong(SEQUENCE) + 1;
+        mBuffer.putLong(SEQUENCE, sequence);
+        mBuffer.force();
+        return new Entry(sequence, new Token(token));
+    }
+
+    /** A token read from or written to the file, with its sequence number */
+    static class Entry {
+        final long sequence;
+        /** private copy, don't modify or hand out */
+        final Token token;
+
+        Entry(long sequence, Token token) {
+            this.sequence = sequence;
+            this.token = token;
+        }
+    }
+}
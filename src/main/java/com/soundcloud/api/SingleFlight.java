@@ -0,0 +1,81 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes sure only one call is in flight at a time: callers arriving while a call is running
+ * don't start their own but wait for the running one and share its result (or its failure).
+ *
+ * A call which re-enters the flight it runs in (e.g. a token refresh request triggering another
+ * refresh) fails right away instead of waiting for itself.
+ *
+ * @param <T> the result type
+ */
+class SingleFlight<T> {
+    private final AtomicReference<Flight<T>> mInFlight = new AtomicReference<Flight<T>>();
+
+    /**
+     * Runs the callable, or joins the call currently in flight.
+     * @param callable the call to make
+     * @return the result of the call
+     * @throws IOException if the call failed with an IOException, the thread was interrupted
+     * while waiting, or the call in flight was made by the current thread
+     */
+    public T execute(Callable<T> callable) throws IOException {
+        Flight<T> task = null;
+        Flight<T> running;
+        do {
+            running = mInFlight.get();
+            if (running != null && running.owner == Thread.currentThread()) {
+                throw new IOException("reentrant call, would wait for itself");
+            }
+            if (running == null) {
+                if (task == null) task = new Flight<T>(callable);
+                if (mInFlight.compareAndSet(null, task)) {
+                    try {
+                        task.run();
+                    } finally {
+                        mInFlight.compareAndSet(task, null);
+                    }
+                    running = task;
+                }
+            }
+        } while (running == null);
+        return get(running);
+    }
+
+    /** @return true if a call is in flight */
+    public boolean isRunning() {
+        return mInFlight.get() != null;
+    }
+
+    private static class Flight<T> extends FutureTask<T> {
+        final Thread owner = Thread.currentThread();
+
+        Flight(Callable<T> callable) {
+            super(callable);
+        }
+    }
+
+    private static <T> T get(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            final IOException io = new IOException(String.valueOf(cause));
+            io.initCause(cause);
+            throw io;
+        }
+    }
+}
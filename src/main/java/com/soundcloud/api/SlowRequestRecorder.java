@@ -0,0 +1,305 @@
+package com.soundcloud.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures the details of calls which took unusually long: every call slower than a fixed
+ * threshold, or slower than a percentile of the recent calls to the same endpoint pattern.
+ * A capture holds the {@link RequestTiming} of every attempt (the retry history), the request
+ * line and headers, and the response headers; credentials are redacted.
+ *
+ * The most recent captures are kept in a bounded buffer, and handed to a {@link Listener}.
+ * A call's duration includes reading the response body, so calls get captured once their
+ * response has been consumed or closed.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * SlowRequestRecorder recorder = new SlowRequestRecorder(2000);
+ * recorder.setPercentile(99.9);
+ * recorder.setListener(new SlowRequestRecorder.Listener() {
+ *     public void onSlowRequest(SlowRequestRecorder.SlowRequest request) {
+ *         log(request);
+ *     }
+ * });
+ * wrapper.setSlowRequestRecorder(recorder);
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setSlowRequestRecorder(SlowRequestRecorder)
+ */
+public class SlowRequestRecorder {
+    /** Number of captures kept */
+    public static final int CAPACITY    = 50;
+    /** Calls to a pattern needed before the percentile applies */
+    public static final int MIN_SAMPLES = 100;
+    /** Maximum number of patterns the percentile is tracked for */
+    public static final int MAX_PATTERNS = 500;
+
+    /** the percentile threshold is recomputed after this many calls */
+    private static final int RECOMPUTE = 100;
+    private static final Set<String> SECRET_HEADERS = new HashSet<String>(Arrays.asList(
+            "authorization", "proxy-authorization", "cookie", "set-cookie"));
+
+    private final long mThreshold;
+    private final ConcurrentMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final LinkedList<SlowRequest> mRecent = new LinkedList<SlowRequest>();
+    private final AtomicLong mCaptured = new AtomicLong();
+
+    private volatile double mPercentile;
+    private volatile int mCapacity = CAPACITY;
+    private volatile Listener listener;
+
+    /** @param threshold calls taking longer than this (in milliseconds) get captured, 0 to disable */
+    public SlowRequestRecorder(long threshold) {
+        if (threshold < 0) throw new IllegalArgumentException("invalid threshold");
+        mThreshold = threshold;
+    }
+
+    /**
+     * @param percentile calls slower than this percentile of the calls to the same pattern get
+     *                   captured, e.g. <code>99.9</code>, or 0 to disable (the default)
+     */
+    public void setPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 100) throw new IllegalArgumentException("invalid percentile");
+        mPercentile = percentile;
+        for (Endpoint endpoint : mEndpoints.values()) endpoint.threshold = Long.MAX_VALUE;
+    }
+
+    /** @param capacity the number of captures kept */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("invalid capacity");
+        mCapacity = capacity;
+        while (mRecent.size() > capacity) mRecent.removeFirst();
+    }
+
+    /** @param listener gets the captures, or null */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public long getThreshold() {
+        return mThreshold;
+    }
+
+    public double getPercentile() {
+        return mPercentile;
+    }
+
+    /** @return the most recent captures, oldest first */
+    public synchronized List<SlowRequest> getRecent() {
+        return new ArrayList<SlowRequest>(mRecent);
+    }
+
+    /** @return the number of calls captured so far */
+    public long getCaptured() {
+        return mCaptured.get();
+    }
+
+    /**
+     * @param req  the call
+     * @param next listener to pass the timing of each attempt on to, or null
+     * @return the capture, to be installed as timing listener for the call's attempts
+     */
+    /* package */ Capture begin(Request req, RequestTiming.Listener next) {
+        return new Capture(req.getPattern(), next);
+    }
+
+    private void complete(Capture capture, long duration) {
+        final boolean slow = (mThreshold > 0 && duration > mThreshold) | isOutlier(capture.mPattern, duration);
+        if (!slow) return;
+
+        final SlowRequest request = new SlowRequest(capture, duration);
+        mCaptured.incrementAndGet();
+        synchronized (this) {
+            mRecent.add(request);
+            if (mRecent.size() > mCapacity) mRecent.removeFirst();
+        }
+        final Listener l = listener;
+        if (l != null) l.onSlowRequest(request);
+    }
+
+    /** Records the duration, and compares it with the pattern's percentile so far */
+    /* package */ boolean isOutlier(String pattern, long duration) {
+        final double percentile = mPercentile;
+        if (percentile <= 0 || pattern == null) return false;
+        Endpoint endpoint = mEndpoints.get(pattern);
+        if (endpoint == null) {
+            if (mEndpoints.size() >= MAX_PATTERNS) return false;
+            final Endpoint created = new Endpoint();
+            endpoint = mEndpoints.putIfAbsent(pattern, created);
+            if (endpoint == null) endpoint = created;
+        }
+        final boolean outlier = duration > endpoint.threshold;
+        endpoint.latency.record(duration);
+        final long count = endpoint.latency.getCount();
+        if (count >= MIN_SAMPLES && (count % RECOMPUTE == 0 || endpoint.threshold == Long.MAX_VALUE)) {
+            endpoint.threshold = endpoint.latency.getSnapshot().getPercentile(percentile);
+        }
+        return outlier;
+    }
+
+    private static List<String> headers(HttpMessage message) {
+        if (message == null) return Collections.emptyList();
+        final List<String> headers = new ArrayList<String>();
+        for (Header header : message.getAllHeaders()) {
+            headers.add(header.getName() + ": " + (SECRET_HEADERS.contains(header.getName().toLowerCase()) ?
+                    RequestLog.REDACTED : header.getValue()));
+        }
+        return headers;
+    }
+
+    private static class Endpoint {
+        final Histogram latency = new Histogram();
+        /** calls slower than this are outliers, until enough calls have been seen: none */
+        volatile long threshold = Long.MAX_VALUE;
+    }
+
+    /**
+     * Collects the timings of a call's attempts, and completes once the call returned and the
+     * timing of its last attempt has been reported.
+     */
+    /* package */ class Capture implements RequestTiming.Listener {
+        private final String mPattern;
+        private final RequestTiming.Listener mNext;
+        private final long mStart = System.nanoTime();
+        private final List<RequestTiming> mAttempts = new ArrayList<RequestTiming>();
+        private int mExpected = -1;
+        private HttpRequest mRequest;
+        private HttpResponse mResponse;
+
+        private Capture(String pattern, RequestTiming.Listener next) {
+            mPattern = pattern;
+            mNext = next;
+        }
+
+        @Override public void onRequestTiming(RequestTiming timing) {
+            if (mNext != null) mNext.onRequestTiming(timing);
+            synchronized (this) {
+                mAttempts.add(timing);
+            }
+            completeIfDone();
+        }
+
+        /**
+         * @param request  the last attempt's request
+         * @param response the final response, or null if the call failed
+         * @param attempts the number of attempts made
+         */
+        /* package */ void finish(HttpRequest request, HttpResponse response, int attempts) {
+            synchronized (this) {
+                mRequest = request;
+                mResponse = response;
+                mExpected = attempts;
+            }
+            completeIfDone();
+        }
+
+        private void completeIfDone() {
+            synchronized (this) {
+                if (mExpected < 0 || mAttempts.size() < mExpected) return;
+                mExpected = Integer.MAX_VALUE; // only once
+            }
+            complete(this, (System.nanoTime() - mStart) / 1000000);
+        }
+    }
+
+    /** A captured slow call */
+    public static class SlowRequest {
+        private final long mTime;
+        private final long mDuration;
+        private final String mPattern;
+        private final String mRequestLine;
+        private final List<String> mRequestHeaders, mResponseHeaders;
+        private final List<RequestTiming> mAttempts;
+
+        private SlowRequest(Capture capture, long duration) {
+            mTime = System.currentTimeMillis();
+            mDuration = duration;
+            mPattern = capture.mPattern;
+            mRequestLine = capture.mRequest.getRequestLine().getMethod() + " " +
+                    RequestLog.redact(capture.mRequest.getRequestLine().getUri());
+            mRequestHeaders = headers(capture.mRequest);
+            mResponseHeaders = headers(capture.mResponse);
+            mAttempts = Collections.unmodifiableList(new ArrayList<RequestTiming>(capture.mAttempts));
+        }
+
+        /** @return when the call was captured, in milliseconds since the epoch */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** @return the duration of the whole call, retries and reading the body included */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /** @return the endpoint pattern, e.g. {@link Endpoints#TRACK_DETAILS} */
+        public String getPattern() {
+            return mPattern;
+        }
+
+        /** @return method and URI, with credentials redacted */
+        public String getRequestLine() {
+            return mRequestLine;
+        }
+
+        /** @return headers of the last attempt's request, with credentials redacted */
+        public List<String> getRequestHeaders() {
+            return mRequestHeaders;
+        }
+
+        /** @return headers of the final response, empty if the call failed */
+        public List<String> getResponseHeaders() {
+            return mResponseHeaders;
+        }
+
+        /** @return the timing of every attempt, in order */
+        public List<RequestTiming> getAttempts() {
+            return mAttempts;
+        }
+
+        /** @return the timing of the last attempt */
+        public RequestTiming getTiming() {
+            return mAttempts.get(mAttempts.size() - 1);
+        }
+
+        /** @return whether the last attempt was sent on a connection from the pool */
+        public boolean isReused() {
+            return getTiming().isReused();
+        }
+
+        @Override
+        public String toString() {
+            return "SlowRequest{" +
+                    "request='" + mRequestLine + '\'' +
+                    ", duration=" + mDuration +
+                    ", requestHeaders=" + mRequestHeaders +
+                    ", responseHeaders=" + mResponseHeaders +
+                    ", attempts=" + mAttempts +
+                    '}';
+        }
+    }
+
+    /** Gets informed about slow calls */
+    public interface Listener {
+        /**
+         * Called on the thread which completed the call or consumed its response body.
+         * @param request the capture
+         */
+        void onSlowRequest(SlowRequest request);
+    }
+}
@@ -0,0 +1,96 @@
+package com.soundcloud.api;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reports DNS lookup, connect and TLS handshake times to the {@link RequestTiming} of the
+ * current thread. Without one, everything is left to the wrapped factory.
+ *
+ * To tell the TCP connect from the TLS handshake, secure connections are opened as a plain
+ * socket which then gets layered with TLS by the wrapped factory (like a tunneled connection).
+ */
+class TimingSocketFactory implements SocketFactory {
+    private final SocketFactory mFactory;
+
+    private TimingSocketFactory(SocketFactory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * @param factory the factory to wrap
+     * @return a layered factory if the wrapped one is layered (which makes the scheme secure)
+     */
+    /* package */ static SocketFactory wrap(SocketFactory factory) {
+        return factory instanceof LayeredSocketFactory ?
+                new Layered((LayeredSocketFactory) factory) : new TimingSocketFactory(factory);
+    }
+
+    @Override public Socket createSocket() throws IOException {
+        if (RequestTiming.current() != null && mFactory instanceof LayeredSocketFactory) {
+            return new Socket();
+        } else {
+            return mFactory.createSocket();
+        }
+    }
+
+    @Override public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+                                          int localPort, HttpParams params) throws IOException {
+        final RequestTiming timing = RequestTiming.current();
+        if (timing == null) return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+
+        long start = System.nanoTime();
+        final InetAddress address = InetAddress.getByName(host);
+        timing.resolved(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        if (sock == null || !(mFactory instanceof LayeredSocketFactory) || sock.getClass() != Socket.class) {
+            // the lookup is cached now, the rest is the connect (and the handshake, if any)
+            final Socket connected = mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+            timing.connected(System.nanoTime() - start);
+            return connected;
+        }
+
+        if (localAddress != null || localPort > 0) {
+            sock.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+        }
+        try {
+            sock.connect(new InetSocketAddress(address, port), HttpConnectionParams.getConnectionTimeout(params));
+        } catch (SocketTimeoutException e) {
+            throw new ConnectTimeoutException("Connect to " + host + "/" + address + " timed out");
+        }
+        sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        timing.connected(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        final Socket secure = ((LayeredSocketFactory) mFactory).createSocket(sock, host, port, true);
+        timing.handshaken(System.nanoTime() - start);
+        return secure;
+    }
+
+    @Override public boolean isSecure(Socket sock) {
+        return mFactory.isSecure(sock);
+    }
+
+    private static class Layered extends TimingSocketFactory implements LayeredSocketFactory {
+        private final LayeredSocketFactory mLayered;
+
+        Layered(LayeredSocketFactory factory) {
+            super(factory);
+            mLayered = factory;
+        }
+
+        @Override public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return mLayered.createSocket(socket, host, port, autoClose);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.soundcloud.api;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
@@ -48,6 +50,14 @@ public class Token implements Serializable {
         this.scope = scope;
     }
 
+    /**
+     * @param token the token to be copied
+     */
+    public Token(Token token) {
+        this(token.access, token.refresh, token.scope);
+        expiresIn = token.expiresIn;
+    }
+
     /**
      * Construct a new token from a JSON response
      * @param json the json response
@@ -59,6 +69,9 @@ public class Token implements Serializable {
             if (json.has(REFRESH_TOKEN)) {
                 // refresh token won't be set if we don't expire
                 refresh = json.getString(REFRESH_TOKEN);
+            }
+            if (json.has(EXPIRES_IN) && !json.isNull(EXPIRES_IN)) {
+                // client credentials expire too, without a refresh token
                 expiresIn = System.currentTimeMillis() + json.getLong(EXPIRES_IN) * 1000;
             }
             scope = json.getString(SCOPE);
@@ -67,6 +80,35 @@ public class Token implements Serializable {
         }
     }
 
+    /**
+     * Reads a token written with {@link #write(DataOutput)}
+     * @param in the input
+     * @return the token
+     * @throws IOException read error
+     */
+    /* package */ static Token read(DataInput in) throws IOException {
+        final Token token = new Token(readString(in), readString(in), readString(in));
+        token.expiresIn = in.readLong();
+        return token;
+    }
+
+    /** Writes the token in a compact binary format */
+    /* package */ void write(DataOutput out) throws IOException {
+        writeString(out, access);
+        writeString(out, refresh);
+        writeString(out, scope);
+        out.writeLong(expiresIn);
+    }
+
+    /* package */ static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /* package */ static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
     /** Invalidates the access token */
     public void invalidate() {
         this.access = null;
@@ -79,6 +121,13 @@ public class Token implements Serializable {
         return expiresIn == 0 ? null : new Date(expiresIn);
     }
 
+    /**
+     * @return true if the token has an expiration date which lies in the past
+     */
+    public boolean expired() {
+        return expiresIn != 0 && System.currentTimeMillis() >= expiresIn;
+    }
+
     public boolean defaultScoped() {
         return scoped(SCOPE_DEFAULT);
     }
@@ -89,9 +138,18 @@ public class Token implements Serializable {
     }
 
     public boolean scoped(String scope) {
-        if (this.scope != null) {
-            for (String s : this.scope.split(" "))
-                if (scope.equals(s)) return true;
+        final String scopes = this.scope;
+        if (scopes != null) {
+            // same as checking scopes.split(" "), without allocating
+            int start = 0;
+            while (start <= scopes.length()) {
+                int end = scopes.indexOf(' ', start);
+                if (end == -1) end = scopes.length();
+                if (end - start == scope.length() && scopes.regionMatches(start, scope, 0, end - start)) {
+                    return true;
+                }
+                start = end + 1;
+            }
         }
         return false;
     }
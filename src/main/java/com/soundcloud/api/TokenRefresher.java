@@ -0,0 +1,154 @@
+package com.soundcloud.api;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the token of a wrapper in the background, shortly before it expires, so requests
+ * never have to discover an expired token via a 401.
+ *
+ * The refresh happens between <code>margin</code> and <code>margin + jitter</code> milliseconds
+ * before {@link Token#getExpiresIn()}. The jitter spreads out refreshes of many wrappers with
+ * tokens obtained at the same time. Failed refreshes are retried with exponential backoff.
+ * Refreshed tokens are reported to the wrapper's
+ * {@link com.soundcloud.api.CloudAPI.TokenListener#onTokenRefreshed(Token)}, as usual.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * TokenRefresher refresher = new TokenRefresher(wrapper);
+ * refresher.start();
+ * ...
+ * refresher.stop();
+ *   </pre>
+ * </code>
+ */
+public class TokenRefresher {
+    /** Default time before expiration to refresh */
+    public static final long MARGIN  = 5 * 60 * 1000;
+    public static final long JITTER  = 60 * 1000;
+    /** Initial retry delay after a failed refresh, doubled with every failure */
+    public static final long BACKOFF = 1000;
+    /** Minimum time between two refreshes, for tokens which don't live longer than the margin */
+    public static final long MIN_INTERVAL = 30 * 1000;
+
+    private final CloudAPI mApi;
+    private final long mMargin, mJitter;
+    private final Random mRandom = new Random();
+
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mScheduled;
+    private int mFailures;
+    private Token mRejected;
+
+    public TokenRefresher(CloudAPI api) {
+        this(api, MARGIN, JITTER);
+    }
+
+    /**
+     * @param api     the api whose token should be kept fresh
+     * @param margin  time before expiration to refresh, in milliseconds
+     * @param jitter  maximum random time added to the margin, in milliseconds
+     */
+    public TokenRefresher(CloudAPI api, long margin, long jitter) {
+        if (margin < 0 || jitter < 0) throw new IllegalArgumentException("negative margin or jitter");
+        mApi = api;
+        mMargin = margin;
+        mJitter = jitter;
+    }
+
+    /** Starts refreshing in the background. */
+    public synchronized void start() {
+        if (mExecutor != null) return;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "TokenRefresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedule(delay(mApi.getToken(), System.currentTimeMillis()));
+    }
+
+    /** Stops refreshing. A refresh currently in progress will still complete. */
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            if (mScheduled != null) mScheduled.cancel(false);
+            mExecutor.shutdown();
+            mExecutor = null;
+            mScheduled = null;
+        }
+    }
+
+    /** @return true if started */
+    public synchronized boolean isRunning() {
+        return mExecutor != null;
+    }
+
+    /**
+     * @param token the current token
+     * @param now   the current time
+     * @return milliseconds until the token should get refreshed
+     */
+    /* package */ long delay(Token token, long now) {
+        if (token == null || token.refresh == null || token.expiresIn == 0 || token.equals(mRejected)) {
+            // nothing to refresh (yet), check again later
+            return Math.max(mMargin, BACKOFF);
+        }
+        final long jitter = mJitter == 0 ? 0 : (long) (mRandom.nextDouble() * mJitter);
+        return Math.max(0, token.expiresIn - mMargin - jitter - now);
+    }
+
+    /**
+     * @param refreshed the token just obtained
+     * @param now       the current time
+     * @return milliseconds until the next refresh, at least {@link #MIN_INTERVAL}
+     */
+    /* package */ long next(Token refreshed, long now) {
+        return Math.max(MIN_INTERVAL, delay(refreshed, now));
+    }
+
+    /* package */ long backoff(int failures) {
+        return Math.min(Math.max(mMargin / 2, BACKOFF), BACKOFF << Math.min(failures - 1, 20));
+    }
+
+    private synchronized void schedule(long delay) {
+        if (mExecutor == null) return;
+        mScheduled = mExecutor.schedule(new Runnable() {
+            @Override public void run() {
+                refresh();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        final Token token = mApi.getToken();
+        if (token == null || token.refresh == null || token.expiresIn == 0 || token.equals(mRejected) ||
+            token.expiresIn - mMargin - mJitter > System.currentTimeMillis()) {
+            // token changed in the meantime
+            schedule(delay(token, System.currentTimeMillis()));
+            return;
+        }
+        try {
+            final Token refreshed = mApi.refreshToken();
+            mFailures = 0;
+            schedule(next(refreshed, System.currentTimeMillis()));
+        } catch (CloudAPI.InvalidTokenException e) {
+            // refresh token got revoked, wait for a new token to be set
+            mRejected = token;
+            schedule(delay(null, System.currentTimeMillis()));
+        } catch (IOException e) {
+            schedule(backoff(++mFailures));
+        } catch (IllegalStateException e) {
+            schedule(delay(null, System.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            // e.g. from a token listener, don't let it end the refresh chain
+            schedule(backoff(++mFailures));
+        }
+    }
+}
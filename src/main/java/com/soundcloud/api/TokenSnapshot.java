@@ -0,0 +1,54 @@
+package com.soundcloud.api;
+
+import org.apache.http.Header;
+
+/**
+ * An immutable snapshot of a token, together with the OAuth header derived from it, computed
+ * once when the token gets installed.
+ * The wrapper swaps snapshots atomically, so request threads always see a token and a header
+ * which belong together, without any locking.
+ *
+ * The token held here is a private copy and never handed out (see {@link #get()}), which means
+ * callers mutating their tokens can't change a snapshot after it has been installed.
+ */
+final class TokenSnapshot {
+    /** private copy, don't modify or hand out */
+    final Token token;
+    final Header header;
+    /** the token's {@link RateLimiter} key, computed on first use */
+    private String limiterKey;
+
+    TokenSnapshot(Token token) {
+        this.token = token == null ? null : new Token(token);
+        this.header = ApiWrapper.createOAuthHeader(this.token);
+    }
+
+    /** @return a copy of the token, or null */
+    Token get() {
+        return token == null ? null : new Token(token);
+    }
+
+    /** @return the key of the token's {@link RateLimiter} bucket, or null */
+    String limiterKey() {
+        String key = limiterKey;
+        if (key == null && token != null && token.access != null) {
+            limiterKey = key = RateLimiter.key(token.access);
+        }
+        return key;
+    }
+
+    /**
+     * @param used the Authorization header sent with a request which got rejected
+     * @return true if the rejected token is still the current one (or there is none)
+     */
+    boolean isStale(Header used) {
+        return token == null || token.access == null || OAuth2Scheme.usesToken(used, token.access);
+    }
+
+    /** @return a snapshot of the same token, with the access token invalidated */
+    TokenSnapshot invalidate() {
+        final Token copy = get();
+        if (copy != null) copy.invalidate();
+        return new TokenSnapshot(copy);
+    }
+}
@@ -0,0 +1,163 @@
+package com.soundcloud.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the tokens of many users (tenants), so one wrapper, with one connection pool, can make
+ * requests on behalf of all of them.
+ *
+ * The store is bounded: when full, the least recently used tenants are evicted and have to be
+ * {@link #put(String, Token, CloudAPI.TokenListener) put} again before making further requests
+ * for them. Internally it is split into shards with separate locks, to keep contention low.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * TokenStore store = new TokenStore(250000);
+ * wrapper.setTokenStore(store);
+ * store.put("1234", tokenOf1234, listenerOf1234);
+ * HttpResponse resp = wrapper.get(Request.to(Endpoints.MY_DETAILS).forUser("1234"));
+ *   </pre>
+ * </code>
+ *
+ * Expired tokens are refreshed per tenant (using the refresh grant), the tenant's listener gets
+ * notified about invalid and refreshed tokens.
+ * @see ApiWrapper#setTokenStore(TokenStore)
+ * @see Request#forUser(String)
+ */
+public class TokenStore {
+    public static final int SHARDS = 16;
+
+    private final Shard[] mShards;
+
+    /**
+     * @param capacity maximum number of tenants to hold
+     */
+    public TokenStore(int capacity) {
+        this(capacity, SHARDS);
+    }
+
+    /**
+     * @param capacity maximum number of tenants to hold
+     * @param shards   number of shards (separately locked parts) to use
+     */
+    public TokenStore(int capacity, int shards) {
+        if (capacity < 1 || shards < 1) throw new IllegalArgumentException("need positive capacity and shards");
+        shards = Math.min(shards, capacity);
+        mShards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            // distribute the capacity, the first shards get the remainder
+            mShards[i] = new Shard(capacity / shards + (i < capacity % shards ? 1 : 0));
+        }
+    }
+
+    /**
+     * Stores a token for a user, replacing any existing one.
+     * @param user  the user id
+     * @param token the token of this user
+     */
+    public void put(String user, Token token) {
+        put(user, token, null);
+    }
+
+    /**
+     * Stores a token for a user, replacing any existing one.
+     * @param user      the user id
+     * @param token     the token of this user
+     * @param listener  gets informed about invalid and refreshed tokens of this user, or null
+     */
+    public void put(String user, Token token, CloudAPI.TokenListener listener) {
+        if (user == null) throw new IllegalArgumentException("user is null");
+        final Shard shard = shard(user);
+        synchronized (shard) {
+            final Tenant existing = shard.get(user);
+            if (existing != null) {
+                existing.install(token);
+                existing.listener = listener;
+            } else {
+                shard.put(user, new Tenant(token, listener));
+            }
+        }
+    }
+
+    /**
+     * @param user the user id
+     * @return a copy of the user's token, or null if not known
+     */
+    public Token get(String user) {
+        final Tenant tenant = tenant(user);
+        return tenant == null ? null : tenant.snapshot().get();
+    }
+
+    /**
+     * @param user the user id
+     * @return the token of the removed user, or null if not known
+     */
+    public Token remove(String user) {
+        final Shard shard = shard(user);
+        final Tenant tenant;
+        synchronized (shard) {
+            tenant = shard.remove(user);
+        }
+        return tenant == null ? null : tenant.snapshot().get();
+    }
+
+    /** @return the number of stored tenants */
+    public int size() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    /* package */ Tenant tenant(String user) {
+        if (user == null) return null;
+        final Shard shard = shard(user);
+        synchronized (shard) {
+            return shard.get(user);
+        }
+    }
+
+    private Shard shard(String user) {
+        return mShards[(user.hashCode() & 0x7fffffff) % mShards.length];
+    }
+
+    /** A tenant's token, listener and refresh coordination */
+    static class Tenant {
+        private volatile TokenSnapshot mSnapshot;
+        volatile CloudAPI.TokenListener listener;
+        final SingleFlight<Token> refresh = new SingleFlight<Token>();
+
+        Tenant(Token token, CloudAPI.TokenListener listener) {
+            mSnapshot = new TokenSnapshot(token);
+            this.listener = listener;
+        }
+
+        TokenSnapshot snapshot() {
+            return mSnapshot;
+        }
+
+        void install(Token token) {
+            mSnapshot = new TokenSnapshot(token);
+        }
+    }
+
+    /** LRU ordered map of tenants */
+    private static class Shard extends LinkedHashMap<String, Tenant> {
+        private static final long serialVersionUID = 2914622370528765418L;
+        private final int mCapacity;
+
+        Shard(int capacity) {
+            super(16, 0.75f, true);
+            mCapacity = capacity;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Tenant> eldest) {
+            return size() > mCapacity;
+        }
+    }
+}
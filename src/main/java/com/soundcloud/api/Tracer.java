@@ -0,0 +1,58 @@
+package com.soundcloud.api;
+
+/**
+ * Hook to attribute time spent in the wrapper in profilers and tracing systems: calls, token
+ * requests, authentication (which may refresh the token) and waiting for a pooled connection
+ * are reported as spans. Without a tracer (the default) nothing gets allocated or timed.
+ *
+ * Example, emitting Java Flight Recorder events on JDK 11 and later (<code>ApiEvent</code>
+ * being a <code>jdk.jfr.Event</code> with the fields below):
+ * <code>
+ *   <pre>
+ * wrapper.setTracer(new Tracer() {
+ *     public Span begin(String name, String endpoint) {
+ *         final ApiEvent event = new ApiEvent();
+ *         if (!event.isEnabled()) return null;
+ *         event.name = name;
+ *         event.endpoint = endpoint;
+ *         event.begin();
+ *         return new Span() {
+ *             public void end(int status, long bytes, Exception error) {
+ *                 event.status = status;
+ *                 event.bytes = bytes;
+ *                 event.commit();
+ *             }
+ *         };
+ *     }
+ * });
+ *   </pre>
+ * </code>
+ * @see ApiWrapper#setTracer(Tracer)
+ */
+public interface Tracer {
+    /** A call made with get/put/delete/post, retries included; the endpoint is its pattern */
+    String CALL           = "call";
+    /** A token request; the endpoint is {@link Endpoints#TOKEN} */
+    String TOKEN_REQUEST  = "token";
+    /** Authorizing a request, which may refresh the token; the endpoint is the request URI */
+    String AUTHENTICATE   = "authenticate";
+    /** Waiting for a connection from the pool; the endpoint is the host */
+    String LEASE          = "lease";
+
+    /**
+     * Called on the thread doing the work.
+     * @param name     what is starting, one of the constants above
+     * @param endpoint the endpoint pattern, URI or host it is for
+     * @return the span, ended when the work is done, or null to skip it
+     */
+    Span begin(String name, String endpoint);
+
+    interface Span {
+        /**
+         * @param status the response status, or -1
+         * @param bytes  length of the response body, or -1 if unknown
+         * @param error  the error the work failed with, or null
+         */
+        void end(int status, long bytes, Exception error);
+    }
+}
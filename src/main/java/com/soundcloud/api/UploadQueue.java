@@ -0,0 +1,552 @@
+package com.soundcloud.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent queue for file uploads (typically tracks).
+ *
+ * Uploads are written to a journal file before they are executed, and marked as done once the
+ * server accepted them, so no work gets lost when the process crashes or gets restarted - a new
+ * queue opened on the same journal picks up all pending uploads. Uploads are executed by a
+ * bounded pool of workers, transient failures (network errors, 5xx, 429) are retried with
+ * exponential backoff.
+ *
+ * Example:
+ * <code>
+ *   <pre>
+ * UploadQueue queue = new UploadQueue(wrapper, new File("uploads.journal"), 4);
+ * queue.add(Request.to(Endpoints.TRACKS)
+ *      .with(Params.Track.TITLE, "Hello")
+ *      .withFile(Params.Track.ASSET_DATA, new File("hello.aiff")));
+ * queue.start();
+ *   </pre>
+ * </code>
+ *
+ * Only requests with files and parameters can be queued, in-memory data (byte arrays, entities)
+ * can't be persisted. Requests made on behalf of a user ({@link Request#forUser(String)}) keep
+ * their user, requests with their own token ({@link Request#usingToken(Token)}) can't be queued,
+ * tokens are never written to the journal.
+ */
+public class UploadQueue {
+    public static final int  MAX_ATTEMPTS = 5;
+    /** Initial retry delay in milliseconds, doubled with every attempt */
+    public static final long BACKOFF      = 1000;
+    public static final long MAX_BACKOFF  = 5 * 60 * 1000;
+
+    private static final String OP_ADD    = "add";
+    private static final String OP_DONE   = "done";
+    private static final String OP_FAILED = "failed";
+
+    private final CloudAPI mApi;
+    private final File mJournal;
+    private final int mWorkers;
+    private final Map<Long, Upload> mPending = new LinkedHashMap<Long, Upload>();
+    private final AtomicLong mNextId = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final Random mRandom = new Random();
+
+    private Writer mWriter;
+    private FileOutputStream mOut;
+    private ScheduledExecutorService mExecutor;
+    private volatile long mStarted;
+
+    private volatile int mMaxAttempts = MAX_ATTEMPTS;
+    private volatile long mBackoff = BACKOFF;
+    private volatile Listener listener;
+
+    /**
+     * Opens a queue, reading all pending uploads from the journal.
+     * @param api      the api to use for uploading
+     * @param journal  the journal file (will be created if it does not exist)
+     * @param workers  maximum number of parallel uploads
+     * @throws IOException if the journal could not be read or written
+     */
+    public UploadQueue(CloudAPI api, File journal, int workers) throws IOException {
+        if (workers < 1) throw new IllegalArgumentException("need at least one worker");
+        mApi = api;
+        mJournal = journal;
+        mWorkers = workers;
+        replay();
+        compact();
+        mOut = new FileOutputStream(mJournal, true);
+        mWriter = new OutputStreamWriter(mOut, "UTF-8");
+    }
+
+    /**
+     * Adds an upload to the queue. The upload is persisted before this method returns.
+     * @param request the request to POST
+     * @return the queued upload
+     * @throws IOException if the journal could not be written
+     * @throws IllegalArgumentException if the request contains data which can't be persisted, or
+     *                                  a token
+     */
+    public synchronized Upload add(Request request) throws IOException {
+        if (request.getResource() == null) throw new IllegalArgumentException("request needs a resource");
+        if (request.hasInMemoryContent()) {
+            throw new IllegalArgumentException("only files and parameters can be queued");
+        }
+        if (request.getToken() != null) {
+            throw new IllegalArgumentException("requests with tokens can't be queued, use forUser()");
+        }
+        if (mWriter == null) throw new IllegalStateException("queue is closed");
+
+        final Upload upload = new Upload(mNextId.getAndIncrement(), new Request(request));
+        write(OP_ADD, upload);
+        mPending.put(upload.id, upload);
+        if (mExecutor != null) submit(upload, 0);
+        return upload;
+    }
+
+    /** Starts processing all pending uploads. */
+    public synchronized void start() {
+        if (mExecutor != null) return;
+        if (mWriter == null) throw new IllegalStateException("queue is closed");
+        mExecutor = new ScheduledThreadPoolExecutor(mWorkers);
+        mStarted = System.currentTimeMillis();
+        for (Upload upload : mPending.values()) submit(upload, 0);
+    }
+
+    /**
+     * Stops all workers and closes the journal. Uploads which are still in progress stay
+     * in the journal and will be resumed by the next queue opened on it.
+     * @throws IOException if the journal could not be closed
+     */
+    public void close() throws IOException {
+        final ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+            mExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(Http.TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (mWriter != null) {
+                mWriter.close();
+                mWriter = null;
+                mOut = null;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there are no more pending uploads.
+     * @param timeout  the maximum time to wait
+     * @param unit     unit of timeout
+     * @return true if all uploads were processed, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!mPending.isEmpty()) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels an upload: it gets removed from the queue and the journal, and aborted if it is
+     * being sent right now.
+     * @param upload the upload
+     * @return false if the upload was not pending (anymore)
+     * @throws IOException if the journal could not be written
+     */
+    public boolean cancel(Upload upload) throws IOException {
+        synchronized (this) {
+            if (mPending.get(upload.id) != upload) return false;
+            write(OP_FAILED, upload);
+            mPending.remove(upload.id);
+            notifyAll();
+        }
+        upload.mCancellation.cancel();
+        return true;
+    }
+
+    /** @return the uploads which have not been processed yet */
+    public synchronized List<Upload> getPending() {
+        return new ArrayList<Upload>(mPending.values());
+    }
+
+    /** @return the number of pending uploads */
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /** @return number of uploads completed since the queue was opened */
+    public long getCompleted() {
+        return mCompleted.get();
+    }
+
+    /** @return number of uploads which failed since the queue was opened */
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    /** @return number of bytes sent by all workers since the queue was started */
+    public long getBytesTransferred() {
+        return mBytes.get();
+    }
+
+    /** @return aggregate throughput of all workers in bytes per second, since the queue was started */
+    public long getThroughput() {
+        final long elapsed = System.currentTimeMillis() - mStarted;
+        return (mStarted == 0 || elapsed <= 0) ? 0 : mBytes.get() * 1000 / elapsed;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** @param attempts how often an upload is tried before giving up (it stays in the journal) */
+    public void setMaxAttempts(int attempts) {
+        mMaxAttempts = attempts;
+    }
+
+    /** @param millis initial delay before retrying, doubled with every attempt */
+    public void setBackoff(long millis) {
+        mBackoff = millis;
+    }
+
+    /* package */ long backoff(int attempt) {
+        final long max = Math.min(MAX_BACKOFF, mBackoff << Math.min(attempt - 1, 30));
+        // randomize, so failing uploads don't all come back at the same time
+        return max / 2 + (long) (mRandom.nextDouble() * (max / 2));
+    }
+
+    private synchronized void submit(final Upload upload, long delay) {
+        if (mExecutor == null) return;
+        mExecutor.schedule(new Runnable() {
+            @Override public void run() {
+                try {
+                    process(upload);
+                } catch (RuntimeException e) {
+                    // a bug in an entity or listener must not leave the upload pending forever
+                    if (isPending(upload)) fail(upload, error(e));
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void process(Upload upload) {
+        if (upload.mCancellation.isCancelled()) return;
+        for (File f : upload.files()) {
+            if (!f.exists()) {
+                fail(upload, new IOException("file not found: " + f));
+                return;
+            }
+        }
+        upload.mAttempts++;
+        final HttpResponse response;
+        try {
+            response = mApi.post(upload.prepare(mBytes));
+        } catch (CloudAPI.InvalidTokenException e) {
+            giveUp(upload, e);
+            return;
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) return; // closed, stays in the journal
+            if (upload.mCancellation.isCancelled()) return;
+            retry(upload, e);
+            return;
+        } catch (RuntimeException e) {
+            fail(upload, error(e));
+            return;
+        }
+
+        final int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+            try {
+                done(upload, response);
+            } finally {
+                consume(response);
+            }
+        } else {
+            consume(response);
+            final IOException e = new IOException(status + " " + response.getStatusLine().getReasonPhrase());
+            if (status >= 500 || status == 429) {
+                retry(upload, e);
+            } else {
+                fail(upload, e);
+            }
+        }
+    }
+
+    private void retry(Upload upload, IOException e) {
+        if (upload.mAttempts < mMaxAttempts) {
+            submit(upload, backoff(upload.mAttempts));
+        } else {
+            giveUp(upload, e);
+        }
+    }
+
+    private void done(Upload upload, HttpResponse response) {
+        mCompleted.incrementAndGet();
+        try {
+            write(OP_DONE, upload);
+        } catch (IOException ignored) {
+            // worst case the upload gets repeated after a restart
+        }
+        try {
+            final Listener l = listener;
+            if (l != null) l.onUploaded(upload, response);
+        } finally {
+            remove(upload);
+        }
+    }
+
+    /* permanent failure, removed from the journal */
+    private void fail(Upload upload, IOException e) {
+        try {
+            write(OP_FAILED, upload);
+        } catch (IOException ignored) {
+        }
+        giveUp(upload, e);
+    }
+
+    /* stop trying for now, upload stays in the journal */
+    private void giveUp(Upload upload, IOException e) {
+        mFailed.incrementAndGet();
+        try {
+            final Listener l = listener;
+            if (l != null) l.onFailed(upload, e);
+        } finally {
+            remove(upload);
+        }
+    }
+
+    private synchronized boolean isPending(Upload upload) {
+        return mPending.get(upload.id) == upload;
+    }
+
+    private static IOException error(RuntimeException e) {
+        final IOException error = new IOException("upload failed: " + e);
+        error.initCause(e);
+        return error;
+    }
+
+    private synchronized void remove(Upload upload) {
+        mPending.remove(upload.id);
+        notifyAll();
+    }
+
+    private static void consume(HttpResponse response) {
+        final HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized void write(String op, Upload upload) throws IOException {
+        if (mWriter == null) throw new IOException("queue is closed");
+        try {
+            mWriter.write(upload.toJSON(op).toString());
+            mWriter.write('\n');
+            mWriter.flush();
+            mOut.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!mJournal.exists()) return;
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mJournal), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final JSONObject entry;
+                try {
+                    entry = new JSONObject(line);
+                } catch (JSONException e) {
+                    continue; // incomplete write, crashed while appending
+                }
+                try {
+                    final long id = entry.getLong("id");
+                    if (OP_ADD.equals(entry.getString("op"))) {
+                        mPending.put(id, Upload.fromJSON(entry));
+                    } else {
+                        mPending.remove(id);
+                    }
+                    if (id >= mNextId.get()) mNextId.set(id + 1);
+                } catch (JSONException e) {
+                    throw new IOException("invalid journal entry: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* rewrites the journal with just the pending uploads */
+    private void compact() throws IOException {
+        final File tmp = new File(mJournal.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            for (Upload upload : mPending.values()) {
+                writer.write(upload.toJSON(OP_ADD).toString());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(mJournal)) {
+            // not atomic on all platforms
+            if (!mJournal.delete() || !tmp.renameTo(mJournal)) {
+                throw new IOException("could not replace " + mJournal);
+            }
+        }
+    }
+
+    /**
+     * A queued upload.
+     */
+    public static class Upload {
+        public final long id;
+        private final Request mRequest;
+        private final Cancellation mCancellation = new Cancellation();
+        private volatile int mAttempts;
+
+        Upload(long id, Request request) {
+            this.id = id;
+            mRequest = request;
+        }
+
+        /** @return a copy of the queued request */
+        public Request getRequest() {
+            return new Request(mRequest);
+        }
+
+        /** @return how often this upload has been tried */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        private List<File> files() {
+            final Map<String, File> files = mRequest.getFiles();
+            return files == null ? new ArrayList<File>() : new ArrayList<File>(files.values());
+        }
+
+        /* a fresh request for every attempt, counting the bytes sent */
+        private Request prepare(final AtomicLong bytes) {
+            final Request request = new Request(mRequest).withCancellation(mCancellation);
+            final Request.TransferProgressListener original = mRequest.getListener();
+            return request.setProgressListener(new Request.TransferProgressListener() {
+                private long last;
+
+                @Override public void transferred(long amount) throws IOException {
+                    if (amount < last) last = 0; // entity got replayed
+                    bytes.addAndGet(amount - last);
+                    last = amount;
+                    if (original != null) original.transferred(amount);
+                }
+            });
+        }
+
+        private JSONObject toJSON(String op) throws JSONException {
+            final JSONObject json = new JSONObject().put("id", id).put("op", op);
+            if (OP_ADD.equals(op)) {
+                json.put("resource", mRequest.getResource());
+                json.put("pattern", mRequest.getPattern());
+                if (mRequest.getUser() != null) json.put("user", mRequest.getUser());
+                final JSONArray params = new JSONArray();
+                for (NameValuePair pair : mRequest) {
+                    params.put(new JSONArray().put(pair.getName()).put(pair.getValue()));
+                }
+                json.put("params", params);
+                final JSONArray files = new JSONArray();
+                if (mRequest.getFiles() != null) {
+                    for (Map.Entry<String, File> e : mRequest.getFiles().entrySet()) {
+                        files.put(new JSONArray().put(e.getKey()).put(e.getValue().getPath()));
+                    }
+                }
+                json.put("files", files);
+            }
+            return json;
+        }
+
+        private static Upload fromJSON(JSONObject json) throws JSONException {
+            final Request request = new Request(json.getString("resource"));
+            if (json.has("pattern")) request.withPattern(json.getString("pattern"));
+            if (json.has("user")) request.forUser(json.getString("user"));
+            final JSONArray params = json.getJSONArray("params");
+            for (int i = 0; i < params.length(); i++) {
+                request.add(params.getJSONArray(i).getString(0), params.getJSONArray(i).getString(1));
+            }
+            final JSONArray files = json.getJSONArray("files");
+            for (int i = 0; i < files.length(); i++) {
+                request.withFile(files.getJSONArray(i).getString(0), new File(files.getJSONArray(i).getString(1)));
+            }
+            return new Upload(json.getLong("id"), request);
+        }
+
+        @Override
+        public String toString() {
+            return "Upload{" +
+                    "id=" + id +
+                    ", attempts=" + mAttempts +
+                    ", request=" + mRequest +
+                    '}';
+        }
+    }
+
+    /**
+     * Interested in the outcome of uploads. Callbacks are made from the worker threads.
+     */
+    public interface Listener {
+        /**
+         * @param upload   the upload
+         * @param response the server response, its content is consumed after this call returns
+         */
+        void onUploaded(Upload upload, HttpResponse response);
+
+        /**
+         * Called when the upload failed permanently (4xx) or all attempts have been used up.
+         * In the latter case the upload remains in the journal and will be tried again when the
+         * queue gets reopened.
+         * @param upload    the upload
+         * @param exception the last error
+         */
+        void onFailed(Upload upload, IOException exception);
+    }
+}
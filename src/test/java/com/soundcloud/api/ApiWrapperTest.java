@@ -6,9 +6,11 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import com.soundcloud.api.fakehttp.FakeHttpLayer;
+import com.soundcloud.api.fakehttp.FakeHttpResponse;
 import com.soundcloud.api.fakehttp.RequestMatcher;
 import org.apache.http.ConnectionReuseStrategy;
 import org.apache.http.Header;
@@ -22,19 +24,43 @@ import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.RedirectHandler;
 import org.apache.http.client.RequestDirector;
 import org.apache.http.client.UserTokenHandler;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.HttpRequestExecutor;
 import org.junit.Before;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import org.junit.Test;
+import java.util.List;
+import java.util.ArrayList;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class ApiWrapperTest {
@@ -101,6 +127,75 @@ public class ApiWrapperTest {
         api.clientCredentials("unlimitedammo");
     }
 
+    @Test
+    public void clientCredentialsShouldUseCache() throws Exception {
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"04u7h-4cc355-70k3n\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         \"signup\",\n" +
+                "  \"refresh_token\": \"04u7h-r3fr35h-70k3n\"\n" +
+                "}");
+        api.setClientCredentialsCache(new ClientCredentialsCache());
+
+        Token t1 = api.clientCredentials();
+        // no second response pending, has to come from the cache
+        Token t2 = api.clientCredentials();
+        assertThat(t2, equalTo(t1));
+        assertNotSame(t1, t2);
+        assertThat(api.getClientCredentialsCache().size(), is(1));
+    }
+
+    @Test
+    public void clientCredentialsShouldExpireFromCacheWithoutRefreshToken() throws Exception {
+        final String token = "{\n" +
+                "  \"access_token\":  \"04u7h-4cc355-70k3n\",\n" +
+                "  \"expires_in\":    30,\n" +
+                "  \"scope\":         \"signup\"\n" +
+                "}";
+        layer.addPendingHttpResponse(200, token);
+        layer.addPendingHttpResponse(200, token);
+        api.setClientCredentialsCache(new ClientCredentialsCache());
+
+        Token t = api.clientCredentials();
+        assertNull(t.refresh);
+        assertNotNull(t.getExpiresIn());
+        // expires within the refresh margin, has to be fetched again
+        api.clientCredentials();
+        assertFalse(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void invalidatingTokenShouldEvictItFromCache() throws Exception {
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"04u7h-4cc355-70k3n\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         \"signup\"\n" +
+                "}");
+        api.setClientCredentialsCache(new ClientCredentialsCache());
+        api.setToken(api.clientCredentials());
+        assertThat(api.getClientCredentialsCache().size(), is(1));
+
+        api.invalidateToken();
+        assertThat(api.getClientCredentialsCache().size(), is(0));
+    }
+
+    @Test
+    public void clientCredentialsShouldNotCacheTokensWithoutRequestedScope() throws Exception {
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"04u7h-4cc355-70k3n\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         \"loser\",\n" +
+                "  \"refresh_token\": \"04u7h-r3fr35h-70k3n\"\n" +
+                "}");
+        api.setClientCredentialsCache(new ClientCredentialsCache());
+        try {
+            api.clientCredentials("unlimitedammo");
+            fail("expected InvalidTokenException");
+        } catch (CloudAPI.InvalidTokenException expected) {
+        }
+        assertThat(api.getClientCredentialsCache().size(), is(0));
+    }
+
     @Test
     public void exchangeOAuth1Token() throws Exception {
         layer.addPendingHttpResponse(200, "{\n" +
@@ -400,6 +495,200 @@ public class ApiWrapperTest {
         verify(listener).onTokenRefreshed(api.getToken());
     }
 
+    @Test
+    public void shouldUseExpectContinueForLargeBodies() throws Exception {
+        layer.addPendingHttpResponse(201, "created");
+        layer.addPendingHttpResponse(201, "created");
+        api.setExpectContinueThreshold(4);
+
+        api.post(Request.to("/tracks").withFile("foo", "small".getBytes()));
+        api.post(Request.to("/tracks").withContent("tiny", "text/plain"));
+
+        assertTrue(HttpProtocolParams.useExpectContinue(layer.getSentHttpRequestInfo(0).getHttpRequest().getParams()));
+        assertFalse(HttpProtocolParams.useExpectContinue(layer.getSentHttpRequestInfo(1).getHttpRequest().getParams()));
+    }
+
+    @Test
+    public void shouldRefreshExpiredTokenBeforeSendingLargeBody() throws Exception {
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"fr3sh\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         null,\n" +
+                "  \"refresh_token\": \"refresh\"\n" +
+                "}");
+        layer.addPendingHttpResponse(201, "created");
+
+        Token expired = new Token("access", "refresh");
+        expired.expiresIn = System.currentTimeMillis() - 1000;
+        api.setToken(expired);
+        api.setExpectContinueThreshold(0);
+
+        api.post(Request.to("/tracks").withFile("foo", "data".getBytes()));
+        assertThat(api.getToken().access, equalTo("fr3sh"));
+        assertThat(layer.getSentHttpRequestInfo(1).getHttpRequest().getFirstHeader("Authorization").getValue(),
+                equalTo("OAuth fr3sh"));
+    }
+
+    @Test
+    public void shouldNotRefreshTokenForSmallBodies() throws Exception {
+        layer.addPendingHttpResponse(201, "created");
+        Token expired = new Token("access", "refresh");
+        expired.expiresIn = System.currentTimeMillis() - 1000;
+        api.setToken(expired);
+
+        api.post(Request.to("/tracks").with("foo", "bar"));
+        assertThat(api.getToken().access, equalTo("access"));
+    }
+
+    @Test
+    public void shouldNotBeAffectedByChangesToTokens() throws Exception {
+        Token token = new Token("access", "refresh");
+        api.setToken(token);
+        token.access = "changed";
+        api.getToken().invalidate();
+        assertThat(api.getToken().access, equalTo("access"));
+        assertThat(api.addAuthHeader(new HttpGet("/foo")).getFirstHeader("Authorization").getValue(),
+                equalTo("OAuth access"));
+    }
+
+    @Test
+    public void invalidateTokenShouldNotModifyTokenInstances() throws Exception {
+        Token token = new Token("access", "refresh");
+        api.setToken(token);
+        assertThat(api.invalidateToken(), is(nullValue()));
+        assertThat(token.access, equalTo("access"));
+        assertThat(api.getToken().access, is(nullValue()));
+        assertThat(api.getToken().refresh, equalTo("refresh"));
+        assertThat(api.addAuthHeader(new HttpGet("/foo")).getFirstHeader("Authorization").getValue(),
+                equalTo("OAuth invalidated"));
+    }
+
+    @Test
+    public void shouldAlwaysSendConsistentAuthHeaderWhileTokensAreSwapped() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread() {
+            @Override public void run() {
+                int i = 0;
+                while (running.get()) {
+                    api.setToken(new Token("t" + (i++ % 10), "refresh"));
+                    api.invalidateToken();
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 100000; i++) {
+                String value = api.addAuthHeader(new HttpGet("/foo")).getFirstHeader("Authorization").getValue();
+                assertTrue(value, value.matches("OAuth (t\\d|invalidated)"));
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void shouldUseTokenOfUserFromTokenStore() throws Exception {
+        TokenStore store = new TokenStore(10);
+        store.put("1", new Token("us3r", "refresh"));
+        api.setTokenStore(store);
+        api.setToken(new Token("wr4pp3r", "refresh"));
+        layer.addPendingHttpResponse(200, "{}");
+        layer.addPendingHttpResponse(200, "{}");
+
+        api.get(Request.to("/me").forUser("1"));
+        api.get(Request.to("/me"));
+        assertThat(layer.getSentHttpRequestInfo(0).getHttpRequest().getFirstHeader("Authorization").getValue(),
+                equalTo("OAuth us3r"));
+        assertThat(layer.getSentHttpRequestInfo(1).getHttpRequest().getFirstHeader("Authorization").getValue(),
+                equalTo("OAuth wr4pp3r"));
+    }
+
+    @Test
+    public void shouldRefreshTokenOfUser() throws Exception {
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"fr3sh\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         null,\n" +
+                "  \"refresh_token\": \"refresh\"\n" +
+                "}");
+        CloudAPI.TokenListener wrapperListener = mock(CloudAPI.TokenListener.class);
+        CloudAPI.TokenListener userListener = mock(CloudAPI.TokenListener.class);
+        TokenStore store = new TokenStore(10);
+        store.put("1", new Token("us3r", "refresh"), userListener);
+        api.setTokenStore(store);
+        api.setTokenListener(wrapperListener);
+
+        OAuth2Scheme scheme = new OAuth2Scheme(api, null, new ApiWrapper.AuthHooks(api));
+        HttpGet rejected = Request.to("/me").forUser("1").buildRequest(HttpGet.class);
+        rejected.addHeader("Authorization", "OAuth us3r");
+
+        assertThat(scheme.authenticate(null, rejected).getValue(), equalTo("OAuth fr3sh"));
+        assertThat(store.get("1").access, equalTo("fr3sh"));
+        verify(userListener).onTokenInvalid(new Token("us3r", "refresh"));
+        verify(userListener).onTokenRefreshed(store.get("1"));
+        verifyZeroInteractions(wrapperListener);
+    }
+
+    @Test(expected = CloudAPI.InvalidTokenException.class)
+    public void refreshingUnknownUserShouldThrow() throws Exception {
+        api.setTokenStore(new TokenStore(10));
+        api.refreshToken("unknown");
+    }
+
+    @Test
+    public void shouldShareRefreshedTokenWithOtherProcesses() throws Exception {
+        File file = File.createTempFile("shared", "token");
+        SharedTokenFile mine = new SharedTokenFile(file);
+        // stands in for another process, it has no http layer and must not make requests
+        SharedTokenFile theirs = new SharedTokenFile(file);
+        try {
+            ApiWrapper other = new ApiWrapper("invalid", "invalid", null, null, Env.SANDBOX);
+            api.setToken(new Token("access", "refresh"));
+            api.setSharedTokenFile(mine);
+            other.setSharedTokenFile(theirs);
+            assertThat(other.getToken().access, equalTo("access"));
+
+            layer.addPendingHttpResponse(200, "{\n" +
+                    "  \"access_token\":  \"fr3sh\",\n" +
+                    "  \"expires_in\":    3600,\n" +
+                    "  \"scope\":         null,\n" +
+                    "  \"refresh_token\": \"r3fr35h\"\n" +
+                    "}");
+            api.refreshToken();
+
+            assertThat(other.getToken().access, equalTo("fr3sh"));
+            assertThat(other.getToken().refresh, equalTo("r3fr35h"));
+        } finally {
+            mine.close();
+            theirs.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldNotRefreshTokenAlreadyRefreshedByOtherProcess() throws Exception {
+        File file = File.createTempFile("shared", "token");
+        SharedTokenFile mine = new SharedTokenFile(file);
+        SharedTokenFile theirs = new SharedTokenFile(file);
+        try {
+            api.setToken(new Token("access", "refresh"));
+            api.setSharedTokenFile(mine);
+            theirs.write(new Token("fr3sh", "r3fr35h"));
+
+            // no pending response, the token has to come from the file
+            assertThat(api.refreshToken().access, equalTo("fr3sh"));
+            layer.addPendingHttpResponse(200, "{}");
+            api.get(Request.to("/me"));
+            assertThat(layer.getSentHttpRequestInfo(0).getHttpRequest().getFirstHeader("Authorization").getValue(),
+                    equalTo("OAuth fr3sh"));
+        } finally {
+            mine.close();
+            theirs.close();
+            file.delete();
+        }
+    }
+
     @Test
     public void shouldSerializeAndDeserializeWrapper() throws Exception {
         ApiWrapper wrapper = new ApiWrapper("client", "secret", null, new Token("1", "2"), Env.SANDBOX);
@@ -417,4 +706,698 @@ public class ApiWrapperTest {
         other.invalidateToken();
         verify(listener).onTokenInvalid(old);
     }
+
+    @Test
+    public void shouldWriteAndReadAllSettings() throws Exception {
+        ApiWrapper wrapper = new ApiWrapper("client", "secret", URI.create("redirect://me"), null, Env.LIVE);
+        Token token = new Token("1", "2", "*");
+        token.expiresIn = 1234L;
+        wrapper.setToken(token);
+        wrapper.setDefaultContentType("application/xml");
+        wrapper.setExpectContinueThreshold(-1);
+
+        File dir = File.createTempFile("wrapper", "dir");
+        assertTrue(dir.delete() && dir.mkdir());
+        File f = new File(dir, "wrapper.bin");
+        wrapper.toFile(f);
+        // no temporary files left behind
+        assertThat(dir.list().length, is(1));
+
+        ApiWrapper other = ApiWrapper.fromFile(f);
+        assertThat(other.getToken(), equalTo(token));
+        assertThat(other.getToken().expiresIn, is(1234L));
+        assertThat(other.env, is(Env.LIVE));
+        assertThat(other.authorizationCodeUrl().toString(), equalTo(wrapper.authorizationCodeUrl().toString()));
+        assertThat(other.getDefaultContentType(), equalTo("application/xml"));
+        assertThat(other.getExpectContinueThreshold(), is(-1L));
+        f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void shouldWriteToSameFileConcurrently() throws Exception {
+        final ApiWrapper wrapper = new ApiWrapper("client", "secret", null, new Token("1", "2"), Env.LIVE);
+        final File f = File.createTempFile("wrapper", "bin");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writes = new ArrayList<Future<?>>();
+            for (int i = 0; i < 8; i++) {
+                writes.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        wrapper.toFile(f);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> write : writes) write.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(ApiWrapper.fromFile(f).getToken(), equalTo(wrapper.getToken()));
+        f.delete();
+    }
+
+    @Test
+    public void shouldReadWrappersWrittenWithJavaSerialization() throws Exception {
+        ApiWrapper wrapper = new ApiWrapper("client", "secret", null, new Token("1", "2"), Env.SANDBOX);
+        File f = File.createTempFile("serialized_wrapper", "ser");
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f));
+        oos.writeObject(wrapper);
+        oos.close();
+
+        ApiWrapper other = ApiWrapper.fromFile(f);
+        assertThat(other.getToken(), equalTo(wrapper.getToken()));
+        assertThat(other.env, is(Env.SANDBOX));
+        f.delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectUnknownFormatVersion() throws Exception {
+        File f = File.createTempFile("wrapper", "bin");
+        new ApiWrapper("client", "secret", null, null, Env.LIVE).toFile(f);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(4);
+        raf.writeByte(99);
+        raf.close();
+        try {
+            ApiWrapper.fromFile(f);
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void shouldRetryIdempotentRequests() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(0, 0);
+        api.setRetryPolicy(policy);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(502, "bad gateway");
+        layer.addPendingHttpResponse(200, "ok");
+
+        assertThat(api.get(Request.to("/foo")).getStatusLine().getStatusCode(), is(200));
+        assertThat(policy.getAttempts(), is(3L));
+        assertThat(policy.getRetries(), is(2L));
+    }
+
+    @Test
+    public void shouldReturnLastResponseWhenGivingUp() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(0, 0);
+        policy.setMaxAttempts(2);
+        api.setRetryPolicy(policy);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(503, "still unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+
+        assertThat(api.get(Request.to("/foo")).getStatusLine().getStatusCode(), is(503));
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldHonourRetryAfterWhenRetrying() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(0, 0);
+        api.setRetryPolicy(policy);
+        FakeHttpResponse throttled = new FakeHttpResponse(503, "unavailable");
+        throttled.addHeader("Retry-After", "3600");
+        layer.addPendingHttpResponse(throttled);
+        layer.addPendingHttpResponse(200, "ok");
+
+        // asks for longer than the maximum delay, returned straight away
+        assertThat(api.get(Request.to("/foo")).getStatusLine().getStatusCode(), is(503));
+        assertThat(policy.getRetries(), is(0L));
+    }
+
+    @Test
+    public void shouldNotRetryPostByDefault() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(0, 0);
+        api.setRetryPolicy(policy);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+
+        assertThat(api.post(Request.to("/foo").with("a", "b")).getStatusLine().getStatusCode(), is(503));
+
+        policy.setRetryPost(true);
+        layer.addPendingHttpResponse(503, "unavailable");
+        assertThat(api.post(Request.to("/foo").with("a", "b")).getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void shouldRejectRequestsOverTheRateLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        api.setRateLimiter(limiter);
+        layer.addPendingHttpResponse(200, "ok");
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 1));
+        try {
+            api.get(Request.to(Endpoints.TRACK_DETAILS, 2));
+            fail("expected RateLimitedException");
+        } catch (RateLimiter.RateLimitedException expected) {
+        }
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldUseEndpointPatternForRateLimiting() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 100);
+        limiter.setEndpointLimit(Endpoints.TRACK_DETAILS, 1, 1);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        api.setRateLimiter(limiter);
+        layer.addPendingHttpResponse(200, "ok");
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 1));
+        api.get(Request.to(Endpoints.USER_DETAILS, 1));
+        assertThat(limiter.getRejected(), is(0L));
+        try {
+            api.get(Request.to(Endpoints.TRACK_DETAILS, 2));
+            fail("expected RateLimitedException");
+        } catch (RateLimiter.RateLimitedException expected) {
+        }
+    }
+
+    @Test
+    public void shouldFailFastWhenCircuitIsOpen() throws Exception {
+        CircuitBreakers breakers = new CircuitBreakers();
+        breakers.setWindow(2, 2);
+        api.setCircuitBreakers(breakers);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(500, "error");
+        layer.addPendingHttpResponse(200, "ok");
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        try {
+            api.get(Request.to(Endpoints.MY_ACTIVITIES));
+            fail("expected CircuitOpenException");
+        } catch (CircuitBreaker.CircuitOpenException expected) {
+        }
+        // other endpoints are not affected
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(200));
+        assertThat(breakers.get(Endpoints.MY_ACTIVITIES).getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void shouldNotUseRateLimitPermitsWhenCircuitIsOpen() throws Exception {
+        RateLimiter limiter = new RateLimiter(0.001, 3);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        api.setRateLimiter(limiter);
+        CircuitBreakers breakers = new CircuitBreakers();
+        breakers.setWindow(2, 2);
+        api.setCircuitBreakers(breakers);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(500, "error");
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        try {
+            api.get(Request.to(Endpoints.MY_ACTIVITIES));
+            fail("expected CircuitOpenException");
+        } catch (CircuitBreaker.CircuitOpenException expected) {
+        }
+        // the rejected call left the last permit
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(200));
+        assertThat(limiter.getRejected(), is(0L));
+    }
+
+    @Test
+    public void shouldNotSendRequestsPastTheirDeadline() throws Exception {
+        layer.addPendingHttpResponse(200, "ok");
+        try {
+            api.get(Request.to(Endpoints.MY_DETAILS).withDeadline(System.currentTimeMillis() - 1));
+            fail("expected DeadlineExceededException");
+        } catch (CloudAPI.DeadlineExceededException expected) {
+        }
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldLimitTimeoutsToRemainingTime() throws Exception {
+        layer.addPendingHttpResponse(200, "ok");
+        api.get(Request.to(Endpoints.MY_DETAILS).withTimeout(2000));
+        HttpParams params = layer.getSentHttpRequestInfo(0).getHttpRequest().getParams();
+        assertTrue(HttpConnectionParams.getSoTimeout(params) <= 2000);
+        assertTrue(HttpConnectionParams.getConnectionTimeout(params) <= 2000);
+        assertTrue(ConnManagerParams.getTimeout(params) <= 2000);
+    }
+
+    @Test
+    public void shouldNotRetryPastDeadline() throws Exception {
+        RetryPolicy retry = new RetryPolicy();
+        retry.setBackoff(0, 10000);
+        api.setRetryPolicy(retry);
+        FakeHttpResponse unavailable = new FakeHttpResponse(503, "unavailable");
+        unavailable.addHeader("Retry-After", "5");
+        layer.addPendingHttpResponse(unavailable);
+        layer.addPendingHttpResponse(200, "ok");
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS).withTimeout(1000)).getStatusLine().getStatusCode(), is(503));
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldNotSendCancelledRequests() throws Exception {
+        layer.addPendingHttpResponse(200, "ok");
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        try {
+            api.get(Request.to(Endpoints.MY_DETAILS).withCancellation(cancellation));
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldDetachRequestsFromCancellationOnceDone() throws Exception {
+        HttpResponse streamed = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("[]".getBytes()));
+        streamed.setEntity(entity);
+        layer.addPendingHttpResponse(streamed);
+        layer.addPendingHttpResponse(404, "not found");
+
+        Cancellation cancellation = new Cancellation();
+        HttpResponse response = api.get(Request.to(Endpoints.MY_ACTIVITIES).withCancellation(cancellation));
+        // still attached while the body is read
+        assertThat(cancellation.attached(), is(1));
+        response.getEntity().consumeContent();
+        assertThat(cancellation.attached(), is(0));
+
+        api.get(Request.to(Endpoints.MY_DETAILS).withCancellation(cancellation)).getEntity().consumeContent();
+        assertThat(cancellation.attached(), is(0));
+
+        try {
+            // no response pending, fails
+            api.get(Request.to(Endpoints.MY_DETAILS).withCancellation(cancellation));
+            fail("expected RuntimeException");
+        } catch (RuntimeException expected) {
+        }
+        assertThat(cancellation.attached(), is(0));
+    }
+
+    @Test
+    public void shouldStopWaitingForRetryWhenCancelled() throws Exception {
+        RetryPolicy retry = new RetryPolicy();
+        retry.setBackoff(0, 10000);
+        api.setRetryPolicy(retry);
+        FakeHttpResponse unavailable = new FakeHttpResponse(503, "unavailable");
+        unavailable.addHeader("Retry-After", "5");
+        layer.addPendingHttpResponse(unavailable);
+        layer.addPendingHttpResponse(200, "ok");
+
+        final Cancellation cancellation = new Cancellation();
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                cancellation.cancel();
+            }
+        }.start();
+        final long start = System.currentTimeMillis();
+        try {
+            api.get(Request.to(Endpoints.MY_DETAILS).withCancellation(cancellation));
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(layer.hasPendingResponses());
+    }
+
+    @Test
+    public void shouldLimitConcurrencyPerBulkhead() throws Exception {
+        Bulkheads bulkheads = new Bulkheads();
+        Bulkhead collections = bulkheads.add("collections", 1, 0).forPatterns(Endpoints.MY_ACTIVITIES);
+        api.setBulkheads(bulkheads);
+        HttpResponse streamed = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("[]".getBytes()));
+        streamed.setEntity(entity);
+        layer.addPendingHttpResponse(streamed);
+        layer.addPendingHttpResponse(200, "ok");
+
+        HttpResponse response = api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        assertThat(collections.getActive(), is(1));
+        try {
+            api.get(Request.to(Endpoints.MY_ACTIVITIES));
+            fail("expected BulkheadFullException");
+        } catch (Bulkhead.BulkheadFullException expected) {
+        }
+        // other traffic is not affected
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(200));
+        response.getEntity().consumeContent();
+        assertThat(collections.getActive(), is(0));
+    }
+
+    @Test
+    public void shouldLeaveRetriesToRetryPolicy() throws Exception {
+        HttpRequestRetryHandler retries = ((DefaultHttpClient) api.getHttpClient()).getHttpRequestRetryHandler();
+        assertTrue(retries.retryRequest(new NoHttpResponseException("dropped"), 1, new BasicHttpContext()));
+        api.setRetryPolicy(new RetryPolicy());
+        assertFalse(retries.retryRequest(new NoHttpResponseException("dropped"), 1, new BasicHttpContext()));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void debugRequestsShouldNotPrintSecrets() throws Exception {
+        layer.addPendingHttpResponse(200, "OK");
+        api.debugRequests = true;
+        final PrintStream err = System.err;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(out, true));
+        try {
+            api.get(Request.to("/me?oauth_token=secret-token")
+                    .with("password", "secret-password", "q", "x")
+                    .usingToken(new Token("secret-access", "secret-refresh")));
+        } finally {
+            System.setErr(err);
+        }
+        final String printed = out.toString();
+        assertThat(printed, containsString("HttpGet /me"));
+        assertThat(printed, containsString("q=x"));
+        assertFalse(printed, printed.contains("secret"));
+    }
+
+    @Test
+    public void resolveShouldReleaseBulkheadSlot() throws Exception {
+        Bulkheads bulkheads = new Bulkheads();
+        bulkheads.setMaxWait(0);
+        Bulkhead resolve = bulkheads.add("resolve", 1, 0).forPatterns(Endpoints.RESOLVE);
+        api.setBulkheads(bulkheads);
+        for (int i = 0; i < 2; i++) {
+            HttpResponse moved = new BasicHttpResponse(HttpVersion.HTTP_1_1, 302, "Found");
+            moved.addHeader("Location", "http://api.soundcloud.com/users/1000");
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream("moved".getBytes()));
+            moved.setEntity(entity);
+            layer.addPendingHttpResponse(moved);
+        }
+
+        assertThat(api.resolve("http://soundcloud.com/crazybob"), is(1000L));
+        assertThat(resolve.getActive(), is(0));
+        // would fail with BulkheadFullException if the slot was still taken
+        assertThat(api.resolve("http://soundcloud.com/crazybob"), is(1000L));
+        assertThat(resolve.getActive(), is(0));
+    }
+
+    @Test
+    public void shouldAdaptConcurrencyLimitToFailures() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(10, 1, 100);
+        api.setConcurrencyLimiter(limiter);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.MY_DETAILS));
+        assertThat(limiter.getLimit(), is(9));
+        api.get(Request.to(Endpoints.MY_DETAILS));
+        assertThat(limiter.getLimit(), is(9));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void shouldNotCountConcurrencyLimitRejectionsAsBreakerFailures() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(1, 1, 1);
+        limiter.setMaxWait(0);
+        api.setConcurrencyLimiter(limiter);
+        CircuitBreakers breakers = new CircuitBreakers();
+        breakers.setWindow(2, 2);
+        api.setCircuitBreakers(breakers);
+        // somebody else holds the only slot
+        limiter.acquire(0, null);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                api.get(Request.to(Endpoints.MY_DETAILS));
+                fail("expected LimitExceededException");
+            } catch (ConcurrencyLimiter.LimitExceededException expected) {
+            }
+        }
+        assertThat(breakers.get(Endpoints.MY_DETAILS).getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breakers.get(Endpoints.MY_DETAILS).getFailureRate(), is(0f));
+    }
+
+    @Test
+    public void shouldNotCountSchedulerQueueingAgainstTheEndpoint() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1);
+        scheduler.setMaxWait(0);
+        api.setRequestScheduler(scheduler);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(10, 1, 100);
+        api.setConcurrencyLimiter(limiter);
+        CircuitBreakers breakers = new CircuitBreakers();
+        breakers.setWindow(2, 2);
+        api.setCircuitBreakers(breakers);
+        HttpResponse streamed = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("[]".getBytes()));
+        streamed.setEntity(entity);
+        layer.addPendingHttpResponse(streamed);
+
+        // holds the only slot until its body is consumed
+        HttpResponse response = api.get(Request.to(Endpoints.MY_ACTIVITIES));
+        for (int i = 0; i < 2; i++) {
+            try {
+                api.get(Request.to(Endpoints.MY_ACTIVITIES));
+                fail("expected QueueTimeoutException");
+            } catch (RequestScheduler.QueueTimeoutException expected) {
+            }
+        }
+        response.getEntity().consumeContent();
+        assertThat(limiter.getLimit(), is(10));
+        assertThat(limiter.getInFlight(), is(0));
+        assertThat(breakers.get(Endpoints.MY_ACTIVITIES).getState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(breakers.get(Endpoints.MY_ACTIVITIES).getFailureRate(), is(0f));
+    }
+
+    @Test
+    public void shouldReleaseSchedulerSlotOfHeaderOnlyResponses() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1);
+        scheduler.setMaxWait(0);
+        api.setRequestScheduler(scheduler);
+        HttpResponse moved = new BasicHttpResponse(HttpVersion.HTTP_1_1, 302, "Found");
+        moved.addHeader("Location", "http://api.soundcloud.com/users/1000");
+        BasicHttpEntity body = new BasicHttpEntity();
+        body.setContent(new ByteArrayInputStream("moved".getBytes()));
+        moved.setEntity(body);
+        layer.addPendingHttpResponse(moved);
+        HttpResponse empty = new BasicHttpResponse(HttpVersion.HTTP_1_1, 302, "Found");
+        BasicHttpEntity emptyBody = new BasicHttpEntity();
+        emptyBody.setContent(new ByteArrayInputStream(new byte[0]));
+        emptyBody.setContentLength(0);
+        empty.setEntity(emptyBody);
+        layer.addPendingHttpResponse(empty);
+        layer.addPendingHttpResponse(200, "ok");
+
+        assertThat(api.resolve("http://soundcloud.com/crazybob"), is(1000L));
+        assertThat(scheduler.getActive(), is(0));
+        // only looks at the status, never reads the (empty) body
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(302));
+        assertThat(scheduler.getActive(), is(0));
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void shouldHoldSchedulerSlotUntilBodyIsConsumed() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1);
+        scheduler.setMaxWait(0);
+        api.setRequestScheduler(scheduler);
+        HttpResponse streamed = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("[]".getBytes()));
+        streamed.setEntity(entity);
+        layer.addPendingHttpResponse(streamed);
+        layer.addPendingHttpResponse(200, "ok");
+
+        HttpResponse response = api.get(Request.to(Endpoints.MY_FAVORITES).withPriority(Request.Priority.BULK));
+        try {
+            api.get(Request.to(Endpoints.MY_DETAILS).withPriority(Request.Priority.INTERACTIVE));
+            fail("expected QueueTimeoutException");
+        } catch (RequestScheduler.QueueTimeoutException expected) {
+        }
+        response.getEntity().consumeContent();
+        response = api.get(Request.to(Endpoints.MY_DETAILS));
+        assertThat(response.getStatusLine().getStatusCode(), is(200));
+        response.getEntity().consumeContent();
+        assertThat(scheduler.getActive(), is(0));
+        assertThat(scheduler.getDispatched(Request.Priority.BULK), is(1L));
+    }
+
+    @Test
+    public void shouldReportTimingOfEveryAttempt() throws Exception {
+        RetryPolicy retry = new RetryPolicy();
+        retry.setBackoff(0, 0);
+        api.setRetryPolicy(retry);
+        final List<RequestTiming> timings = new ArrayList<RequestTiming>();
+        api.setTimingListener(new RequestTiming.Listener() {
+            @Override public void onRequestTiming(RequestTiming timing) {
+                timings.add(timing);
+            }
+        });
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+
+        HttpResponse response = api.get(Request.to(Endpoints.TRACK_DETAILS, 123));
+        assertThat(timings.size(), is(1));
+        response.getEntity().consumeContent();
+        assertThat(timings.size(), is(2));
+
+        assertThat(timings.get(0).getAttempt(), is(1));
+        assertThat(timings.get(0).getStatus(), is(503));
+        assertThat(timings.get(1).getAttempt(), is(2));
+        assertThat(timings.get(1).getStatus(), is(200));
+        assertThat(timings.get(1).getMethod(), equalTo("GET"));
+        assertThat(timings.get(1).getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+        assertThat(timings.get(1).getResponseBytes(), is(2L));
+        assertTrue(timings.get(1).getQueue() >= 0);
+        assertTrue(timings.get(1).getBody() >= 0);
+        assertTrue(timings.get(1).getTotal() >= 0);
+        assertThat(RequestTiming.current(), nullValue());
+    }
+
+    @Test
+    public void shouldReportTimingOfFailedAttempts() throws Exception {
+        final List<RequestTiming> timings = new ArrayList<RequestTiming>();
+        api.setTimingListener(new RequestTiming.Listener() {
+            @Override public void onRequestTiming(RequestTiming timing) {
+                timings.add(timing);
+            }
+        });
+        try {
+            api.get(Request.to(Endpoints.MY_DETAILS).withDeadline(System.currentTimeMillis() - 1));
+            fail("expected DeadlineExceededException");
+        } catch (CloudAPI.DeadlineExceededException expected) {
+        }
+        assertThat(timings.size(), is(1));
+        assertThat(timings.get(0).getStatus(), is(-1));
+        assertThat(timings.get(0).getError(), instanceOf(CloudAPI.DeadlineExceededException.class));
+    }
+
+    @Test
+    public void shouldRecordMetricsOncePerCall() throws Exception {
+        RetryPolicy retry = new RetryPolicy();
+        retry.setBackoff(0, 0);
+        api.setRetryPolicy(retry);
+        RequestMetrics metrics = new RequestMetrics();
+        api.setRequestMetrics(metrics);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+        layer.addPendingHttpResponse(404, "not found");
+
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 123));
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 456));
+
+        RequestMetrics.Snapshot snapshot = metrics.getSnapshot(Endpoints.TRACK_DETAILS);
+        assertThat(snapshot.getCount(), is(2L));
+        assertThat(snapshot.getStatusCount(2), is(1L));
+        assertThat(snapshot.getStatusCount(4), is(1L));
+        assertThat(snapshot.getStatusCount(5), is(0L));
+        assertThat(snapshot.getRetries(), is(1L));
+        assertThat(metrics.getSnapshot("/tracks/123"), nullValue());
+    }
+
+    @Test
+    public void shouldKeepFailuresOfUnsampledCallsInRequestLog() throws Exception {
+        RequestLog log = new RequestLog(RequestLog.CAPACITY);
+        log.setSampleRate(0);
+        api.setRequestLog(log);
+        layer.addPendingHttpResponse(200, "ok");
+        layer.addPendingHttpResponse(500, "error");
+
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 1));
+        assertThat(log.dump().isEmpty(), is(true));
+
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 2));
+        List<RequestLog.Event> events = log.dump();
+        assertThat(events.size(), is(1));
+        assertThat(events.get(0).getType(), is(RequestLog.Type.RESPONSE));
+        assertThat(events.get(0).getStatus(), is(500));
+        assertThat(events.get(0).getMethod(), equalTo("GET"));
+        assertThat(events.get(0).getResource(), equalTo("/tracks/2"));
+    }
+
+    @Test
+    public void shouldLogSampledCalls() throws Exception {
+        RequestLog log = new RequestLog(RequestLog.CAPACITY);
+        api.setRequestLog(log);
+        layer.addPendingHttpResponse(200, "ok");
+
+        api.get(Request.to(Endpoints.MY_DETAILS));
+        List<RequestLog.Event> events = log.dump();
+        assertThat(events.size(), is(2));
+        assertThat(events.get(0).getType(), is(RequestLog.Type.REQUEST));
+        assertThat(events.get(1).getType(), is(RequestLog.Type.RESPONSE));
+        assertThat(events.get(1).getStatus(), is(200));
+    }
+
+    @Test
+    public void shouldTraceCallsAndTokenRequests() throws Exception {
+        final List<String> spans = new ArrayList<String>();
+        api.setTracer(new Tracer() {
+            @Override public Span begin(final String name, final String endpoint) {
+                return new Span() {
+                    @Override public void end(int status, long bytes, Exception error) {
+                        spans.add(name + " " + endpoint + " " + status + " " + bytes + " " + (error != null));
+                    }
+                };
+            }
+        });
+        layer.addPendingHttpResponse(200, "{\n" +
+                "  \"access_token\":  \"04u7h-4cc355-70k3n\",\n" +
+                "  \"expires_in\":    3600,\n" +
+                "  \"scope\":         \"*\",\n" +
+                "  \"refresh_token\": \"04u7h-r3fr35h-70k3n\"\n" +
+                "}");
+        layer.addPendingHttpResponse(404, "not found");
+
+        api.login("foo", "bar");
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 123));
+
+        assertThat(spans.size(), is(2));
+        assertThat(spans.get(0), equalTo("token /oauth2/token 200 -1 false"));
+        assertThat(spans.get(1), equalTo("call /tracks/%d 404 9 false"));
+    }
+
+    @Test
+    public void shouldSkipSpansTheTracerDoesNotWant() throws Exception {
+        api.setTracer(new Tracer() {
+            @Override public Span begin(String name, String endpoint) {
+                return null;
+            }
+        });
+        layer.addPendingHttpResponse(200, "ok");
+        assertThat(api.get(Request.to(Endpoints.MY_DETAILS)).getStatusLine().getStatusCode(), is(200));
+    }
+
+    @Test
+    public void shouldCaptureSlowRequestsWithRetryHistory() throws Exception {
+        RetryPolicy retry = new RetryPolicy();
+        retry.setBackoff(0, 0);
+        api.setRetryPolicy(retry);
+        SlowRequestRecorder recorder = new SlowRequestRecorder(10);
+        api.setSlowRequestRecorder(recorder);
+        layer.addPendingHttpResponse(503, "unavailable");
+        layer.addPendingHttpResponse(200, "ok");
+
+        HttpResponse response = api.get(Request.to(Endpoints.TRACK_DETAILS, 123));
+        Thread.sleep(20);
+        assertThat(recorder.getCaptured(), is(0L));
+        response.getEntity().consumeContent();
+
+        assertThat(recorder.getCaptured(), is(1L));
+        SlowRequestRecorder.SlowRequest slow = recorder.getRecent().get(0);
+        assertThat(slow.getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+        assertThat(slow.getAttempts().size(), is(2));
+        assertThat(slow.getAttempts().get(0).getStatus(), is(503));
+        assertThat(slow.getTiming().getStatus(), is(200));
+        assertTrue(slow.getDuration() >= 20);
+    }
 }
@@ -0,0 +1,135 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BulkheadTest {
+    Bulkheads bulkheads = new Bulkheads();
+
+    @Test
+    public void shouldMatchPatternsAndMethodsInOrder() throws Exception {
+        Bulkhead uploads = bulkheads.add("uploads", 1, 0).forMethods("post");
+        Bulkhead collections = bulkheads.add("collections", 1, 0).forPatterns(Endpoints.MY_ACTIVITIES, Endpoints.TRACKS);
+        assertThat(bulkheads.match(Endpoints.TRACKS, "POST"), sameInstance(uploads));
+        assertThat(bulkheads.match(Endpoints.TRACKS, "GET"), sameInstance(collections));
+        assertThat(bulkheads.match(Endpoints.MY_DETAILS, "GET"), nullValue());
+        assertThat(bulkheads.match(null, "GET"), nullValue());
+        assertThat(bulkheads.get("collections"), sameInstance(collections));
+    }
+
+    @Test
+    public void shouldRejectWhenQueueIsFull() throws Exception {
+        Bulkhead bulkhead = bulkheads.add("uploads", 2, 0);
+        bulkhead.acquire(0, null);
+        bulkhead.acquire(0, null);
+        assertThat(bulkhead.getActive(), is(2));
+        try {
+            bulkhead.acquire(0, null);
+            fail("expected BulkheadFullException");
+        } catch (Bulkhead.BulkheadFullException expected) {
+        }
+        assertThat(bulkhead.getRejected(), is(1L));
+        bulkhead.release();
+        bulkhead.acquire(0, null);
+    }
+
+    @Test
+    public void shouldQueueUntilSlotIsReleased() throws Exception {
+        final Bulkhead bulkhead = bulkheads.add("uploads", 1, 1);
+        bulkhead.acquire(0, null);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        new Thread() {
+            @Override public void run() {
+                try {
+                    bulkhead.acquire(0, null);
+                    acquired.countDown();
+                } catch (Exception ignored) {
+                }
+            }
+        }.start();
+        while (bulkhead.getQueued() == 0) Thread.sleep(5);
+        try {
+            bulkhead.acquire(0, null);
+            fail("expected BulkheadFullException");
+        } catch (Bulkhead.BulkheadFullException expected) {
+        }
+        bulkhead.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertThat(bulkhead.getActive(), is(1));
+        assertThat(bulkhead.getQueued(), is(0));
+    }
+
+    @Test
+    public void shouldStopWaitingAtDeadline() throws Exception {
+        Bulkhead bulkhead = bulkheads.add("uploads", 1, 1);
+        bulkhead.acquire(0, null);
+        try {
+            bulkhead.acquire(System.currentTimeMillis() + 20, null);
+            fail("expected BulkheadFullException");
+        } catch (Bulkhead.BulkheadFullException expected) {
+        }
+        assertThat(bulkhead.getQueued(), is(0));
+    }
+
+    @Test
+    public void shouldStopWaitingWhenCancelled() throws Exception {
+        Bulkhead bulkhead = bulkheads.add("uploads", 1, 1);
+        bulkhead.acquire(0, null);
+        final Cancellation cancellation = new Cancellation();
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                cancellation.cancel();
+            }
+        }.start();
+        try {
+            bulkhead.acquire(0, cancellation);
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+    }
+
+    @Test
+    public void shouldHoldSlotUntilBodyIsConsumed() throws Exception {
+        Bulkhead bulkhead = bulkheads.add("collections", 1, 0);
+        bulkhead.acquire(0, null);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("[1,2,3]".getBytes()));
+        response.setEntity(entity);
+
+        bulkhead.releaseOnConsume(response);
+        assertThat(bulkhead.getActive(), is(1));
+        InputStream in = response.getEntity().getContent();
+        while (in.read() != -1) ;
+        assertThat(bulkhead.getActive(), is(0));
+        in.close();
+        response.getEntity().consumeContent();
+        assertThat(bulkhead.getActive(), is(0));
+    }
+
+    @Test
+    public void shouldReleaseSlotRightAwayForBufferedBodies() throws Exception {
+        Bulkhead bulkhead = bulkheads.add("collections", 1, 0);
+        bulkhead.acquire(0, null);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new StringEntity("[]"));
+        bulkhead.releaseOnConsume(response);
+        assertThat(bulkhead.getActive(), is(0));
+    }
+}
@@ -0,0 +1,77 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CancellationTest {
+    @Test
+    public void shouldAbortAttachedRequests() throws Exception {
+        Cancellation cancellation = new Cancellation();
+        HttpGet attached = new HttpGet("http://example.com"), detached = new HttpGet("http://example.com");
+        cancellation.attach(attached);
+        cancellation.attach(detached);
+        cancellation.detach(detached);
+        cancellation.cancel();
+        assertTrue(cancellation.isCancelled());
+        assertTrue(attached.isAborted());
+        assertFalse(detached.isAborted());
+    }
+
+    @Test
+    public void shouldAbortRequestsAttachedAfterCancel() throws Exception {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        HttpGet request = new HttpGet("http://example.com");
+        try {
+            cancellation.attach(request);
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+        assertTrue(request.isAborted());
+    }
+
+    @Test
+    public void shouldWakeUpSleepersOnCancel() throws Exception {
+        final Cancellation cancellation = new Cancellation();
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                cancellation.cancel();
+            }
+        }.start();
+        final long start = System.currentTimeMillis();
+        try {
+            Cancellation.sleep(cancellation, 10000);
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void shouldSleepWhenNotCancelled() throws Exception {
+        final long start = System.currentTimeMillis();
+        Cancellation.sleep(new Cancellation(), 20);
+        Cancellation.sleep(null, 20);
+        assertTrue(System.currentTimeMillis() - start >= 40);
+    }
+
+    @Test
+    public void shouldTranslateErrorsAfterCancel() throws Exception {
+        Cancellation cancellation = new Cancellation();
+        IOException error = new IOException("socket closed");
+        assertThat(cancellation.translate(error), sameInstance(error));
+        cancellation.cancel();
+        IOException translated = cancellation.translate(error);
+        assertThat(translated, instanceOf(CloudAPI.CancelledException.class));
+        assertThat(translated.getCause(), sameInstance((Throwable) error));
+    }
+}
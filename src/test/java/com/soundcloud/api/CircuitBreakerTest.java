@@ -0,0 +1,122 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+    CircuitBreakers breakers;
+    CircuitBreaker breaker;
+    CircuitBreakers.Listener listener;
+
+    @Before
+    public void setup() {
+        breakers = new CircuitBreakers();
+        breakers.setWindow(10, 4);
+        breakers.setOpenDuration(1000, 2);
+        breakers.setSlowCallThreshold(500, 0.5f);
+        listener = mock(CircuitBreakers.Listener.class);
+        breakers.setListener(listener);
+        breaker = breakers.get(Endpoints.MY_ACTIVITIES);
+    }
+
+    @Test
+    public void shouldCreateOneBreakerPerPattern() throws Exception {
+        assertSame(breaker, breakers.get(Endpoints.MY_ACTIVITIES));
+        breakers.get(Endpoints.MY_DETAILS);
+        assertThat(breakers.getAll().size(), is(2));
+    }
+
+    @Test
+    public void shouldLimitNumberOfBreakers() throws Exception {
+        for (int i = 0; breakers.getAll().size() < CircuitBreakers.MAX_PATTERNS; i++) {
+            assertNotNull(breakers.get("/tracks/" + i));
+        }
+        assertNull(breakers.get("/tracks/overflow"));
+        // existing breakers are still handed out
+        assertSame(breaker, breakers.get(Endpoints.MY_ACTIVITIES));
+        assertThat(breakers.getAll().size(), is(CircuitBreakers.MAX_PATTERNS));
+    }
+
+    @Test
+    public void shouldOpenOnFailureRate() throws Exception {
+        breaker.record(false, 10, 0);
+        breaker.record(true, 10, 0);
+        breaker.record(false, 10, 0);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED)); // not enough calls yet
+        breaker.record(true, 10, 0);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        verify(listener).onStateChange(breaker, CircuitBreaker.State.CLOSED, CircuitBreaker.State.OPEN);
+        expectOpen(500);
+    }
+
+    @Test
+    public void shouldOpenOnSlowCallRate() throws Exception {
+        for (int i = 0; i < 4; i++) breaker.record(false, i % 2 == 0 ? 600 : 10, 0);
+        assertThat(breaker.getSlowCallRate(), is(0.5f));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void shouldOnlyLookAtSlidingWindow() throws Exception {
+        for (int i = 0; i < 4; i++) breaker.record(i == 0, 10, 0);
+        assertThat(breaker.getFailureRate(), is(0.25f));
+        for (int i = 0; i < 10; i++) breaker.record(false, 10, 0);
+        assertThat(breaker.getFailureRate(), is(0f));
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void shouldCloseAfterSuccessfulTrials() throws Exception {
+        open();
+        breaker.acquire(1000);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        breaker.acquire(1000);
+        expectOpen(1000); // only two trial calls
+        breaker.record(false, 10, 1000);
+        breaker.record(false, 10, 1000);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        verify(listener).onStateChange(breaker, CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN);
+        verify(listener).onStateChange(breaker, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void shouldReopenAfterFailedTrial() throws Exception {
+        open();
+        breaker.acquire(1000);
+        breaker.record(true, 10, 1000);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        expectOpen(1500);
+        breaker.acquire(2000);
+    }
+
+    @Test
+    public void shouldReleaseUnusedTrials() throws Exception {
+        open();
+        breaker.acquire(1000);
+        breaker.acquire(1000);
+        breaker.release();
+        breaker.acquire(1000);
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) breaker.record(true, 10, 0);
+        assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    private void expectOpen(long now) {
+        try {
+            breaker.acquire(now);
+            fail("expected CircuitOpenException");
+        } catch (CircuitBreaker.CircuitOpenException expected) {
+        }
+    }
+}
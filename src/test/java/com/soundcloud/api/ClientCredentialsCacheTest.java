@@ -0,0 +1,135 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClientCredentialsCacheTest {
+    final ClientCredentialsCache cache = new ClientCredentialsCache(60 * 1000);
+    final AtomicInteger fetches = new AtomicInteger();
+
+    private Callable<Token> fetch(final long expiresIn) {
+        return new Callable<Token>() {
+            @Override public Token call() throws Exception {
+                Token t = new Token("access" + fetches.incrementAndGet(), null, Token.SCOPE_SIGNUP);
+                t.expiresIn = expiresIn;
+                return t;
+            }
+        };
+    }
+
+    @Test
+    public void shouldFetchOnlyOnce() throws Exception {
+        long expires = System.currentTimeMillis() + 3600 * 1000;
+        Token t1 = cache.get(Env.LIVE, "client", "signup", fetch(expires));
+        Token t2 = cache.get(Env.LIVE, "client", "signup", fetch(expires));
+        assertThat(t1.access, equalTo("access1"));
+        assertThat(t2, equalTo(t1));
+        assertThat(fetches.get(), is(1));
+    }
+
+    @Test
+    public void shouldKeyByClientScopeAndEnv() throws Exception {
+        long expires = System.currentTimeMillis() + 3600 * 1000;
+        cache.get(Env.LIVE, "client", "signup", fetch(expires));
+        cache.get(Env.LIVE, "other", "signup", fetch(expires));
+        cache.get(Env.LIVE, "client", null, fetch(expires));
+        cache.get(Env.SANDBOX, "client", "signup", fetch(expires));
+        assertThat(fetches.get(), is(4));
+        assertThat(cache.size(), is(4));
+    }
+
+    @Test
+    public void shouldRefetchAheadOfExpiry() throws Exception {
+        long soon = System.currentTimeMillis() + 30 * 1000; // within margin
+        cache.get(Env.LIVE, "client", "signup", fetch(soon));
+        Token t = cache.get(Env.LIVE, "client", "signup", fetch(soon + 3600 * 1000));
+        assertThat(t.access, equalTo("access2"));
+        t = cache.get(Env.LIVE, "client", "signup", fetch(soon));
+        assertThat(t.access, equalTo("access2"));
+    }
+
+    @Test
+    public void shouldRefetchExpiredTokens() throws Exception {
+        cache.get(Env.LIVE, "client", "signup", fetch(System.currentTimeMillis() - 1000));
+        Token t = cache.get(Env.LIVE, "client", "signup", fetch(System.currentTimeMillis() + 3600 * 1000));
+        assertThat(t.access, equalTo("access2"));
+    }
+
+    @Test
+    public void shouldEvict() throws Exception {
+        long expires = System.currentTimeMillis() + 3600 * 1000;
+        Token t = cache.get(Env.LIVE, "client", "signup", fetch(expires));
+        assertTrue(cache.evict(t));
+        assertFalse(cache.evict(t));
+        assertThat(cache.get(Env.LIVE, "client", "signup", fetch(expires)).access, equalTo("access2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldPropagateFailuresAndNotCache() throws Exception {
+        try {
+            cache.get(Env.LIVE, "client", "signup", new Callable<Token>() {
+                @Override public Token call() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+        } finally {
+            assertThat(cache.size(), is(0));
+        }
+    }
+
+    @Test
+    public void concurrentCallersShouldShareOneFetch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final long expires = System.currentTimeMillis() + 3600 * 1000;
+        final Callable<Token> slowFetch = new Callable<Token>() {
+            @Override public Token call() throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+                return fetch(expires).call();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Token>> results = new ArrayList<Future<Token>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Token>() {
+                    @Override public Token call() throws Exception {
+                        return cache.get(Env.LIVE, "client", "signup", slowFetch);
+                    }
+                }));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<Token> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS).access, equalTo("access1"));
+            }
+            assertThat(fetches.get(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldRefetchTokensWithoutExpirationAfterMaxTtl() throws Exception {
+        ClientCredentialsCache cache = new ClientCredentialsCache(0, 50);
+        assertThat(cache.get(Env.LIVE, "client", "signup", fetch(0)).access, equalTo("access1"));
+        assertThat(cache.get(Env.LIVE, "client", "signup", fetch(0)).access, equalTo("access1"));
+        Thread.sleep(100);
+        assertThat(cache.get(Env.LIVE, "client", "signup", fetch(0)).access, equalTo("access2"));
+    }
+}
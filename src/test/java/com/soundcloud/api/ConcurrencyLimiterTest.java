@@ -0,0 +1,99 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+    @Test
+    public void shouldRejectBeyondLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(2, 1, 10);
+        limiter.setMaxWait(0);
+        limiter.acquire(0, null);
+        limiter.acquire(0, null);
+        assertThat(limiter.getInFlight(), is(2));
+        try {
+            limiter.acquire(0, null);
+            fail("expected LimitExceededException");
+        } catch (ConcurrencyLimiter.LimitExceededException expected) {
+        }
+        assertThat(limiter.getRejected(), is(1L));
+        limiter.ignore();
+        limiter.acquire(0, null);
+    }
+
+    @Test
+    public void shouldIncreaseAdditivelyAndDecreaseMultiplicatively() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(2, 1, 100);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(0, null);
+            limiter.acquire(0, null);
+            limiter.release(10, false);
+            limiter.release(10, false);
+        }
+        assertTrue(limiter.getLimit() > 2);
+        final int limit = limiter.getLimit();
+        limiter.acquire(0, null);
+        limiter.release(10, true);
+        assertTrue(limiter.getLimit() < limit);
+    }
+
+    @Test
+    public void shouldNotGrowWhenLimitIsNotUsed() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(10, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(0, null);
+            limiter.release(10, false);
+        }
+        assertThat(limiter.getLimit(), is(10));
+        assertThat(limiter.getLimitChanges(), is(0L));
+    }
+
+    @Test
+    public void shouldShrinkWhenRoundTripsGetLonger() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.GRADIENT);
+        limiter.setLimits(20, 1, 100);
+        // keep the limit busy, so it can grow
+        for (int i = 0; i < 19; i++) limiter.acquire(0, null);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(0, null);
+            limiter.release(10, false);
+        }
+        final int limit = limiter.getLimit();
+        assertTrue(limit > 20);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(0, null);
+            limiter.release(200, false);
+        }
+        assertTrue(limiter.getLimit() < limit);
+    }
+
+    @Test
+    public void shouldNotifyListenerAboutLimitChanges() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(10, 1, 100);
+        ConcurrencyLimiter.Listener listener = mock(ConcurrencyLimiter.Listener.class);
+        limiter.setListener(listener);
+        limiter.acquire(0, null);
+        limiter.release(10, true);
+        verify(listener).onLimitChange(10, 9);
+        assertThat(limiter.getLimitChanges(), is(1L));
+    }
+
+    @Test
+    public void shouldRespectMinimumLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.AIMD);
+        limiter.setLimits(2, 2, 10);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(0, null);
+            limiter.release(10, true);
+        }
+        assertThat(limiter.getLimit(), is(2));
+    }
+}
@@ -0,0 +1,43 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class DeadlineTest {
+    @Test
+    public void shouldAbortRequestWhenDeadlineExpires() throws Exception {
+        HttpGet request = new HttpGet("http://example.com");
+        Deadline.arm(request, System.currentTimeMillis() + 20);
+        for (int i = 0; i < 100 && !request.isAborted(); i++) Thread.sleep(10);
+        assertTrue(request.isAborted());
+    }
+
+    @Test
+    public void shouldNotAbortWhenDisarmed() throws Exception {
+        HttpGet request = new HttpGet("http://example.com");
+        Deadline.arm(request, System.currentTimeMillis() + 20).disarm();
+        Thread.sleep(50);
+        assertFalse(request.isAborted());
+    }
+
+    @Test(expected = CloudAPI.DeadlineExceededException.class)
+    public void shouldRejectExpiredDeadline() throws Exception {
+        Deadline.arm(new HttpGet("http://example.com"), System.currentTimeMillis() - 1);
+    }
+
+    @Test
+    public void shouldTranslateErrorsAfterDeadline() throws Exception {
+        Deadline deadline = Deadline.arm(new HttpGet("http://example.com"), System.currentTimeMillis() + 10);
+        IOException error = new IOException("aborted");
+        assertThat(deadline.translate(error), sameInstance(error));
+        Thread.sleep(20);
+        IOException translated = deadline.translate(error);
+        assertThat(translated, instanceOf(CloudAPI.DeadlineExceededException.class));
+        assertThat(translated.getCause(), sameInstance((Throwable) error));
+    }
+}
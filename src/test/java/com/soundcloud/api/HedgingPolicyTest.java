@@ -0,0 +1,199 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.soundcloud.api.fakehttp.FakeHttpResponse;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HedgingPolicyTest {
+    final HedgingPolicy hedging = new HedgingPolicy();
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger sent = new AtomicInteger();
+
+    final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    final List<Long> deadlines = new CopyOnWriteArrayList<Long>();
+    final List<Boolean> timed = new CopyOnWriteArrayList<Boolean>();
+
+    /** the first request hangs until released or aborted, all others answer straight away */
+    final ApiWrapper api = new ApiWrapper("id", "secret", null, null, Env.SANDBOX) {
+        @Override public HttpResponse execute(HttpRequest req) throws IOException {
+            threads.add(Thread.currentThread());
+            deadlines.add(ApiWrapper.currentDeadline());
+            timed.add(RequestTiming.current() != null);
+            if (sent.incrementAndGet() == 1) {
+                try {
+                    while (!release.await(10, TimeUnit.MILLISECONDS)) {
+                        if (((HttpRequestBase) req).isAborted()) throw new IOException("aborted");
+                    }
+                } catch (InterruptedException ignored) {
+                }
+                return new FakeHttpResponse(200, "slow");
+            }
+            return new FakeHttpResponse(200, "fast");
+        }
+    };
+
+    @After
+    public void teardown() {
+        release.countDown();
+        hedging.shutdown();
+    }
+
+    private void warmup(String pattern, long latency) {
+        for (int i = 0; i < HedgingPolicy.MIN_SAMPLES; i++) hedging.record(pattern, latency);
+    }
+
+    @Test
+    public void shouldNotHedgeWithoutSamples() throws Exception {
+        assertThat(hedging.getDelay("/tracks/%d"), is(-1L));
+        release.countDown();
+        hedging.execute(api, Request.to("/tracks/%d", 1), new HttpGet("/tracks/1"));
+        assertThat(hedging.getHedges(), is(0L));
+    }
+
+    @Test
+    public void shouldUsePercentileOfRecentLatencies() throws Exception {
+        for (int i = 1; i <= 100; i++) hedging.record("/tracks/%d", i);
+        assertThat(hedging.getDelay("/tracks/%d"), is(95L));
+        hedging.setDelay(0.5, 5);
+        assertThat(hedging.getDelay("/tracks/%d"), is(50L));
+        hedging.setDelay(0.5, 80);
+        assertThat(hedging.getDelay("/tracks/%d"), is(80L));
+    }
+
+    @Test
+    public void hedgeShouldWinAgainstSlowRequest() throws Exception {
+        hedging.setBudget(1);
+        warmup("/tracks/%d", 10);
+        HttpGet primary = new HttpGet("/tracks/1");
+        HttpResponse resp = hedging.execute(api, Request.to("/tracks/%d", 1), primary);
+
+        assertThat(sent.get(), is(2));
+        assertThat(((FakeHttpResponse) resp).getEntity().getContentLength(), is(4L)); // "fast"
+        assertTrue(primary.isAborted());
+        assertThat(hedging.getHedges(), is(1L));
+        assertThat(hedging.getHedgeWins(), is(1L));
+        assertThat(hedging.getWinRate(), is(1d));
+    }
+
+    @Test
+    public void shouldSendRequestOnCallingThreadAndHedgeWithItsDeadline() throws Exception {
+        hedging.setBudget(1);
+        warmup("/tracks/%d", 10);
+        final long deadline = System.currentTimeMillis() + 5000;
+        final Long outer = ApiWrapper.beginDeadline(deadline);
+        try {
+            hedging.execute(api, Request.to("/tracks/%d", 1), new HttpGet("/tracks/1"));
+        } finally {
+            ApiWrapper.endDeadline(outer);
+        }
+        assertThat(threads.size(), is(2));
+        assertSame(Thread.currentThread(), threads.get(0));
+        assertNotSame(Thread.currentThread(), threads.get(1));
+        assertThat(deadlines.get(1), is(deadline));
+    }
+
+    @Test
+    public void shouldReturnHedgeWhenRequestFails() throws Exception {
+        hedging.setBudget(1);
+        warmup("/tracks/%d", 10);
+        final ApiWrapper failing = new ApiWrapper("id", "secret", null, null, Env.SANDBOX) {
+            @Override public HttpResponse execute(HttpRequest req) throws IOException {
+                if (sent.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ignored) {
+                    }
+                    throw new IOException("reset");
+                }
+                return new FakeHttpResponse(200, "fast");
+            }
+        };
+        HttpResponse resp = hedging.execute(failing, Request.to("/tracks/%d", 1), new HttpGet("/tracks/1"));
+        assertThat(resp.getEntity().getContentLength(), is(4L));
+        assertThat(hedging.getHedgeWins(), is(1L));
+    }
+
+    @Test
+    public void shouldDetachHedgeFromCancellation() throws Exception {
+        hedging.setBudget(1);
+        warmup("/tracks/%d", 10);
+        Cancellation cancellation = new Cancellation();
+        HttpResponse resp = hedging.execute(api, Request.to("/tracks/%d", 1).withCancellation(cancellation),
+                new HttpGet("/tracks/1"));
+        assertThat(hedging.getHedgeWins(), is(1L));
+        // the hedge stays attached while its body is read
+        assertThat(cancellation.attached(), is(1));
+        resp.getEntity().consumeContent();
+        assertThat(cancellation.attached(), is(0));
+    }
+
+    @Test
+    public void shouldLimitNumberOfPatterns() throws Exception {
+        for (int i = 0; i < HedgingPolicy.MAX_PATTERNS; i++) hedging.record("/tracks/" + i, 10);
+        warmup("/overflow", 10);
+        assertThat(hedging.getDelay("/overflow"), is(-1L));
+    }
+
+    @Test
+    public void shouldRespectBudget() throws Exception {
+        hedging.setBudget(0);
+        warmup("/tracks/%d", 10);
+        new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                release.countDown();
+            }
+        }.start();
+        hedging.execute(api, Request.to("/tracks/%d", 1), new HttpGet("/tracks/1"));
+        assertThat(sent.get(), is(1));
+        assertThat(hedging.getHedges(), is(0L));
+        assertThat(threads.size(), is(1));
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void shouldNotShareTimingWithHedge() throws Exception {
+        hedging.setBudget(1);
+        warmup("/tracks/%d", 10);
+        final Request req = Request.to("/tracks/%d", 1);
+        final HttpGet request = new HttpGet("/tracks/1");
+        final RequestTiming outer = RequestTiming.begin(new RequestTiming(null, req, request, 0, 0));
+        try {
+            hedging.execute(api, req, request);
+        } finally {
+            RequestTiming.end(outer);
+        }
+        assertThat(timed.size(), is(2));
+        assertThat(timed.get(0), is(true));
+        assertThat(timed.get(1), is(false));
+    }
+
+    @Test
+    public void wrapperShouldHedgeGets() throws Exception {
+        hedging.setBudget(1);
+        warmup(Endpoints.TRACK_DETAILS, 10);
+        api.setHedgingPolicy(hedging);
+        api.get(Request.to(Endpoints.TRACK_DETAILS, 1));
+        assertThat(hedging.getHedges(), is(1L));
+    }
+}
@@ -0,0 +1,70 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+    Histogram histogram = new Histogram();
+
+    @Test
+    public void shouldMapValuesToBucketsContainingThem() throws Exception {
+        for (long value : new long[] { 0, 1, 15, 16, 17, 100, 1000, 12345, 1L << 40, Long.MAX_VALUE }) {
+            final int index = Histogram.index(value);
+            assertTrue(value <= Histogram.upperBound(index));
+            assertTrue(index == 0 || value > Histogram.upperBound(index - 1));
+        }
+    }
+
+    @Test
+    public void shouldReportExactValuesBelowSixteen() throws Exception {
+        for (long i = 1; i <= 10; i++) histogram.record(i);
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertThat(snapshot.getCount(), is(10L));
+        assertThat(snapshot.getSum(), is(55L));
+        assertThat(snapshot.getMax(), is(10L));
+        assertThat(snapshot.getPercentile(50), is(5L));
+        assertThat(snapshot.getPercentile(90), is(9L));
+        assertThat(snapshot.getPercentile(100), is(10L));
+        assertThat(snapshot.getMean(), is(5.5));
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinPrecision() throws Exception {
+        for (long i = 1; i <= 10000; i++) histogram.record(i);
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertWithin(snapshot.getPercentile(50), 5000);
+        assertWithin(snapshot.getPercentile(99), 9900);
+        assertWithin(snapshot.getPercentile(99.9), 9990);
+        assertThat(snapshot.getPercentile(100), is(10000L));
+    }
+
+    @Test
+    public void shouldIgnoreNegativeValues() throws Exception {
+        histogram.record(-1);
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getSnapshot().getPercentile(99), is(0L));
+    }
+
+    @Test
+    public void shouldNotLoseValuesRecordedConcurrently() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    for (int j = 0; j < 10000; j++) histogram.record(j % 500);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertThat(snapshot.getCount(), is(40000L));
+        assertThat(snapshot.getMax(), is(499L));
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual + " not within 12.5% of " + expected, Math.abs(actual - expected) <= expected / 8);
+    }
+}
@@ -3,19 +3,35 @@ package com.soundcloud.api;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.*;
 
 import org.apache.http.Header;
+import org.apache.http.HttpRequest;
 import org.apache.http.auth.AUTH;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.MalformedChallengeException;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.message.BasicHeader;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class OAuth2SchemeTest {
     OAuth2Scheme scheme;
@@ -82,6 +98,152 @@ public class OAuth2SchemeTest {
         scheme.authenticate(null, null);
     }
 
+    @Test
+    public void shouldOnlyRefreshOnceUnderContention() throws Exception {
+        final AtomicReference<Token> current = new AtomicReference<Token>(new Token("old", "r3fr3sh"));
+        final AtomicInteger refreshes = new AtomicInteger();
+        when(api.getToken()).thenAnswer(new Answer<Token>() {
+            @Override public Token answer(InvocationOnMock invocation) {
+                return current.get();
+            }
+        });
+        when(api.refreshToken()).thenAnswer(new Answer<Token>() {
+            @Override public Token answer(InvocationOnMock invocation) throws Exception {
+                refreshes.incrementAndGet();
+                Thread.sleep(100);
+                current.set(new Token("new", "r3fr3sh"));
+                return current.get();
+            }
+        });
+
+        final List<String> headers = authenticateConcurrently(new OAuth2Scheme.Factory(api), "OAuth old", 32);
+        assertThat(refreshes.get(), is(1));
+        assertThat(headers.size(), is(32));
+        for (String h : headers) assertThat(h, equalTo("OAuth new"));
+    }
+
+    @Test
+    public void shouldPropagateRefreshFailureToAllWaiters() throws Exception {
+        when(api.getToken()).thenReturn(new Token("old", "r3fr3sh"));
+        when(api.refreshToken()).thenAnswer(new Answer<Token>() {
+            @Override public Token answer(InvocationOnMock invocation) throws Exception {
+                Thread.sleep(100);
+                throw new IOException("refresh failed");
+            }
+        });
+        final List<String> headers = authenticateConcurrently(new OAuth2Scheme.Factory(api), "OAuth old", 16);
+        assertThat(headers.size(), is(16));
+        for (String h : headers) assertThat(h, equalTo("failed"));
+    }
+
+    @Test
+    public void shouldNotBlockOtherApisDuringRefresh() throws Exception {
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(api.getToken()).thenReturn(new Token("old", "r3fr3sh"));
+        when(api.refreshToken()).thenAnswer(new Answer<Token>() {
+            @Override public Token answer(InvocationOnMock invocation) throws Exception {
+                refreshing.countDown();
+                release.await();
+                return new Token("new", "r3fr3sh");
+            }
+        });
+        CloudAPI other = mock(CloudAPI.class);
+        when(other.getToken()).thenReturn(new Token("other", "r3fr3sh"));
+
+        Thread blocked = new Thread() {
+            @Override public void run() {
+                try {
+                    new OAuth2Scheme.Factory(api).newInstance(null).authenticate(null, request("OAuth old"));
+                } catch (AuthenticationException ignored) {
+                }
+            }
+        };
+        blocked.start();
+        assertTrue(refreshing.await(5, TimeUnit.SECONDS));
+        try {
+            long start = System.currentTimeMillis();
+            OAuth2Scheme.Factory otherFactory = new OAuth2Scheme.Factory(other);
+            for (int i = 0; i < 1000; i++) {
+                otherFactory.newInstance(null).authenticate(null, request("OAuth stale"));
+            }
+            // used to serialise on a global lock
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            verify(other, never()).refreshToken();
+        } finally {
+            release.countDown();
+            blocked.join();
+        }
+    }
+
+    @Test
+    public void authenticateShouldNotAllocateWhenTokenIsCurrent() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+        ApiWrapper wrapper = new ApiWrapper("id", "secret", null, new Token("current", "r3fr3sh", "* signup"), Env.LIVE);
+        OAuth2Scheme scheme = new OAuth2Scheme(wrapper, null, new ApiWrapper.AuthHooks(wrapper));
+        HttpRequest request = request("OAuth stale");
+        Token token = wrapper.getToken();
+
+        for (int i = 0; i < 20000; i++) {
+            scheme.authenticate(null, request);
+            token.valid();
+        }
+        final long thread = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(thread);
+        int ok = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (scheme.authenticate(null, request) != null && token.valid() && token.scoped("signup")) ok++;
+        }
+        final long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        // allow some slack for the measurement itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+        assertThat(ok, is(100000));
+    }
+
+    @Test
+    public void shouldDetectUsedToken() throws Exception {
+        assertTrue(OAuth2Scheme.usesToken(new BasicHeader(AUTH.WWW_AUTH_RESP, "OAuth 1234"), "1234"));
+        assertFalse(OAuth2Scheme.usesToken(new BasicHeader(AUTH.WWW_AUTH_RESP, "OAuth 12345"), "1234"));
+        assertFalse(OAuth2Scheme.usesToken(new BasicHeader(AUTH.WWW_AUTH_RESP, "Foo 1234"), "1234"));
+        assertFalse(OAuth2Scheme.usesToken(new BasicHeader("Random", "OAuth 1234"), "1234"));
+        assertFalse(OAuth2Scheme.usesToken(null, "1234"));
+    }
+
+    private static List<String> authenticateConcurrently(final OAuth2Scheme.Factory factory,
+                                                        final String header, int threads) throws Exception {
+        final List<String> headers = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        headers.add(factory.newInstance(null).authenticate(null, request(header)).getValue());
+                    } catch (AuthenticationException e) {
+                        headers.add("failed");
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return headers;
+    }
+
+    private static HttpRequest request(String auth) {
+        HttpRequest request = new HttpGet("/foo");
+        request.addHeader(AUTH.WWW_AUTH_RESP, auth);
+        return request;
+    }
+
     @Test
     public void processChallengeShouldParseHeaderCorrectly() throws Exception {
         scheme.processChallenge(
@@ -120,4 +282,62 @@ public class OAuth2SchemeTest {
         assertThat(OAuth2Scheme.extractToken(new BasicHeader("Random", "OAuth 1234")), nullValue());
         assertThat(OAuth2Scheme.extractToken(new BasicHeader(AUTH.WWW_AUTH_RESP, "Foo 1234")), nullValue());
     }
+
+    @Test
+    public void shouldTraceAuthentication() throws Exception {
+        ApiWrapper wrapper = mock(ApiWrapper.class);
+        final List<String> spans = new ArrayList<String>();
+        when(wrapper.getTracer()).thenReturn(new Tracer() {
+            @Override public Span begin(final String name, final String endpoint) {
+                return new Span() {
+                    @Override public void end(int status, long bytes, Exception error) {
+                        spans.add(name + " " + endpoint + " " + (error != null));
+                    }
+                };
+            }
+        });
+        when(wrapper.getTokenSnapshot()).thenReturn(new TokenSnapshot(new Token("1", "2")));
+        scheme = new OAuth2Scheme(wrapper, null, new ApiWrapper.AuthHooks(wrapper));
+
+        scheme.authenticate(null, new HttpGet("/me"));
+        assertThat(spans.size(), is(1));
+        assertThat(spans.get(0), equalTo("authenticate /me false"));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotDeadlockWhenRefreshIsChallengedAgain() throws Exception {
+        final AtomicReference<OAuth2Scheme> schemeRef = new AtomicReference<OAuth2Scheme>();
+        final AtomicInteger nested = new AtomicInteger();
+        ApiWrapper wrapper = new ApiWrapper("id", "secret", null, new Token("old", "r3fr3sh"), Env.LIVE) {
+            @Override protected Token requestToken(Request request) throws IOException {
+                // the token request got a 401 challenge, HttpClient authenticates on this thread again
+                try {
+                    schemeRef.get().authenticate(null, request("OAuth old"));
+                } catch (AuthenticationException expected) {
+                    nested.incrementAndGet();
+                }
+                return new Token("new", "r3fr3sh");
+            }
+        };
+        schemeRef.set(new OAuth2Scheme(wrapper, null, new ApiWrapper.AuthHooks(wrapper)));
+        assertThat(schemeRef.get().authenticate(null, request("OAuth old")).getValue(), equalTo("OAuth new"));
+        assertThat(nested.get(), is(1));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldNotDeadlockWhenRefreshOfOtherApiIsChallengedAgain() throws Exception {
+        when(api.getToken()).thenReturn(new Token("old", "r3fr3sh"));
+        when(api.refreshToken()).thenAnswer(new Answer<Token>() {
+            @Override public Token answer(InvocationOnMock invocation) throws Exception {
+                try {
+                    scheme.authenticate(null, request("OAuth old"));
+                    return null;
+                } catch (AuthenticationException expected) {
+                    return new Token("new", "r3fr3sh");
+                }
+            }
+        });
+        scheme.authenticate(null, request("OAuth old"));
+        verify(api).refreshToken();
+    }
 }
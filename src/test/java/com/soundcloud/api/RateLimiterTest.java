@@ -0,0 +1,107 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class RateLimiterTest {
+    static HttpResponse response(int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    }
+
+    @Test
+    public void shouldAllowBurstThenSpaceOutRequests() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 2);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.reserve("/tracks", null, now), is(0L));
+        assertThat(limiter.reserve("/tracks", null, now), is(0L));
+        assertThat(limiter.reserve("/tracks", null, now), is(100L));
+        assertThat(limiter.reserve("/tracks", null, now), is(200L));
+        assertThat(limiter.getDelayed(), is(2L));
+        // refilled
+        assertThat(limiter.reserve("/tracks", null, now + 1000), is(0L));
+    }
+
+    @Test
+    public void shouldFailFast() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.reserve("/tracks", null, now), is(0L));
+        assertThat(limiter.reserve("/tracks", null, now), is(-1L));
+        assertThat(limiter.getRejected(), is(1L));
+        assertThat(limiter.reserve("/tracks", null, now + 100), is(0L));
+    }
+
+    @Test
+    public void shouldRejectWaitsLongerThanMaxWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.setPolicy(RateLimiter.Policy.QUEUE, 1500);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.reserve("/tracks", null, now), is(0L));
+        assertThat(limiter.reserve("/tracks", null, now), is(1000L));
+        assertThat(limiter.reserve("/tracks", null, now), is(-1L));
+    }
+
+    @Test
+    public void shouldLimitPerEndpoint() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 100);
+        limiter.setEndpointLimit(Endpoints.TRACK_DETAILS, 1, 1);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.reserve(Endpoints.TRACK_DETAILS, null, now), is(0L));
+        assertThat(limiter.reserve(Endpoints.TRACK_DETAILS, null, now), is(-1L));
+        assertThat(limiter.reserve(Endpoints.USER_DETAILS, null, now), is(0L));
+    }
+
+    @Test
+    public void shouldLimitPerToken() throws Exception {
+        RateLimiter limiter = new RateLimiter(100, 100);
+        limiter.setTokenLimit(1, 1);
+        limiter.setPolicy(RateLimiter.Policy.FAIL_FAST, 0);
+        long now = System.currentTimeMillis();
+        assertThat(limiter.reserve("/me", "a", now), is(0L));
+        assertThat(limiter.reserve("/me", "a", now), is(-1L));
+        assertThat(limiter.reserve("/me", "b", now), is(0L));
+    }
+
+    @Test
+    public void shouldPauseAndShrinkOnTooManyRequests() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 10);
+        long now = System.currentTimeMillis();
+        HttpResponse throttled = response(429);
+        throttled.setHeader("Retry-After", "2");
+        limiter.onResponse("/me", null, throttled, now);
+
+        assertThat(limiter.getThrottled(), is(1L));
+        assertThat(limiter.getRate(), is(5d));
+        assertThat(limiter.reserve("/me", null, now), is(2000L));
+
+        for (int i = 0; i < 1000; i++) limiter.onResponse("/me", null, response(200), now);
+        assertThat(limiter.getRate(), is(10d));
+    }
+
+    @Test
+    public void shouldPauseWithoutRetryAfter() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 10);
+        long now = System.currentTimeMillis();
+        limiter.onResponse("/me", null, response(429), now);
+        assertTrue(limiter.reserve("/me", null, now) >= RateLimiter.PAUSE);
+    }
+
+    @Test
+    public void shouldKeyTokenBucketsByDigest() throws Exception {
+        String key = RateLimiter.key("04u7h-4cc355-70k3n");
+        assertThat(key.length(), is(64));
+        assertFalse(key.contains("04u7h-4cc355-70k3n"));
+        assertThat(RateLimiter.key("04u7h-4cc355-70k3n"), equalTo(key));
+        assertFalse(RateLimiter.key("other").equals(key));
+    }
+}
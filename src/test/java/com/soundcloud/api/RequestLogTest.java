@@ -0,0 +1,89 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RequestLogTest {
+    RequestLog log = new RequestLog(4);
+
+    @Test
+    public void shouldKeepMostRecentEventsInOrder() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            log.request(Request.to(Endpoints.TRACK_DETAILS, i), "GET", 1);
+        }
+        List<RequestLog.Event> events = log.dump();
+        assertThat(events.size(), is(4));
+        assertThat(events.get(0).getResource(), equalTo("/tracks/3"));
+        assertThat(events.get(3).getResource(), equalTo("/tracks/6"));
+        assertThat(events.get(3).getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+        assertThat(log.getRecorded(), is(6L));
+    }
+
+    @Test
+    public void shouldRedactCredentials() throws Exception {
+        log.request(Request.to("/me?oauth_token=secret&limit=10")
+                .with("password", "hunter2", "client_secret", "s3cr3t", "username", "foo"), "POST", 1);
+        RequestLog.Event event = log.dump().get(0);
+        assertThat(event.getResource(), equalTo("/me"));
+        assertThat(event.getParams(),
+                equalTo("oauth_token=[redacted]&limit=10&password=[redacted]&client_secret=[redacted]&username=foo"));
+        assertThat(RequestLog.redact("https://api.soundcloud.com/me?limit=1&oauth_token=secret"),
+                equalTo("https://api.soundcloud.com/me?limit=1&oauth_token=[redacted]"));
+        assertThat(event.toString(), not(containsString("secret&")));
+        assertThat(event.toString(), not(containsString("hunter2")));
+    }
+
+    @Test
+    public void shouldSampleEvenly() throws Exception {
+        log.setSampleRate(0.25);
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) if (log.sample()) sampled++;
+        assertThat(sampled, is(25));
+
+        log.setSampleRate(0);
+        assertFalse(log.sample());
+        log.setSampleRate(1);
+        assertTrue(log.sample());
+    }
+
+    @Test
+    public void shouldDumpOnError() throws Exception {
+        final List<RequestLog.Event> dumped = new ArrayList<RequestLog.Event>();
+        log.setListener(new RequestLog.Listener() {
+            @Override public void onError(RequestLog.Event event, List<RequestLog.Event> recent) {
+                assertThat(recent.get(recent.size() - 1), sameInstance(event));
+                dumped.addAll(recent);
+            }
+        });
+        Request req = Request.to(Endpoints.MY_DETAILS);
+        log.request(req, "GET", 1);
+        log.response(req, "GET", 1, 10, response(200));
+        assertThat(dumped.isEmpty(), is(true));
+
+        log.response(req, "GET", 1, 10, response(503));
+        assertThat(dumped.size(), is(3));
+        assertThat(dumped.get(2).getStatus(), is(503));
+
+        dumped.clear();
+        log.error(req, "GET", 2, 20, new IOException("connection reset"));
+        assertThat(dumped.size(), is(4));
+        RequestLog.Event error = dumped.get(3);
+        assertThat(error.getType(), is(RequestLog.Type.ERROR));
+        assertThat(error.getAttempt(), is(2));
+        assertThat(error.getDuration(), is(20L));
+        assertThat(error.getError(), equalTo("java.io.IOException: connection reset"));
+    }
+
+    private static HttpResponse response(int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    }
+}
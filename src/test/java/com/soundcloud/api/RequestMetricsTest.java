@@ -0,0 +1,77 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RequestMetricsTest {
+    RequestMetrics metrics = new RequestMetrics();
+
+    @Test
+    public void shouldCountStatusClassesPerPattern() throws Exception {
+        metrics.record(Endpoints.TRACK_DETAILS, "GET", response(200, "ok"), 10, 1);
+        metrics.record(Endpoints.TRACK_DETAILS, "GET", response(404, "not found"), 20, 1);
+        metrics.record(Endpoints.TRACK_DETAILS, "GET", response(503, "down"), 30, 3);
+        metrics.record(Endpoints.TRACK_DETAILS, "GET", null, 40, 2);
+        metrics.record(Endpoints.MY_DETAILS, "GET", response(200, "me"), 5, 1);
+
+        RequestMetrics.Snapshot tracks = metrics.getSnapshot(Endpoints.TRACK_DETAILS);
+        assertThat(tracks.getCount(), is(4L));
+        assertThat(tracks.getStatusCount(2), is(1L));
+        assertThat(tracks.getStatusCount(4), is(1L));
+        assertThat(tracks.getStatusCount(5), is(1L));
+        assertThat(tracks.getErrors(), is(1L));
+        assertThat(tracks.getRetries(), is(3L));
+        assertThat(tracks.getLatency().getMax(), is(40L));
+        assertThat(tracks.getResponseSize().getCount(), is(3L));
+        assertThat(tracks.getResponseSize().getMax(), is(9L));
+
+        assertThat(metrics.getSnapshots().size(), is(2));
+        assertThat(metrics.getSnapshot(Endpoints.MY_DETAILS).getCount(), is(1L));
+        assertThat(metrics.getSnapshot(Endpoints.TRACKS), nullValue());
+    }
+
+    @Test
+    public void shouldStripQueryFromResource() throws Exception {
+        metrics.record("/tracks?q=foo", "GET", response(200, "ok"), 10, 1);
+        assertThat(metrics.getSnapshot("/tracks").getCount(), is(1L));
+    }
+
+    @Test
+    public void shouldLimitNumberOfPatterns() throws Exception {
+        for (int i = 0; i < RequestMetrics.MAX_PATTERNS + 10; i++) {
+            metrics.record("/tracks/" + i, "GET", response(200, "ok"), 1, 1);
+        }
+        assertThat(metrics.getSnapshots().size(), is(RequestMetrics.MAX_PATTERNS + 1));
+        assertThat(metrics.getSnapshot(RequestMetrics.OTHER).getCount(), is(10L));
+    }
+
+    @Test
+    public void shouldPassCallsToListener() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        metrics.setListener(new RequestMetrics.Listener() {
+            @Override
+            public void onCall(String pattern, String method, int status, long latency, long responseBytes, int attempts) {
+                calls.add(method + " " + pattern + " " + status + " " + latency + " " + responseBytes + " " + attempts);
+            }
+        });
+        metrics.record(Endpoints.TRACK_DETAILS, "PUT", response(200, "ok"), 10, 2);
+        metrics.record(Endpoints.TRACK_DETAILS, "PUT", null, 20, 1);
+        assertThat(calls.get(0), equalTo("PUT /tracks/%d 200 10 2 2"));
+        assertThat(calls.get(1), equalTo("PUT /tracks/%d -1 20 -1 1"));
+    }
+
+    private static HttpResponse response(int status, String body) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        response.setEntity(new StringEntity(body));
+        return response;
+    }
+}
@@ -0,0 +1,101 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RequestSchedulerTest {
+    RequestScheduler scheduler = new RequestScheduler(1);
+    List<Request.Priority> dispatched = Collections.synchronizedList(new ArrayList<Request.Priority>());
+
+    @Test
+    public void shouldDispatchRightAwayWhenSlotsAreFree() throws Exception {
+        scheduler.acquire(Request.Priority.BULK, 0, null);
+        assertThat(scheduler.getActive(), is(1));
+        assertThat(scheduler.getDispatched(Request.Priority.BULK), is(1L));
+        scheduler.release();
+        assertThat(scheduler.getActive(), is(0));
+    }
+
+    @Test
+    public void shouldDispatchByPriority() throws Exception {
+        scheduler.acquire(Request.Priority.DEFAULT, 0, null);
+        Thread bulk = waiter(Request.Priority.BULK);
+        Thread def = waiter(Request.Priority.DEFAULT);
+        Thread interactive = waiter(Request.Priority.INTERACTIVE);
+        assertThat(scheduler.getQueued(Request.Priority.BULK), is(1));
+        assertThat(scheduler.getMaxQueued(Request.Priority.INTERACTIVE), is(1));
+
+        scheduler.release();
+        bulk.join(5000);
+        def.join(5000);
+        interactive.join(5000);
+        assertThat(dispatched, equalTo(Arrays.asList(
+                Request.Priority.INTERACTIVE, Request.Priority.DEFAULT, Request.Priority.BULK)));
+        assertThat(scheduler.getPromoted(), is(0L));
+    }
+
+    @Test
+    public void shouldPromoteStarvingRequests() throws Exception {
+        scheduler.setStarvationTime(50);
+        scheduler.acquire(Request.Priority.DEFAULT, 0, null);
+        Thread bulk = waiter(Request.Priority.BULK);
+        Thread.sleep(60);
+        Thread interactive = waiter(Request.Priority.INTERACTIVE);
+
+        scheduler.release();
+        bulk.join(5000);
+        interactive.join(5000);
+        assertThat(dispatched, equalTo(Arrays.asList(Request.Priority.BULK, Request.Priority.INTERACTIVE)));
+        assertThat(scheduler.getPromoted(), is(1L));
+    }
+
+    @Test
+    public void shouldGiveUpWaitingAtDeadline() throws Exception {
+        scheduler.acquire(Request.Priority.DEFAULT, 0, null);
+        try {
+            scheduler.acquire(Request.Priority.BULK, System.currentTimeMillis() + 20, null);
+            fail("expected QueueTimeoutException");
+        } catch (RequestScheduler.QueueTimeoutException expected) {
+        }
+        assertThat(scheduler.getQueued(Request.Priority.BULK), is(0));
+        assertThat(scheduler.getRejected(), is(1L));
+    }
+
+    @Test
+    public void shouldGiveUpWaitingWhenCancelled() throws Exception {
+        scheduler.acquire(Request.Priority.DEFAULT, 0, null);
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        try {
+            scheduler.acquire(Request.Priority.BULK, 0, cancellation);
+            fail("expected CancelledException");
+        } catch (CloudAPI.CancelledException expected) {
+        }
+        assertThat(scheduler.getQueued(Request.Priority.BULK), is(0));
+    }
+
+    /* starts a thread waiting for a slot, which releases it right away once it got it */
+    private Thread waiter(final Request.Priority priority) throws Exception {
+        final int queued = scheduler.getQueued(priority);
+        final Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    scheduler.acquire(priority, 0, null);
+                    dispatched.add(priority);
+                    scheduler.release();
+                } catch (Exception ignored) {
+                }
+            }
+        };
+        thread.start();
+        while (scheduler.getQueued(priority) == queued) Thread.sleep(5);
+        return thread;
+    }
+}
@@ -21,8 +21,11 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.IllegalFormatException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class RequestTest {
@@ -99,6 +102,14 @@ public class RequestTest {
         assertThat(auth.getValue(), CoreMatchers.containsString("acc3ss"));
     }
 
+    @Test
+    public void shouldMarkRequestsMadeForUsers() throws Exception {
+        HttpGet request = Request.to("/me").forUser("1234").buildRequest(HttpGet.class);
+        assertThat((String) request.getParams().getParameter(Request.USER), equalTo("1234"));
+        assertThat(new Request(Request.to("/me").forUser("1234")).getUser(), equalTo("1234"));
+        assertNull(Request.to("/me").buildRequest(HttpGet.class).getParams().getParameter(Request.USER));
+    }
+
     @Test
     public void shouldCreateMultipartRequestWhenFilesAreAdded() throws Exception {
         File f = File.createTempFile("testing", "test");
@@ -184,6 +195,67 @@ public class RequestTest {
         assertTrue(request.getEntity() instanceof CountingMultipartEntity);
     }
 
+    @Test
+    public void multipartEntityShouldBeRepeatable() throws Exception {
+        File f = File.createTempFile("testing", "test");
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put("bar".getBytes()).flip();
+
+        HttpPost request = Request.to("/foo")
+                .with("key", "value")
+                .withFile("foo", f)
+                .withFile("bar", direct)
+                .withFile("baz", "baz".getBytes())
+                .buildRequest(HttpPost.class);
+
+        assertTrue(request.getEntity().isRepeatable());
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        request.getEntity().writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        request.getEntity().writeTo(second);
+
+        assertThat(first.toString(), containsString("bar"));
+        assertThat(second.toString(), equalTo(first.toString()));
+        assertThat((long) second.size(), equalTo(request.getEntity().getContentLength()));
+    }
+
+    @Test
+    public void byteBufferBodyShouldOnlyWriteRemainingBytes() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("xxfooxx".getBytes(), 2, 3).slice();
+        Request.ByteBufferBody body = new Request.ByteBufferBody(buffer);
+        assertThat(body.getContentLength(), is(3L));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        body.writeTo(os);
+        body.writeTo(os);
+        assertThat(os.toString(), equalTo("foofoo"));
+        assertThat(buffer.remaining(), is(3));
+    }
+
+    @Test
+    public void countingMultipartShouldRestartCountingWhenRepeated() throws Exception {
+        final List<Long> progress = new ArrayList<Long>();
+        HttpPost request = Request.to("/foo")
+                .withFile("foo", "foo".getBytes())
+                .setProgressListener(new Request.TransferProgressListener() {
+                    @Override public void transferred(long amount) {
+                        progress.add(amount);
+                    }
+                })
+                .buildRequest(HttpPost.class);
+
+        assertTrue(request.getEntity().isRepeatable());
+        request.getEntity().writeTo(new ByteArrayOutputStream());
+        final long total = progress.get(progress.size() - 1);
+        progress.clear();
+        request.getEntity().writeTo(new ByteArrayOutputStream());
+
+        assertThat(progress.get(0), not(equalTo(total)));
+        assertThat(progress.get(progress.size() - 1), equalTo(total));
+        assertThat(total, equalTo(request.getEntity().getContentLength()));
+    }
+
     @Test
     public void shouldDoStringFormattingInFactoryMethod() throws Exception {
         assertThat(Request.to("/resource/%d", 200).toUrl(), equalTo("/resource/200"));
@@ -237,4 +309,28 @@ public class RequestTest {
         assertThat(copy.getToken(), not(equalTo(orig.getToken())));
         assertThat(orig.getListener(),equalTo(copy.getListener()));
     }
+
+    @Test
+    public void shouldKeepResourcePattern() throws Exception {
+        assertThat(Request.to(Endpoints.TRACK_DETAILS, 123).getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+        assertThat(Request.to("/tracks/%d?foo=bar", 123).getPattern(), equalTo("/tracks/%d"));
+        assertThat(Request.to("/tracks?foo=bar").getPattern(), equalTo("/tracks"));
+        assertThat(new Request(Request.to(Endpoints.TRACK_DETAILS, 123)).getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+    }
+
+    @Test
+    public void shouldCopyDeadline() throws Exception {
+        Request r = Request.to("/foo").withDeadline(12345L);
+        assertThat(r.getDeadline(), is(12345L));
+        assertThat(new Request(r).getDeadline(), is(12345L));
+        assertThat(Request.to("/foo").getDeadline(), is(0L));
+        assertTrue(Request.to("/foo").withTimeout(1000).getDeadline() > System.currentTimeMillis());
+    }
+
+    @Test
+    public void shouldCopyPriority() throws Exception {
+        assertThat(Request.to("/foo").getPriority(), is(Request.Priority.DEFAULT));
+        Request r = Request.to("/foo").withPriority(Request.Priority.BULK);
+        assertThat(new Request(r).getPriority(), is(Request.Priority.BULK));
+    }
 }
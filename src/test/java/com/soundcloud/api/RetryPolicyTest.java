@@ -0,0 +1,157 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+
+public class RetryPolicyTest {
+    final RetryPolicy policy = new RetryPolicy();
+
+    static HttpResponse response(int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    }
+
+    @Test
+    public void shouldCoverIdempotentMethods() throws Exception {
+        assertTrue(policy.covers(new HttpGet("/")));
+        assertTrue(policy.covers(new HttpPut("/")));
+        assertTrue(policy.covers(new HttpDelete("/")));
+        assertFalse(policy.covers(new HttpPost("/")));
+        policy.setRetryPost(true);
+        assertTrue(policy.covers(new HttpPost("/")));
+    }
+
+    @Test
+    public void shouldNotCoverNonRepeatableBodies() throws Exception {
+        policy.setRetryPost(true);
+        HttpPost post = new HttpPost("/");
+        post.setEntity(new StringEntity("repeatable"));
+        assertTrue(policy.covers(post));
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[10]), 10));
+        assertFalse(policy.covers(post));
+    }
+
+    @Test
+    public void shouldRetryTransientFailures() throws Exception {
+        assertTrue(policy.isRetryable(response(503), null));
+        assertTrue(policy.isRetryable(response(502), null));
+        assertTrue(policy.isRetryable(response(504), null));
+        assertTrue(policy.isRetryable(response(429), null));
+        assertTrue(policy.isRetryable(null, new IOException("reset")));
+        assertTrue(policy.isRetryable(null, new SocketTimeoutException()));
+
+        assertFalse(policy.isRetryable(response(200), null));
+        assertFalse(policy.isRetryable(response(404), null));
+        assertFalse(policy.isRetryable(response(500), null));
+        assertFalse(policy.isRetryable(null, new InterruptedIOException()));
+        assertFalse(policy.isRetryable(null, new CloudAPI.InvalidTokenException(401, "invalid")));
+    }
+
+    @Test
+    public void shouldNotRetryLocalRejections() throws Exception {
+        IOException[] rejections = {
+            new RejectedException("rejected"),
+            new RateLimiter.RateLimitedException("rate limited"),
+            new CircuitBreaker.CircuitOpenException("/tracks"),
+            new ConcurrencyLimiter.LimitExceededException(10),
+            new RequestScheduler.QueueTimeoutException(Request.Priority.BULK),
+            new Bulkhead.BulkheadFullException("uploads")
+        };
+        for (IOException rejection : rejections) {
+            assertTrue(rejection instanceof RejectedException);
+            assertFalse(policy.isRetryable(null, rejection));
+        }
+    }
+
+    @Test
+    public void shouldBackoffWithFullJitter() throws Exception {
+        policy.setBackoff(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.backoff(1);
+            assertTrue(delay >= 0 && delay < 100);
+            delay = policy.backoff(3);
+            assertTrue(delay >= 0 && delay < 400);
+            delay = policy.backoff(20);
+            assertTrue(delay >= 0 && delay < 1000);
+        }
+    }
+
+    @Test
+    public void shouldParseRetryAfter() throws Exception {
+        HttpResponse resp = response(503);
+        assertThat(RetryPolicy.retryAfter(resp, 0), is(0L));
+        resp.setHeader("Retry-After", "2");
+        assertThat(RetryPolicy.retryAfter(resp, 0), is(2000L));
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        resp.setHeader("Retry-After", DateUtils.formatDate(new Date(now + 5000)));
+        assertThat(RetryPolicy.retryAfter(resp, now), is(5000L));
+        resp.setHeader("Retry-After", "soon");
+        assertThat(RetryPolicy.retryAfter(resp, now), is(0L));
+    }
+
+    @Test
+    public void shouldHonourRetryAfter() throws Exception {
+        HttpResponse resp = response(503);
+        resp.setHeader("Retry-After", "1");
+        assertThat(policy.nextDelay(new HttpGet("/"), 1, resp, null, 0), is(1000L));
+
+        resp.setHeader("Retry-After", "3600");
+        assertThat(policy.nextDelay(new HttpGet("/"), 1, resp, null, 0), is(-1L));
+    }
+
+    @Test
+    public void shouldStopAfterMaxAttempts() throws Exception {
+        policy.setMaxAttempts(2);
+        assertTrue(policy.nextDelay(new HttpGet("/"), 1, response(503), null, 0) >= 0);
+        assertThat(policy.nextDelay(new HttpGet("/"), 2, response(503), null, 0), is(-1L));
+        assertThat(policy.getAttempts(), is(2L));
+        assertThat(policy.getRetries(), is(1L));
+    }
+
+    @Test
+    public void shouldRespectBudget() throws Exception {
+        policy.setBudget(2, 60 * 1000);
+        assertTrue(policy.nextDelay(new HttpGet("/"), 1, response(503), null, 0) >= 0);
+        assertTrue(policy.nextDelay(new HttpGet("/"), 1, response(503), null, 0) >= 0);
+        assertThat(policy.nextDelay(new HttpGet("/"), 1, response(503), null, 0), is(-1L));
+        assertThat(policy.getBudgetExhausted(), is(1L));
+    }
+
+    @Test
+    public void shouldInformListener() throws Exception {
+        RetryPolicy.Listener listener = mock(RetryPolicy.Listener.class);
+        policy.setListener(listener);
+        HttpGet get = new HttpGet("/");
+        policy.nextDelay(get, 1, response(200), null, 42);
+        verify(listener).onAttempt(get, 1, 200, null, 42, -1);
+
+        IOException e = new IOException("reset");
+        policy.nextDelay(get, 1, null, e, 10);
+        verify(listener).onAttempt(any(HttpRequest.class), eq(1), eq(-1), eq(e), eq(10L), anyLong());
+    }
+}
@@ -0,0 +1,129 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+public class SharedTokenFileTest {
+    File file;
+    SharedTokenFile shared;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("shared", "token");
+        shared = new SharedTokenFile(file);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        shared.close();
+        file.delete();
+    }
+
+    @Test
+    public void shouldBeEmptyInitially() throws Exception {
+        assertThat(shared.read(), nullValue());
+        assertThat(shared.sequence(), is(0L));
+    }
+
+    @Test
+    public void shouldWriteAndRead() throws Exception {
+        Token t = new Token("access", "refresh", "*");
+        t.expiresIn = 12345L;
+        shared.write(t);
+        assertThat(shared.sequence(), is(1L));
+
+        SharedTokenFile other = new SharedTokenFile(file);
+        try {
+            Token read = other.read();
+            assertThat(read, equalTo(t));
+            assertThat(read.expiresIn, is(12345L));
+            assertThat(other.sequence(), is(1L));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void shouldSeeWritesOfOtherInstances() throws Exception {
+        SharedTokenFile other = new SharedTokenFile(file);
+        try {
+            other.write(new Token("access", "refresh"));
+            // visible through the mapping, without reading the file
+            assertThat(shared.sequence(), is(1L));
+            assertThat(shared.poll().token, equalTo(new Token("access", "refresh")));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void shouldNotRefreshIfReplacedInTheMeantime() throws Exception {
+        shared.write(new Token("access", "refresh"));
+        shared.write(new Token("newer", "refresh"));
+
+        SharedTokenFile.Entry entry = shared.refresh(1, new Callable<Token>() {
+            @Override public Token call() throws Exception {
+                throw new AssertionError("should not refresh");
+            }
+        });
+        assertThat(entry.sequence, is(2L));
+        assertThat(entry.token.access, equalTo("newer"));
+    }
+
+    @Test
+    public void shouldRefreshAndStore() throws Exception {
+        shared.write(new Token("access", "refresh"));
+        SharedTokenFile.Entry entry = shared.refresh(1, new Callable<Token>() {
+            @Override public Token call() throws Exception {
+                return new Token("fresh", "refresh");
+            }
+        });
+        assertThat(entry.sequence, is(2L));
+        assertThat(shared.read().access, equalTo("fresh"));
+    }
+
+    @Test
+    public void initializeShouldOnlyWriteIntoEmptyFile() throws Exception {
+        assertThat(shared.initialize(new Token("first", "refresh")).token.access, equalTo("first"));
+        assertThat(shared.initialize(new Token("second", "refresh")).token.access, equalTo("first"));
+        assertThat(shared.sequence(), is(1L));
+    }
+
+    @Test
+    public void shouldRejectOtherFiles() throws Exception {
+        File other = File.createTempFile("not", "token");
+        FileOutputStream fos = new FileOutputStream(other);
+        fos.write("hello world".getBytes());
+        fos.close();
+        try {
+            new SharedTokenFile(other);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void openShouldReturnOneInstancePerFile() throws Exception {
+        SharedTokenFile opened = SharedTokenFile.open(file);
+        try {
+            assertSame(opened, SharedTokenFile.open(new File(file.getParentFile(), "./" + file.getName())));
+        } finally {
+            opened.close();
+        }
+    }
+}
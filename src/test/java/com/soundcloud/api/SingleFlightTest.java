@@ -0,0 +1,119 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+    final SingleFlight<String> flight = new SingleFlight<String>();
+
+    @Test
+    public void shouldReturnResult() throws Exception {
+        assertThat(flight.execute(constant("foo")), equalTo("foo"));
+        assertFalse(flight.isRunning());
+    }
+
+    @Test
+    public void shouldShareRunningCall() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final String[] result = new String[1];
+
+        Thread first = new Thread() {
+            @Override public void run() {
+                try {
+                    result[0] = flight.execute(new Callable<String>() {
+                        @Override public String call() throws Exception {
+                            calls.incrementAndGet();
+                            running.countDown();
+                            release.await();
+                            return "first";
+                        }
+                    });
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        first.start();
+        running.await();
+
+        Thread second = new Thread() {
+            @Override public void run() {
+                try {
+                    result[0] = flight.execute(new Callable<String>() {
+                        @Override public String call() throws Exception {
+                            calls.incrementAndGet();
+                            return "second";
+                        }
+                    });
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        second.start();
+        Thread.sleep(50);
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertThat(calls.get(), is(1));
+        assertThat(result[0], equalTo("first"));
+    }
+
+    @Test
+    public void shouldRethrowIOException() throws Exception {
+        try {
+            flight.execute(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("failed"));
+        }
+        assertThat(flight.execute(constant("next")), equalTo("next"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRethrowRuntimeExceptions() throws Exception {
+        flight.execute(new Callable<String>() {
+            @Override public String call() throws Exception {
+                throw new IllegalStateException();
+            }
+        });
+    }
+
+    private static Callable<String> constant(final String s) {
+        return new Callable<String>() {
+            @Override public String call() throws Exception {
+                return s;
+            }
+        };
+    }
+
+    @Test(timeout = 5000)
+    public void shouldFailReentrantCallsInsteadOfWaitingForThemselves() throws Exception {
+        assertThat(flight.execute(new Callable<String>() {
+            @Override public String call() throws Exception {
+                try {
+                    flight.execute(constant("inner"));
+                    return "joined";
+                } catch (IOException expected) {
+                    return "failed";
+                }
+            }
+        }), equalTo("failed"));
+        assertFalse(flight.isRunning());
+    }
+}
@@ -0,0 +1,102 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SlowRequestRecorderTest {
+    SlowRequestRecorder recorder = new SlowRequestRecorder(10);
+
+    @Test
+    public void shouldCaptureCallsOverThreshold() throws Exception {
+        final List<SlowRequestRecorder.SlowRequest> captured = new ArrayList<SlowRequestRecorder.SlowRequest>();
+        recorder.setListener(new SlowRequestRecorder.Listener() {
+            @Override public void onSlowRequest(SlowRequestRecorder.SlowRequest request) {
+                captured.add(request);
+            }
+        });
+        call(Request.to(Endpoints.MY_DETAILS), 0);
+        assertThat(captured.isEmpty(), is(true));
+
+        call(Request.to(Endpoints.TRACK_DETAILS, 123), 30);
+        assertThat(captured.size(), is(1));
+        SlowRequestRecorder.SlowRequest slow = captured.get(0);
+        assertThat(slow.getPattern(), equalTo(Endpoints.TRACK_DETAILS));
+        assertThat(slow.getRequestLine(), equalTo("GET /tracks/123"));
+        assertTrue(slow.getDuration() >= 30);
+        assertThat(slow.getAttempts().size(), is(2));
+        assertThat(slow.getTiming().getAttempt(), is(2));
+        assertThat(slow.getResponseHeaders(), equalTo(Arrays.asList("X-Runtime: 12")));
+        assertThat(recorder.getRecent(), equalTo(captured));
+        assertThat(recorder.getCaptured(), is(1L));
+    }
+
+    @Test
+    public void shouldRedactCredentials() throws Exception {
+        call(Request.to("/me?oauth_token=secret"), 30);
+        SlowRequestRecorder.SlowRequest slow = recorder.getRecent().get(0);
+        assertThat(slow.getRequestLine(), equalTo("GET /me?oauth_token=[redacted]"));
+        assertThat(slow.getRequestHeaders().get(0), equalTo("Authorization: [redacted]"));
+        assertThat(slow.getRequestHeaders().get(1), equalTo("Accept: application/json"));
+    }
+
+    @Test
+    public void shouldOnlyKeepMostRecentCaptures() throws Exception {
+        recorder.setCapacity(2);
+        for (int i = 1; i <= 3; i++) call(Request.to(Endpoints.TRACK_DETAILS, i), 15);
+        List<SlowRequestRecorder.SlowRequest> recent = recorder.getRecent();
+        assertThat(recent.size(), is(2));
+        assertThat(recent.get(0).getRequestLine(), equalTo("GET /tracks/2"));
+        assertThat(recorder.getCaptured(), is(3L));
+    }
+
+    @Test
+    public void shouldWaitForTimingOfLastAttempt() throws Exception {
+        Request req = Request.to(Endpoints.MY_DETAILS);
+        HttpGet get = new HttpGet("/me");
+        SlowRequestRecorder.Capture capture = recorder.begin(req, null);
+        Thread.sleep(20);
+        capture.finish(get, null, 1);
+        assertThat(recorder.getCaptured(), is(0L));
+        new RequestTiming(capture, req, get, 1, 0).fail(new IOException("reset"));
+        assertThat(recorder.getCaptured(), is(1L));
+        assertThat(recorder.getRecent().get(0).getTiming().getError().getMessage(), equalTo("reset"));
+    }
+
+    @Test
+    public void shouldCaptureOutliersByPercentile() throws Exception {
+        recorder = new SlowRequestRecorder(0);
+        recorder.setPercentile(99);
+        for (int i = 0; i < SlowRequestRecorder.MIN_SAMPLES; i++) {
+            assertFalse(recorder.isOutlier(Endpoints.TRACKS, 100 + i % 10));
+        }
+        assertFalse(recorder.isOutlier(Endpoints.TRACKS, 105));
+        assertTrue(recorder.isOutlier(Endpoints.TRACKS, 500));
+        assertFalse(recorder.isOutlier(Endpoints.MY_DETAILS, 500));
+    }
+
+    private void call(Request req, long sleep) throws Exception {
+        SlowRequestRecorder.Capture capture = recorder.begin(req, null);
+        HttpGet first = req.buildRequest(HttpGet.class);
+        new RequestTiming(capture, req, first, 1, 0).fail(new IOException("reset"));
+
+        HttpGet second = req.buildRequest(HttpGet.class);
+        second.addHeader("Authorization", "OAuth secret");
+        second.addHeader("Accept", "application/json");
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("X-Runtime", "12");
+        new RequestTiming(capture, req, second, 2, 0).complete(response);
+        Thread.sleep(sleep);
+        capture.finish(second, response, 2);
+    }
+}
@@ -0,0 +1,65 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+
+public class TimingSocketFactoryTest {
+    ServerSocket server;
+
+    @Before
+    public void setup() throws Exception {
+        server = new ServerSocket(0);
+    }
+
+    @After
+    public void after() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void shouldKeepSchemeSecurity() throws Exception {
+        assertFalse(TimingSocketFactory.wrap(PlainSocketFactory.getSocketFactory()) instanceof LayeredSocketFactory);
+        assertTrue(TimingSocketFactory.wrap(SSLSocketFactory.getSocketFactory()) instanceof LayeredSocketFactory);
+    }
+
+    @Test
+    public void shouldReportLookupAndConnect() throws Exception {
+        SocketFactory factory = TimingSocketFactory.wrap(PlainSocketFactory.getSocketFactory());
+        RequestTiming timing = new RequestTiming(null, Request.to(Endpoints.MY_DETAILS),
+                new HttpGet("/me"), 1, 0);
+        RequestTiming outer = RequestTiming.begin(timing);
+        try {
+            Socket socket = factory.connectSocket(factory.createSocket(), "localhost", server.getLocalPort(),
+                    null, 0, new BasicHttpParams());
+            assertTrue(socket.isConnected());
+            socket.close();
+        } finally {
+            RequestTiming.end(outer);
+        }
+        assertThat(RequestTiming.current(), nullValue());
+        assertTrue(timing.getDns() >= 0);
+        assertTrue(timing.getConnect() >= 0);
+        assertThat(timing.getTls(), is(-1L));
+    }
+
+    @Test
+    public void shouldLeaveEverythingToWrappedFactoryWithoutTiming() throws Exception {
+        SocketFactory factory = TimingSocketFactory.wrap(SSLSocketFactory.getSocketFactory());
+        assertThat(factory.createSocket(), instanceOf(SSLSocket.class));
+    }
+}
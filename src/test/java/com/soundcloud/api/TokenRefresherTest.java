@@ -0,0 +1,116 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TokenRefresherTest {
+    CloudAPI api;
+    TokenRefresher refresher;
+
+    @Before
+    public void setup() {
+        api = mock(CloudAPI.class);
+    }
+
+    @After
+    public void after() {
+        if (refresher != null) refresher.stop();
+    }
+
+    @Test
+    public void shouldRefreshAheadOfExpiryWithJitter() throws Exception {
+        refresher = new TokenRefresher(api, 1000, 500);
+        long now = System.currentTimeMillis();
+        Token token = expiring(now + 10000);
+        for (int i = 0; i < 100; i++) {
+            long delay = refresher.delay(token, now);
+            assertTrue(delay <= 9000);
+            assertTrue(delay >= 8500);
+        }
+    }
+
+    @Test
+    public void shouldRefreshImmediatelyWhenAlreadyExpired() throws Exception {
+        refresher = new TokenRefresher(api, 1000, 0);
+        long now = System.currentTimeMillis();
+        assertThat(refresher.delay(expiring(now - 1000), now), is(0L));
+    }
+
+    @Test
+    public void shouldPollWhenTokenDoesNotExpire() throws Exception {
+        refresher = new TokenRefresher(api, 5000, 0);
+        long now = System.currentTimeMillis();
+        assertThat(refresher.delay(new Token("access", null, Token.SCOPE_NON_EXPIRING), now), is(5000L));
+        assertThat(refresher.delay(null, now), is(5000L));
+    }
+
+    @Test
+    public void shouldBackOffExponentially() throws Exception {
+        refresher = new TokenRefresher(api, 60 * 1000, 0);
+        assertThat(refresher.backoff(1), is(TokenRefresher.BACKOFF));
+        assertThat(refresher.backoff(2), is(TokenRefresher.BACKOFF * 2));
+        assertThat(refresher.backoff(100), is(30 * 1000L));
+    }
+
+    @Test
+    public void shouldRefreshTokenInBackground() throws Exception {
+        final Token token = expiring(System.currentTimeMillis() + 1050);
+        final Token refreshed = expiring(System.currentTimeMillis() + 60 * 60 * 1000);
+        when(api.getToken()).thenReturn(token);
+        when(api.refreshToken()).thenReturn(refreshed);
+
+        refresher = new TokenRefresher(api, 1000, 0);
+        refresher.start();
+        assertTrue(refresher.isRunning());
+        verify(api, timeout(2000)).refreshToken();
+        refresher.stop();
+        assertFalse(refresher.isRunning());
+    }
+
+    @Test
+    public void shouldRetryFailedRefresh() throws Exception {
+        when(api.getToken()).thenReturn(expiring(System.currentTimeMillis()));
+        when(api.refreshToken())
+                .thenThrow(new IOException("network down"))
+                .thenReturn(expiring(System.currentTimeMillis() + 60 * 60 * 1000));
+
+        refresher = new TokenRefresher(api, 0, 0);
+        refresher.start();
+        verify(api, timeout(3000).times(2)).refreshToken();
+    }
+
+    @Test
+    public void shouldNotRefreshMoreOftenThanMinimumInterval() throws Exception {
+        refresher = new TokenRefresher(api, 10 * 60 * 1000, 60 * 1000);
+        long now = System.currentTimeMillis();
+        assertThat(refresher.next(expiring(now + 60 * 1000), now), is(TokenRefresher.MIN_INTERVAL));
+        assertThat(refresher.next(expiring(now + 60 * 60 * 1000), now) > TokenRefresher.MIN_INTERVAL, is(true));
+    }
+
+    @Test
+    public void shouldKeepRefreshingAfterRuntimeException() throws Exception {
+        when(api.getToken()).thenReturn(expiring(System.currentTimeMillis()));
+        when(api.refreshToken())
+                .thenThrow(new NullPointerException("buggy listener"))
+                .thenReturn(expiring(System.currentTimeMillis() + 60 * 60 * 1000));
+
+        refresher = new TokenRefresher(api, 0, 0);
+        refresher.start();
+        verify(api, timeout(3000).times(2)).refreshToken();
+    }
+
+    private static Token expiring(long when) {
+        Token t = new Token("access", "refresh");
+        t.expiresIn = when;
+        return t;
+    }
+}
@@ -0,0 +1,73 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+
+public class TokenStoreTest {
+    @Test
+    public void shouldStoreTokensPerUser() throws Exception {
+        TokenStore store = new TokenStore(100);
+        store.put("1", new Token("a", "r"));
+        store.put("2", new Token("b", "r"));
+        assertThat(store.get("1").access, equalTo("a"));
+        assertThat(store.get("2").access, equalTo("b"));
+        assertThat(store.get("3"), is(nullValue()));
+        assertThat(store.size(), is(2));
+    }
+
+    @Test
+    public void shouldReplaceTokenAndListener() throws Exception {
+        TokenStore store = new TokenStore(100);
+        CloudAPI.TokenListener listener = mock(CloudAPI.TokenListener.class);
+        store.put("1", new Token("a", "r"));
+        TokenStore.Tenant tenant = store.tenant("1");
+        store.put("1", new Token("b", "r"), listener);
+        assertThat(store.tenant("1"), equalTo(tenant));
+        assertThat(tenant.snapshot().header.getValue(), equalTo("OAuth b"));
+        assertThat(tenant.listener, equalTo(listener));
+    }
+
+    @Test
+    public void shouldNotExposeStoredTokens() throws Exception {
+        TokenStore store = new TokenStore(100);
+        Token token = new Token("a", "r");
+        store.put("1", token);
+        token.access = "changed";
+        store.get("1").invalidate();
+        assertThat(store.get("1").access, equalTo("a"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedTenants() throws Exception {
+        TokenStore store = new TokenStore(2, 1);
+        store.put("1", new Token("a", "r"));
+        store.put("2", new Token("b", "r"));
+        store.get("1");
+        store.put("3", new Token("c", "r"));
+        assertThat(store.size(), is(2));
+        assertThat(store.get("2"), is(nullValue()));
+        assertThat(store.get("1").access, equalTo("a"));
+        assertThat(store.get("3").access, equalTo("c"));
+    }
+
+    @Test
+    public void shouldBeBoundedAcrossShards() throws Exception {
+        TokenStore store = new TokenStore(1000, 16);
+        for (int i = 0; i < 10000; i++) store.put(String.valueOf(i), new Token("t" + i, "r"));
+        assertThat(store.size(), is(1000));
+    }
+
+    @Test
+    public void shouldRemoveTenants() throws Exception {
+        TokenStore store = new TokenStore(10);
+        store.put("1", new Token("a", "r"));
+        assertThat(store.remove("1").access, equalTo("a"));
+        assertThat(store.remove("1"), is(nullValue()));
+        assertThat(store.size(), is(0));
+    }
+}
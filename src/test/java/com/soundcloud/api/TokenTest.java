@@ -59,6 +59,17 @@ public class TokenTest {
         assertFalse(t.signupScoped());
     }
 
+    @Test
+    public void shouldMatchScopesExactly() throws Exception {
+        Token t = new Token(null, null, "* non-expiring signup");
+        assertTrue(t.scoped("*"));
+        assertTrue(t.scoped("non-expiring"));
+        assertTrue(t.scoped("signup"));
+        assertFalse(t.scoped("sign"));
+        assertFalse(t.scoped("non"));
+        assertFalse(t.scoped("* non-expiring"));
+    }
+
     @Test
     public void shouldHaveProperEqualsMethod() throws Exception {
         assertEquals(new Token("1", "2"), new Token("1", "2"));
@@ -67,6 +78,27 @@ public class TokenTest {
         assertEquals(new Token("1", "2", "bla"), new Token("1", "2", "bla"));
     }
 
+    @Test
+    public void shouldDetectExpiredTokens() throws Exception {
+        Token t = new Token("1", "2");
+        assertFalse(t.expired());
+        t.expiresIn = System.currentTimeMillis() + 60 * 1000;
+        assertFalse(t.expired());
+        t.expiresIn = System.currentTimeMillis() - 1;
+        assertTrue(t.expired());
+    }
+
+    @Test
+    public void shouldHaveCopyConstructor() throws Exception {
+        Token t = new Token("1", "2", "*");
+        t.expiresIn = 1000;
+        Token copy = new Token(t);
+        assertEquals(t, copy);
+        assertEquals(t.getExpiresIn(), copy.getExpiresIn());
+        t.invalidate();
+        assertThat(copy.access, equalTo("1"));
+    }
+
     @Test
     public void shouldParseJsonResponse() throws Exception {
         Token t = new Token(new JSONObject("{\n" +
@@ -81,4 +113,17 @@ public class TokenTest {
         assertThat(t.refresh, equalTo("5678"));
         assertNotNull(t.getExpiresIn());
     }
+
+    @Test
+    public void shouldParseExpirationWithoutRefreshToken() throws Exception {
+        Token t = new Token(new JSONObject("{\n" +
+                "    \"access_token\": \"1234\",\n" +
+                "    \"expires_in\":   3600,\n" +
+                "    \"scope\":    \"signup\"\n" +
+                "}"));
+
+        assertNull(t.refresh);
+        assertNotNull(t.getExpiresIn());
+        assertFalse(t.expired());
+    }
 }
@@ -0,0 +1,240 @@
+package com.soundcloud.api;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class UploadQueueTest {
+    CloudAPI api;
+    File journal, track;
+    UploadQueue queue;
+
+    @Before
+    public void setup() throws Exception {
+        api = mock(CloudAPI.class);
+        journal = File.createTempFile("uploads", "journal");
+        journal.delete();
+        track = File.createTempFile("track", "mp3");
+        FileOutputStream out = new FileOutputStream(track);
+        out.write("some audio".getBytes());
+        out.close();
+        queue = new UploadQueue(api, journal, 2);
+        queue.setBackoff(1);
+    }
+
+    @After
+    public void after() throws Exception {
+        queue.close();
+        journal.delete();
+        track.delete();
+    }
+
+    @Test
+    public void shouldUploadQueuedRequests() throws Exception {
+        HttpResponse created = response(201);
+        when(api.post(any(Request.class))).thenReturn(created);
+        UploadQueue.Listener listener = mock(UploadQueue.Listener.class);
+        queue.setListener(listener);
+
+        UploadQueue.Upload upload = queue.add(trackUpload());
+        queue.start();
+
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(listener).onUploaded(upload, created);
+        assertThat(queue.getCompleted(), is(1L));
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void shouldResumePendingUploadsFromJournal() throws Exception {
+        queue.add(trackUpload());
+        queue.add(trackUpload());
+        queue.close();
+
+        HttpResponse created = response(201);
+        when(api.post(any(Request.class))).thenReturn(created);
+        queue = new UploadQueue(api, journal, 2);
+        assertThat(queue.size(), is(2));
+        assertThat(queue.getPending().get(0).getRequest().toUrl(), equalTo(trackUpload().toUrl()));
+        assertThat(queue.getPending().get(0).getRequest().getFiles().get(Params.Track.ASSET_DATA), equalTo(track));
+
+        queue.start();
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(api, times(2)).post(any(Request.class));
+        queue.close();
+
+        queue = new UploadQueue(api, journal, 2);
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void shouldRemoveCancelledUploadsFromJournal() throws Exception {
+        UploadQueue.Upload upload = queue.add(trackUpload());
+        queue.add(trackUpload());
+        assertTrue(queue.cancel(upload));
+        assertFalse(queue.cancel(upload));
+        assertThat(queue.size(), is(1));
+        queue.close();
+
+        queue = new UploadQueue(api, journal, 1);
+        assertThat(queue.size(), is(1));
+        assertThat(queue.getPending().get(0).id, is(1L));
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteJournalEntries() throws Exception {
+        queue.add(trackUpload());
+        queue.close();
+        FileOutputStream out = new FileOutputStream(journal, true);
+        out.write("{\"id\":1,\"op\":\"ad".getBytes());
+        out.close();
+
+        queue = new UploadQueue(api, journal, 1);
+        assertThat(queue.size(), is(1));
+        assertThat(queue.add(trackUpload()).id, is(1L));
+    }
+
+    @Test
+    public void shouldRetryTransientFailures() throws Exception {
+        HttpResponse unavailable = response(503), created = response(201);
+        when(api.post(any(Request.class)))
+                .thenThrow(new IOException("connection reset"))
+                .thenReturn(unavailable)
+                .thenReturn(created);
+
+        queue.add(trackUpload());
+        queue.start();
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(api, times(3)).post(any(Request.class));
+        assertThat(queue.getCompleted(), is(1L));
+    }
+
+    @Test
+    public void shouldNotRetryPermanentFailures() throws Exception {
+        HttpResponse error = response(422);
+        when(api.post(any(Request.class))).thenReturn(error);
+        UploadQueue.Listener listener = mock(UploadQueue.Listener.class);
+        queue.setListener(listener);
+
+        UploadQueue.Upload upload = queue.add(trackUpload());
+        queue.start();
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(api, times(1)).post(any(Request.class));
+        verify(listener).onFailed(eq(upload), any(IOException.class));
+        queue.close();
+
+        queue = new UploadQueue(api, journal, 1);
+        assertThat(queue.size(), is(0));
+    }
+
+    @Test
+    public void shouldKeepUploadInJournalWhenAttemptsAreUsedUp() throws Exception {
+        HttpResponse error = response(500);
+        when(api.post(any(Request.class))).thenReturn(error);
+        queue.setMaxAttempts(2);
+        queue.add(trackUpload());
+        queue.start();
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(api, times(2)).post(any(Request.class));
+        assertThat(queue.getFailed(), is(1L));
+        queue.close();
+
+        queue = new UploadQueue(api, journal, 1);
+        assertThat(queue.size(), is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotQueueInMemoryData() throws Exception {
+        queue.add(Request.to(Endpoints.TRACKS).withFile(Params.Track.ASSET_DATA, "data".getBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotQueueTokens() throws Exception {
+        queue.add(trackUpload().usingToken(new Token("access", "refresh")));
+    }
+
+    @Test
+    public void shouldKeepUserAndPatternInJournal() throws Exception {
+        queue.add(Request.to(Endpoints.TRACK_COMMENTS, 123).with(Params.Comment.BODY, "hi").forUser("alice"));
+        queue.close();
+
+        queue = new UploadQueue(api, journal, 1);
+        final Request restored = queue.getPending().get(0).getRequest();
+        assertThat(restored.getUser(), equalTo("alice"));
+        assertThat(restored.getPattern(), equalTo(Endpoints.TRACK_COMMENTS));
+        assertThat(restored.toUrl(), equalTo("/tracks/123/comments?comment%5Bbody%5D=hi"));
+        assertThat(restored.getToken(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldGrowBackoffExponentially() throws Exception {
+        queue.setBackoff(1000);
+        assertTrue(queue.backoff(1) <= 1000);
+        assertTrue(queue.backoff(3) >= 2000);
+        assertTrue(queue.backoff(3) <= 4000);
+        assertTrue(queue.backoff(100) <= UploadQueue.MAX_BACKOFF);
+    }
+
+    private Request trackUpload() {
+        return Request.to(Endpoints.TRACKS)
+                .with(Params.Track.TITLE, "Hello", Params.Track.SHARING, Params.Track.PRIVATE)
+                .withFile(Params.Track.ASSET_DATA, track);
+    }
+
+    private static HttpResponse response(int status) {
+        HttpResponse response = mock(HttpResponse.class);
+        StatusLine line = mock(StatusLine.class);
+        when(line.getStatusCode()).thenReturn(status);
+        when(response.getStatusLine()).thenReturn(line);
+        return response;
+    }
+
+    @Test
+    public void shouldFailUploadsThrowingRuntimeExceptions() throws Exception {
+        when(api.post(any(Request.class))).thenThrow(new IllegalStateException("broken entity"));
+        UploadQueue.Listener listener = mock(UploadQueue.Listener.class);
+        queue.setListener(listener);
+
+        UploadQueue.Upload upload = queue.add(trackUpload());
+        queue.start();
+
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        verify(listener).onFailed(eq(upload), any(IOException.class));
+        verify(api, times(1)).post(any(Request.class));
+        assertThat(queue.getFailed(), is(1L));
+    }
+
+    @Test
+    public void shouldCompleteUploadsWhenListenerThrows() throws Exception {
+        HttpResponse created = response(201);
+        when(api.post(any(Request.class))).thenReturn(created);
+        UploadQueue.Listener listener = mock(UploadQueue.Listener.class);
+        doThrow(new RuntimeException("buggy listener")).when(listener)
+                .onUploaded(any(UploadQueue.Upload.class), any(HttpResponse.class));
+        queue.setListener(listener);
+
+        queue.add(trackUpload());
+        queue.start();
+
+        assertTrue(queue.awaitCompletion(5, TimeUnit.SECONDS));
+        assertThat(queue.getCompleted(), is(1L));
+        assertThat(queue.size(), is(0));
+    }
+}
@@ -5,6 +5,8 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpVersion;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.HeaderGroup;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -17,7 +19,8 @@ public class FakeHttpResponse extends HttpResponseStub {
     private String responseBody;
     private Header contentType;
     private TestStatusLine statusLine = new TestStatusLine();
-    private TestHttpEntity httpEntity = new TestHttpEntity();
+    private HttpEntity httpEntity = new TestHttpEntity();
+    private HeaderGroup headers = new HeaderGroup();
 
     public FakeHttpResponse(int statusCode, String responseBody) {
         this.statusCode = statusCode;
@@ -37,6 +40,42 @@ public class FakeHttpResponse extends HttpResponseStub {
         return httpEntity;
     }
 
+    @Override public void setEntity(HttpEntity entity) {
+        httpEntity = entity;
+    }
+
+    @Override public boolean containsHeader(String s) {
+        return headers.containsHeader(s);
+    }
+
+    @Override public Header[] getHeaders(String s) {
+        return headers.getHeaders(s);
+    }
+
+    @Override public Header getFirstHeader(String s) {
+        return headers.getFirstHeader(s);
+    }
+
+    @Override public Header getLastHeader(String s) {
+        return headers.getLastHeader(s);
+    }
+
+    @Override public Header[] getAllHeaders() {
+        return headers.getAllHeaders();
+    }
+
+    @Override public void addHeader(Header header) {
+        headers.addHeader(header);
+    }
+
+    @Override public void addHeader(String name, String value) {
+        headers.addHeader(new BasicHeader(name, value));
+    }
+
+    @Override public void setHeader(String name, String value) {
+        headers.updateHeader(new BasicHeader(name, value));
+    }
+
     public class TestHttpEntity extends HttpEntityStub {
         @Override public long getContentLength() {
             return responseBody.length();